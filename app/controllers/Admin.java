@@ -3,8 +3,12 @@ package controllers;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
+import com.google.gson.JsonObject;
+
 import play.mvc.With;
 
+import util.ResultCache;
+import util.SKLearnService;
 import util.Util;
 
 import models.*;
@@ -47,6 +51,14 @@ public class Admin extends CORSController {
 		renderText( Predictors._deleteFailed() );
 	}
 	
+	/** Reports the health of the services that predictors depend on, and the effectiveness of the result cache. */
+	public static void status() {
+		JsonObject status = new JsonObject();
+		status.add("sklearnService", SKLearnService.status());
+		status.add("resultCache", ResultCache.status());
+		renderJSON( Util.PP_GSON.toJson(status) );
+	}
+	
 	public static void chpass(String phrase, String salt) {
 		if (phrase == null)
 			render();
@@ -1,6 +1,7 @@
 package controllers;
 
 import play.*;
+import play.db.jpa.JPA;
 import play.mvc.Http;
 import util.SubattributeRelationMismatchException;
 
@@ -11,22 +12,29 @@ import javax.persistence.PersistenceException;
 
 import com.google.gson.JsonObject;
 
+import models.PSI;
 import models.PSIResponse;
 import models.attribute.*;
 import models.data.*;
 import models.predictor.ArrayLengthMismatchException;
 import models.transformer.BadValueException;
+import models.transformer.Column;
 import models.transformer.EncodedTransformerChain;
 import models.transformer.Function;
 import models.transformer.TransformationEncodingException;
 import models.transformer.Transformer;
+import util.ColumnCache;
 import util.Util;
 
 public class Attributes extends CORSController {
 	private static final String INSTANCE_ARG = "instance";
 	private static final Pattern VALID_INSTANCE = Pattern.compile("^(?:all|\\d+)$");
+	/** Property that distinguishes a request to create several attributes from one to create a single attribute. */
+	private static final String BATCH_KEY = "attributes";
 	
 	public static void create(String id, JsonObject body) {
+		if (body != null && body.has(BATCH_KEY))
+			createAll(id, body);
 		try {
 			Attribute.Create createReq = parseAndCheckRequestBody(body, Attribute.Create.class);
 			//Not essential, but select something more meaningful than a UUID; the terminal digit ensures that the ultimate name will be numbered (sequentially among available identifiers)
@@ -39,6 +47,29 @@ public class Attributes extends CORSController {
 		}
 	}
 	
+	/**
+	 * Creates every attribute in an {@code attribute-definition-list} in a
+	 * single transaction and responds with a list of their URIs, in the same
+	 * order as the definitions. If any definition fails then none of the
+	 * attributes are created.
+	 */
+	private static void createAll(String id, JsonObject body) {
+		try {
+			Attribute.CreateList createReq = parseAndCheckRequestBody(body, Attribute.CreateList.class);
+			for (Attribute.Create definition : createReq.attributes)
+				definition.name = definition.attribute.isJsonArray() ? "array1" : "object1"; //as for create()
+			List<Attribute> created = Attribute.createAll(id, createReq.attributes, Attribute.Persistence.USER);
+			List<String> uris = new ArrayList<>( created.size() );
+			for (Attribute attr : created)
+				uris.add( getReverseRoute(attr) );
+			response.status = Http.StatusCode.CREATED;
+			renderJSON( new PSI.ResourceList(Util.requestPath(), uris) );
+		} catch (IllegalArgumentException | SubattributeRelationMismatchException e) {
+			JPA.setRollbackOnly();
+			badRequest(e.getMessage());
+		}
+	}
+	
 	public static void describeOrApply(String relID, String id) {
 		Logger.trace("Attributes.describeOrApply(relID = %s, id = %s)", relID, id);
 		try {
@@ -61,9 +92,19 @@ public class Attributes extends CORSController {
 			if (! VALID_INSTANCE.matcher(instance).matches())
 				badRequest("Instance value " + instance + " is not valid. Must be a non-negative integer or 'all'");
 			Integer i = instance.equals("all") ? null : Integer.parseInt(instance);
+			if (i == null && transformation != null && ColumnCache.isCacheable(transformation)) {
+				Function f = transformation.constructProcessingPipeline(attr); //fetching the chain's transformers, whose predictors the key includes
+				ColumnCache.Key key = ColumnCache.key(attr.name, transformation, query);
+				Column values = ColumnCache.get(key);
+				if (values == null) {
+					values = Column.transform(f, attr.getRelation().iterator(query));
+					ColumnCache.put(key, values);
+				}
+				return new Transformer.Value( values.toJsonArray() );
+			}
 			Function f = transformation == null ? attr : transformation.constructProcessingPipeline(attr);
 			if (i == null)
-				return new Transformer.Value( f.apply( attr.getRelation().iterator(query) ) );
+				return new Transformer.Value( Column.transform(f, attr.getRelation().iterator(query)).toJsonArray() );
 			return new Transformer.Value( f.apply( attr.getRelation().readInstance(query, i) ) );
 		} catch (TransformationEncodingException tee) {
 			error("Unable to create processing pipeline for transformed attribute. Details: " + tee.getMessage());
@@ -103,8 +144,10 @@ public class Attributes extends CORSController {
 			Collection<Attribute> toDelete = new Vector<>();
 			target.prepareForDeletion(toDelete);
 			try {
-				for (Attribute attr : toDelete)
+				for (Attribute attr : toDelete) {
 					attr.delete();
+					ColumnCache.invalidateAttribute(attr.name);
+				}
 				Logger.info("Deleted %d attribute(s), starting with '%s'", toDelete.size(), id);
 				renderDeleted();
 			} catch (PersistenceException pe) { //simpler to catch this than to perform the check
@@ -18,6 +18,7 @@ import org.apache.commons.io.filefilter.SuffixFileFilter;
 import models.attribute.ArrayAttribute;
 import models.attribute.Attribute;
 import models.data.*;
+import util.ColumnCache;
 import util.Util;
 
 public class Data extends CORSController {
@@ -48,7 +49,9 @@ public class Data extends CORSController {
 		//Cascading delete cannot handle potentially complex object graphs that have been persisted, so manually unlink models first
 		for (Relation relation : Relation.all().<Relation>fetch())
 			relation.prepareForDeletion();
-		return String.format("%s\nRemoved %d relation(s) and %d attribute(s)", new Date(), Relation.deleteAll(), Attribute.deleteAll());
+		String result = String.format("%s\nRemoved %d relation(s) and %d attribute(s)", new Date(), Relation.deleteAll(), Attribute.deleteAll());
+		ColumnCache.clear();
+		return result;
 	}
 	
 	public static String _initialiseRelations() {
@@ -17,8 +17,14 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
+import models.predictor.MicroBatcher;
 import models.predictor.Predictor;
+import models.transformer.ChainedTransformer;
+import models.transformer.EncodedTransformerChain;
 import models.transformer.Transformer;
+import util.ColumnCache;
+import util.ModelCache;
+import util.ResultCache;
 import util.Util;
 
 public class Predictors extends Transformers {
@@ -38,7 +44,8 @@ public class Predictors extends Transformers {
 		if (updateValues.value != null)
 			updateList.add(updateValues.value);
 		predictor.update(updateList);
-		predictor.save();
+		predictor.saveUpdate();
+		predictorUpdated(predictor);
 		renderSimpleResponse(HttpURLConnection.HTTP_SEE_OTHER, LOCATION, getReverseRoute(Kind.PREDICTOR, predictor.name), response /*origResponse*/);
 	}
 	
@@ -74,11 +81,49 @@ public class Predictors extends Transformers {
 		Predictor target = (Predictor) find(Kind.PREDICTOR, id);
 		checkReady(target);
 		target.delete();
+		predictorDeleted(target);
 		renderDeleted();
 		//Cannot send back a plain text response if using Backbone.destroy() in a JavaScript client (since any non-JSON response is treated as an error
 //		renderText("Deleted predictor '%s'. Note that this may have broken an existing joined transformer.", id);
 	}
 	
+	/**
+	 * Discards the results and pipelines that depend on the given predictor's
+	 * model version; call after it has been updated. This is done once the
+	 * update has been committed. Decoded chains are kept, as they find the
+	 * updated model by the predictor's name, and so are cached models, which
+	 * are keyed by version or by content.
+	 */
+	private static void predictorUpdated(Predictor predictor) {
+		final String name = predictor.name;
+		afterCommit(new Runnable() {
+			public void run() {
+				ChainedTransformer.invalidatePredictor(name);
+				ColumnCache.invalidatePredictor(name);
+				ResultCache.invalidate(name);
+			}
+		});
+	}
+	
+	/**
+	 * Discards everything cached for the given predictor; call after it has
+	 * been deleted. This is done once the deletion has been committed, since
+	 * cached chains and pipelines hold the predictor's entity.
+	 */
+	private static void predictorDeleted(Predictor predictor) {
+		final String name = predictor.name;
+		afterCommit(new Runnable() {
+			public void run() {
+				EncodedTransformerChain.invalidatePredictor(name);
+				ChainedTransformer.invalidatePredictor(name);
+				ColumnCache.invalidatePredictor(name);
+				ModelCache.invalidate(name);
+				ResultCache.invalidate(name);
+				MicroBatcher.forget(name);
+			}
+		});
+	}
+	
 	//--Start up jobs----------------------------------------------------------
 	/**
 	 * Marks as failed those predictors that have not completed training (and
@@ -114,8 +159,10 @@ public class Predictors extends Transformers {
 	}
 	
 	private static void deletePredictors(List<Predictor> targets) {
-		for (Predictor p : targets)
+		for (Predictor p : targets) {
 			p.delete();
+			predictorDeleted(p);
+		}
 	}
 
 }
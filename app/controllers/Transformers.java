@@ -1,22 +1,32 @@
 package controllers;
 
+import play.db.jpa.JPA;
 import play.mvc.*;
 import util.ExternalResourceException;
 
 import java.util.*;
 
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import models.PSI;
 import models.predictor.ArrayLengthMismatchException;
+import models.predictor.MicroBatcher;
 import models.predictor.Predictor;
 import models.transformer.BadValueException;
 import models.transformer.BuiltinTransformer;
+import models.transformer.ChainedTransformer;
 import models.transformer.EncodedTransformerChain;
+import models.transformer.ExpressionTransformer;
 import models.transformer.Function;
 import models.transformer.TransformationEncodingException;
 import models.transformer.Transformer;
+import util.ResultCache;
 import util.Util;
 
 /**
@@ -45,11 +55,16 @@ public class Transformers extends CORSController {
 		}
 	}	
 
+	@SuppressWarnings("unchecked") //names of NamedModels are strings
 	public static void listAll(final String kind) {
 		if (kind.equals(Kind.PREDICTOR.getRoute()))
 			listAll(Predictor.class, kind);
-		else //kinds file ensures that kind is for (built-in) transformers
-			listAll(BuiltinTransformer.names, kind);
+		else { //kinds file ensures that kind is for (built-in or stored) transformers
+			List<String> names = new ArrayList<>(BuiltinTransformer.names);
+			names.addAll( JPA.em().createQuery("select name from " + ExpressionTransformer.class.getSimpleName() + " order by name").getResultList() );
+			names.addAll( JPA.em().createQuery("select name from " + ChainedTransformer.class.getSimpleName() + " order by name").getResultList() );
+			listAll(names, kind);
+		}
 	}
 	
 	public static void describeOrApply(final String kind, String id) {
@@ -84,6 +99,64 @@ public class Transformers extends CORSController {
 		}
 	}
 
+	/**
+	 * Stores the joined transformer given by the transformer {@code id} and
+	 * the {@code t} argument under a short ID, and responds with its URI.
+	 */
+	public static void store(final String kind, String id) {
+		try {
+			Transformer t = find(kind, id);
+			checkReady(t);
+			EncodedTransformerChain transformation = parseTransformation(params);
+			if (transformation == null)
+				badRequest("Only joined transformers (those with a " + EncodedTransformerChain.URI_KEY + " argument) can be stored");
+			transformation.constructProcessingPipeline(t); //checks compatibility
+			ChainedTransformer stored = ChainedTransformer.create(Kind.fromRoute(kind), t, transformation);
+			renderCreated( getReverseRoute(Kind.TRANSFORMER, stored), response );
+		} catch (TransformationEncodingException e) {
+			badRequest(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Creates a transformer from an {@code expression-definition} and
+	 * responds with its URI.
+	 */
+	public static void create(JsonObject body) {
+		try {
+			ExpressionTransformer.Create createReq = parseAndCheckRequestBody(body, ExpressionTransformer.Create.class);
+			ExpressionTransformer t = ExpressionTransformer.create(createReq.expression, createReq.accepts, createReq.description);
+			renderCreated( getReverseRoute(Kind.TRANSFORMER, t), response );
+		} catch (IllegalArgumentException iae) {
+			badRequest(iae.getMessage());
+		} catch (ExternalResourceException ere) {
+			badRequest("Unable to resolve the accepts schema. Details: " + ere.getMessage());
+		}
+	}
+	
+	/** Deletes a stored joined or expression transformer; built-in transformers cannot be deleted. */
+	public static void delete(String id) {
+		if (getTransformation(params) != null)
+			badRequest("A joined transformer cannot be deleted directly. Perhaps you meant to request DELETE " + getReverseRoute(Kind.TRANSFORMER, id));
+		Transformer target = find(Kind.TRANSFORMER, id);
+		if (! (target instanceof ChainedTransformer || target instanceof ExpressionTransformer))
+			forbidden("Built-in transformers cannot be deleted");
+		String user = ChainedTransformer.findUserOf(id);
+		if (user != null)
+			forbidden("Transformer '" + id + "' is used by stored joined transformer '" + user + "', which must be deleted first");
+		target.delete();
+		final Transformer deleted = target;
+		afterCommit(new Runnable() {
+			public void run() {
+				if (deleted instanceof ChainedTransformer)
+					((ChainedTransformer) deleted).forgetPipeline();
+				else
+					((ExpressionTransformer) deleted).forgetPipeline();
+			}
+		});
+		renderDeleted();
+	}
+	
 	private static void describe(Transformer t, EncodedTransformerChain transformation) {
 		renderJSON( t.getDescription(Util.requestPath(), transformation) );
 	}
@@ -92,10 +165,21 @@ public class Transformers extends CORSController {
 			JsonElement value)
 	{
 		try {
-			if (! t.isAcceptableValue(value))
-				badRequest("Given value (" + value + ") is not an acceptable input to this transformer: " + t.accepts);
-			Function f = transformation == null ? t : transformation.constructProcessingPipeline(t);
-			renderJSON( new Transformer.Value(f.apply(value)).toJsonWithNullableValue() );
+			String cacheKey = transformation == null && t instanceof Predictor ? ResultCache.key((Predictor) t, value) : null;
+			JsonElement result = cacheKey == null ? null : ResultCache.get(cacheKey); //already validated if cached
+			if (result == null) {
+				if (! t.isAcceptableValue(value))
+					badRequest("Given value (" + value + ") is not an acceptable input to this transformer: " + t.accepts);
+				if (transformation == null && t instanceof Predictor) //may be batched with concurrent requests
+					result = MicroBatcher.apply((Predictor) t, value);
+				else {
+					Function f = transformation == null ? t : transformation.constructProcessingPipeline(t);
+					result = f.apply(value);
+				}
+				if (cacheKey != null)
+					ResultCache.put(cacheKey, result);
+			}
+			renderJSON( new Transformer.Value(result).toJsonWithNullableValue() );
 		} catch (TransformationEncodingException tee) {
 			error("Unable to create processing pipeline for joined transformer. Details: " + tee.getMessage());
 		} catch (ExternalResourceException ere) {
@@ -128,11 +212,36 @@ public class Transformers extends CORSController {
 		if ((t instanceof Predictor) && !((Predictor)t).isTrained())
 			forbidden("Training of this predictor has not yet completed. Its status is available at " + getReverseRoute(Kind.PREDICTOR, t.name));
 	}
+	
+	/**
+	 * Runs {@code action} once the request's transaction has been committed,
+	 * or at once if there is none; it is not run if the transaction is
+	 * rolled back. Use it to discard cached chains or pipelines that hold a
+	 * changed transformer, so that none can be rebuilt from it as it was
+	 * before the change was committed and then kept.
+	 */
+	protected static void afterCommit(final Runnable action) {
+		if (! JPA.isInsideTransaction() || ! JPA.em().getTransaction().isActive()) {
+			action.run();
+			return;
+		}
+		((Session) JPA.em().getDelegate()).getTransaction().registerSynchronization(new Synchronization() {
+			public void beforeCompletion() { }
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED)
+					action.run();
+			}
+		});
+	}
 
 	public static Transformer find(final String kind, final String id) { return find(Kind.fromRoute(kind), id); }
 
 	public static Transformer find(Kind kind, final String id) { 
 		Transformer t = kind == Kind.PREDICTOR ? Predictor.<Predictor>findById(id) : BuiltinTransformer.load(id);
+		if (t == null && kind == Kind.TRANSFORMER)
+			t = ExpressionTransformer.<ExpressionTransformer>findById(id);
+		if (t == null && kind == Kind.TRANSFORMER)
+			t = ChainedTransformer.<ChainedTransformer>findById(id);
 		if (t == null)
 			notFoundSeeList(kind == Kind.PREDICTOR ? "predictor" : "transformer", "Transformers.listAll", "kind", kind.getRoute());
 		return t;
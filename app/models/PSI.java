@@ -76,6 +76,12 @@ public final class PSI {
 			for (String name : names) 
 				resources.add( anchorPoint + name );
 		}
+
+		/** Generate a new list of the given resource URIs. */
+		public ResourceList(String uri, List<String> uris) {
+			this.uri = uri;
+			resources = uris;
+		}
 	}
 
 }
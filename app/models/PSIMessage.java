@@ -8,6 +8,7 @@ import models.attribute.Attribute;
 import models.data.Relation;
 import models.learner.Learner;
 import models.predictor.Predictor;
+import models.transformer.ExpressionTransformer;
 import models.transformer.Transformer;
 
 import com.google.gson.JsonObject;
@@ -40,8 +41,10 @@ public abstract class PSIMessage {
 		toPOJO.put("learner",				Learner.Description.class);
 		toPOJO.put("training-status",		Predictor.Status.class);
 		toPOJO.put("attribute-definition",	Attribute.Create.class);
+		toPOJO.put("attribute-definition-list",	Attribute.CreateList.class);
 		toPOJO.put("task",					Learner.Process.class);
 		toPOJO.put("composition",			Transformer.Join.class);
+		toPOJO.put("expression-definition",	ExpressionTransformer.Create.class);
 		toPOJO.put("value",					Transformer.Value.class);
 		psiTypeToPOJO = Collections.unmodifiableMap(toPOJO);
 		Map<Class<? extends PSIMessage>,String> toPSIType = new HashMap<>();
@@ -20,6 +20,7 @@ import com.google.gson.JsonObject;
 
 import models.data.Relation;
 import models.transformer.BadValueException;
+import models.transformer.Column;
 
 import play.Logger;
 import util.SubattributeRelationMismatchException;
@@ -102,4 +103,15 @@ public class ArrayAttribute extends Attribute {
 		return array;
 	}
 	
+	/**
+	 * Applies each element attribute to the whole column of instances,
+	 * producing a column of arrays that is held element-wise.
+	 */
+	public Column apply(Column instances) throws BadValueException {
+		Column[] elementColumns = new Column[ elements.size() ];
+		for (int i = 0; i < elementColumns.length; i++)
+			elementColumns[i] = elements.get(i).apply(instances);
+		return new Column.Tuples(elementColumns, instances.size());
+	}
+	
 }
\ No newline at end of file
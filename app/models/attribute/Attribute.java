@@ -6,7 +6,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -27,6 +27,7 @@ import controllers.Attributes;
 import controllers.Data;
 import models.transformer.EncodedTransformerChain;
 import models.transformer.AbstractFunction;
+import util.NameSequences;
 import util.Util;
 
 import models.PSIMessage;
@@ -35,6 +36,7 @@ import models.data.Relation;
 import models.data.Query;
 
 import play.Logger;
+import play.db.jpa.JPA;
 import play.mvc.Router;
 import util.SubattributeRelationMismatchException;
 
@@ -66,14 +68,17 @@ public abstract class Attribute extends AbstractFunction {
 		public boolean evaluate(Object attr) { return ((Attribute)attr).isParent(); } 
 	};
 	
+	/**
+	 * State shared by the attributes created by one call to
+	 * {@link #createAll(String, List, Persistence)}; {@code null} otherwise.
+	 */
+	private static final ThreadLocal<Batch> currentBatch = new ThreadLocal<>();
+	
 	/** Link to its relation. */
 	@ManyToOne
 	@JoinColumn(name="relation_fk")
 	protected Relation relation;
 	
-	/** Supports securing a name before an Attribute is actually persisted. */
-	private static Set<String> attributesBeingCreated = new HashSet<>();
-	
 	/**
 	 * The attribute's name without the relation name included (which is
 	 * necessary in the primary key {@link #name} to avoid conflicts).
@@ -146,6 +151,9 @@ public abstract class Attribute extends AbstractFunction {
 	 * attributes has a different relation. 
 	 */
 	protected void checkSubattributeRelationsMatch() throws SubattributeRelationMismatchException {
+		Batch batch = currentBatch.get();
+		if (batch != null && ! batch.checked.add(this))
+			return; //already checked, along with its sub-attributes, for an earlier attribute in the batch
 		for (Attribute subattr : getSubattributes()) {
 			subattr.checkSubattributeRelationsMatch();
 			if (this.relation == null)
@@ -221,43 +229,42 @@ public abstract class Attribute extends AbstractFunction {
 	//--Attribute construction-------------------------------------------------
 
 	/**
-	 * Finds a name that is not in use and records it in
-	 * {@link #attributesBeingCreated} so it cannot be used by any other
-	 * attributes currently being created. For sequentially numbered names
-	 * ensure the {@code initialName} ends with a sequence of numerals; the
-	 * search for an unused name will begin at 1, however, regardless of what
-	 * sequence is at the end of {@code initialName}.
+	 * Finds a name that is not in use and reserves it with
+	 * {@link NameSequences} so it cannot be used by any other attributes
+	 * currently being created. For sequentially numbered names ensure the
+	 * {@code initialName} ends with a sequence of numerals; if it is taken,
+	 * the search for an unused name continues after the highest number in
+	 * use. Each relation's numbered names have their own counter, so numbers
+	 * already taken are not probed again.
 	 * <p>
 	 * Yes, this duplicates such unique identity finding code as is already in
 	 * the database, but this allows the use of names, rather than simple
 	 * integer IDs.
 	 */
 	private static String secureName(String relationName, String initialName) {
-		synchronized (attributesBeingCreated) {
-			//Numbered names can be accessed by providing an number at the end of 
-			String format = (initialName.matches("[^\\d]+\\d+$") ? initialName.replaceFirst("\\d+$", "") : initialName) + "%d";
-			String finalName = initialName;
-			int i = 1;
-			String compositeName = generateCompositeName(relationName, finalName);
-			while (Attribute.findById(compositeName) != null || attributesBeingCreated.contains(compositeName)) {
-				finalName = String.format(format, i);
-				compositeName = generateCompositeName(relationName, finalName);
-				i++;
-			}
-			attributesBeingCreated.add(compositeName);
-			return finalName;
-		}
+		//Numbered names can be accessed by providing an number at the end of 
+		String format = (initialName.matches("[^\\d]+\\d+$") ? initialName.replaceFirst("\\d+$", "") : initialName) + "%d";
+		String compositeName = NameSequences.reserve(generateCompositeName(relationName, initialName),
+				generateCompositeName(relationName.replace("%", "%%"), format), ATTRIBUTE_IN_USE);
+		return compositeName.substring( generateCompositeName(relationName, "").length() );
 	}
+	
+	/** Tests whether a composite attribute name is already taken. */
+	private static final NameSequences.InUse ATTRIBUTE_IN_USE = new NameSequences.InUse() {
+		public boolean test(String compositeName) { return Attribute.findById(compositeName) != null; }
+		public Collection<String> withPrefix(String prefix) {
+			return JPA.em().createQuery("select name from Attribute where name like :pattern escape '!'", String.class)
+					.setParameter("pattern", NameSequences.likePrefix(prefix))
+					.getResultList();
+		}
+	};
 
 	/**
-	 * Removes the given name from the set of attributes currently being
-	 * created. Should be called if the attempt to persist the attribute
-	 * failed, too.
+	 * Releases the reservation of the given name. Should be called if the
+	 * attempt to persist the attribute failed, too.
 	 */
 	private static void nameSecured(String relationName, String name) {
-		synchronized (attributesBeingCreated) {
-			attributesBeingCreated.remove( generateCompositeName(relationName, name) );
-		}
+		NameSequences.release( generateCompositeName(relationName, name) );
 	}
 	
 	/**
@@ -290,11 +297,57 @@ public abstract class Attribute extends AbstractFunction {
 				attr.description = description;
 			attr.isParent = true;
 			attr.isDeletable = persistence.isDeletable();
-			attr.save();
+			persist(attr);
 			Logger.trace("Creating attribute: attr.isDeletable == %s", attr.isDeletable);
 			return attr;
 		} finally {
-			nameSecured(relationName, uniqueName);
+			Batch batch = currentBatch.get();
+			if (batch == null)
+				nameSecured(relationName, uniqueName);
+			else
+				batch.securedNames.add( generateCompositeName(relationName, uniqueName) ); //not visible to others until flushed
+		}
+	}
+	
+	/**
+	 * Creates all the given structured attributes in the current transaction,
+	 * returning them in the same order. References to existing attributes
+	 * are resolved only once across all the definitions, and the new
+	 * attributes are persisted without flushing until all have been created,
+	 * so that their inserts can be batched. The caller should roll back the
+	 * transaction if an exception is thrown.
+	 * @see #create(String, String, String, JsonElement, Persistence)
+	 */
+	public static List<Attribute> createAll(String relationName, List<Create> definitions, Persistence persistence)
+			throws SubattributeRelationMismatchException
+	{
+		Batch batch = new Batch();
+		currentBatch.set(batch);
+		try {
+			List<Attribute> created = new ArrayList<>( definitions.size() );
+			for (Create definition : definitions)
+				created.add( create(relationName, definition.name, definition.description, definition.attribute, persistence) );
+			for (Attribute attr : batch.persisted)
+				attr.willBeSaved = true; //so that fields set after persist(), such as relation and isParent, are flushed too
+			JPA.em().flush();
+			return created;
+		} finally {
+			for (Attribute attr : batch.persisted)
+				attr.willBeSaved = false;
+			currentBatch.remove();
+			for (String name : batch.securedNames)
+				NameSequences.release(name);
+		}
+	}
+	
+	/** Saves the attribute, or just makes it persistent if part of a batch. */
+	private static void persist(Attribute attr) {
+		Batch batch = currentBatch.get();
+		if (batch == null) {
+			attr.save();
+		} else if (! attr.isPersistent()) {
+			JPA.em().persist(attr);
+			batch.persisted.add(attr);
 		}
 	}
 	
@@ -344,9 +397,15 @@ public abstract class Attribute extends AbstractFunction {
 					attr = PrimitiveAttribute.create(compositeName, attrName, attrURI);
 				} else 	if ( Util.hostIsLocal(attrURI) || attrURI.getScheme().equals(LOCAL_URI_SCHEME) ) {
 					Logger.trace("Attribute believed to be local");
-					Map<String,String> routeArgs = Router.route("GET", attrURI.getPath());
-					Logger.trace("Play! route arguments extracted from URI are: %s", routeArgs);
-					Attribute existingAttr = Attribute.findById(routeArgs.get("relID"), routeArgs.get("id"));
+					Batch batch = currentBatch.get();
+					Attribute existingAttr = batch == null ? null : batch.references.get(attrURI.getPath());
+					if (existingAttr == null) {
+						Map<String,String> routeArgs = Router.route("GET", attrURI.getPath());
+						Logger.trace("Play! route arguments extracted from URI are: %s", routeArgs);
+						existingAttr = Attribute.findById(routeArgs.get("relID"), routeArgs.get("id"));
+						if (existingAttr != null && batch != null)
+							batch.references.put(attrURI.getPath(), existingAttr);
+					}
 					if (existingAttr != null) {
 						Logger.trace("Found existing attribute and will return immediately with a reference to it: " + existingAttr);
 						return existingAttr;
@@ -360,12 +419,24 @@ public abstract class Attribute extends AbstractFunction {
 		} catch (URISyntaxException urise) {
 			throw new RuntimeException (urise);
 		}
-		attr.save();
+		persist(attr);
 		attr.checkSubattributeRelationsMatch();
 		
 		return attr;
 	}
 	
+	/** Shared state for {@link #createAll(String, List, Persistence)}. */
+	private static class Batch {
+		/** Existing attributes already found, keyed by the path of the URI that referred to them. */
+		final Map<String,Attribute> references = new HashMap<>();
+		/** Attributes whose sub-attributes have already been checked for a consistent relation. */
+		final Set<Attribute> checked = Collections.newSetFromMap( new IdentityHashMap<Attribute,Boolean>() );
+		/** New attributes made persistent, whose later changes must also be written when flushed. */
+		final List<Attribute> persisted = new ArrayList<>();
+		/** Composite names reserved for the new attributes, released once they are flushed. */
+		final List<String> securedNames = new ArrayList<>();
+	}
+	
 	//--Requests---------------------------------------------------------------
 	
 	public static class Create extends PSIMessage {
@@ -387,6 +458,29 @@ public abstract class Attribute extends AbstractFunction {
 	}
 
 
+	/** A request to create several attributes at once. */
+	public static class CreateList extends PSIMessage {
+		/** Definitions of the attributes to create. */
+		public List<Create> attributes;
+
+		public boolean isValid() {
+			if (super.isValid() && validateAllNonNull(attributes)) {
+				if (attributes.isEmpty()) {
+					addBadMessage("At least one attribute definition must be given.");
+					return false;
+				}
+				for (Create definition : attributes)
+					if (definition == null || ! definition.isValid()) {
+						addBadMessage(definition == null ? "Attribute definitions cannot be null." : definition.getValidationErrorMessage());
+						return false;
+					}
+				return true;
+			}
+			return false;
+		}
+	}
+
+
 	//--Responses--------------------------------------------------------------
 	
 	public static class Description extends PSIResource {
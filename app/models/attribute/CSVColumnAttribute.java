@@ -41,4 +41,20 @@ public class CSVColumnAttribute extends PrimitiveAttribute {
 		return type.jsonFromJSONString( instance.getAsJsonArray().get(index) );
 	}
 	
+	/**
+	 * Parses the relevant cell of every instance straight into a column of
+	 * this attribute's {@link #type}, without creating a JSON value for each.
+	 */
+	public models.transformer.Column apply(models.transformer.Column instances) {
+		models.transformer.Column column = models.transformer.Column.allocate(type, instances.size());
+		for (int i = 0, c = instances.size(); i < c; i++) {
+			JsonElement cell = instances.get(i).getAsJsonArray().get(index);
+			if (column instanceof models.transformer.Column.Values) //types without a primitive column must still be converted
+				column.set(i, type.jsonFromJSONString(cell));
+			else
+				column.parse(i, cell.isJsonNull() ? null : cell.getAsString());
+		}
+		return column;
+	}
+	
 }
\ No newline at end of file
@@ -7,6 +7,7 @@ import javax.persistence.Entity;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
+import models.transformer.Column;
 import util.JSONType;
 
 /**
@@ -46,4 +47,15 @@ public class ObjectPropertyAttribute extends PrimitiveAttribute {
 		return curr;
 	}
 	
+	/**
+	 * Extracts the property from every instance and stores the values in a
+	 * column of this attribute's {@link #type} if they all conform to it.
+	 */
+	public Column apply(Column instances) {
+		JsonElement[] values = new JsonElement[ instances.size() ];
+		for (int i = 0; i < values.length; i++)
+			values[i] = apply( instances.get(i) );
+		return Column.of(values, type);
+	}
+	
 }
\ No newline at end of file
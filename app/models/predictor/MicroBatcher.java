@@ -0,0 +1,181 @@
+package models.predictor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+
+import models.transformer.BadValueException;
+import play.Logger;
+import play.Play;
+import util.ConfKeys;
+
+/**
+ * Coalesces concurrent requests to apply one predictor to single values
+ * into batches, which are applied through the predictor's batch path
+ * ({@link Predictor#apply(java.util.Iterator)}), so that for example a
+ * scikit learn predictor makes one request to its service per batch rather
+ * than per value.
+ * <p>
+ * The first request to arrive when no batch is open opens one and leads
+ * it: it waits for up to {@link ConfKeys#MICRO_BATCH_WINDOW_MS} for others
+ * to join (or until {@link ConfKeys#MICRO_BATCH_MAX_SIZE} have), then
+ * applies its own predictor to the whole batch on its own thread, while
+ * the others wait for their results. If the batch fails, for example
+ * because one of its values is invalid, each request applies the predictor
+ * to its own value instead, so that it gets its own result or error.
+ * <p>
+ * Waiting requests hold their threads from Play's request pool, so a batch
+ * is never larger than that pool ({@code play.pool}): once every thread has
+ * joined the open batch, it is applied without waiting for the rest of its
+ * window, since no other request could join it.
+ * <p>
+ * Batching is configured per predictor type (such as {@code weka} or
+ * {@code sklearn}, the predictor class name without {@code Predictor}), by
+ * appending the type to the configuration keys; it is disabled unless a
+ * window is set.
+ */
+public final class MicroBatcher {
+	/** Batchers of the predictors applied since start up, keyed by name. */
+	private static final ConcurrentMap<String,MicroBatcher> batchers = new ConcurrentHashMap<>();
+	/** Threads serving requests, and so the most requests that can wait in a batch. */
+	private static final int poolSize = Integer.parseInt( Play.configuration.getProperty("play.pool",
+			String.valueOf(Play.mode != null && Play.mode.isDev() ? 1 : Runtime.getRuntime().availableProcessors() + 1)) );
+
+	private final long window;
+	private final int maxSize;
+	/** The batch that requests currently join, if any. */
+	private Batch open = null;
+
+	private MicroBatcher(long window, int maxSize) {
+		this.window = window;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Applies the predictor to the single value, as part of a batch if
+	 * batching is enabled for its type.
+	 */
+	public static JsonElement apply(Predictor predictor, JsonElement value) throws BadValueException {
+		MicroBatcher batcher = forPredictor(predictor);
+		if (batcher == null)
+			return predictor.apply(value);
+		JsonElement result = batcher.submit(predictor, value);
+		return result != null ? result : predictor.apply(value); //if the batch failed
+	}
+
+	/** Discards the batcher of the given predictor; call when it is deleted. */
+	public static void forget(String predictorID) {
+		batchers.remove(predictorID);
+	}
+
+	//--Internals--------------------------------------------------------------
+
+	/** Returns the batcher for the given predictor, or {@code null} if batching is disabled for its type. */
+	private static MicroBatcher forPredictor(Predictor predictor) {
+		MicroBatcher batcher = batchers.get(predictor.name);
+		if (batcher != null)
+			return batcher;
+		String type = predictor.getClass().getSimpleName().replaceFirst("Predictor$", "").toLowerCase();
+		long window = Long.parseLong( Play.configuration.getProperty(ConfKeys.MICRO_BATCH_WINDOW_MS + "." + type, "0") );
+		int maxSize = Math.min(poolSize, Integer.parseInt( Play.configuration.getProperty(ConfKeys.MICRO_BATCH_MAX_SIZE + "." + type, "64") ));
+		if (window <= 0 || maxSize <= 1)
+			return null;
+		batcher = new MicroBatcher(window, maxSize);
+		MicroBatcher existing = batchers.putIfAbsent(predictor.name, batcher);
+		return existing != null ? existing : batcher;
+	}
+
+	/** Adds the value to a batch and returns its result, or {@code null} if the batch failed. */
+	private JsonElement submit(Predictor predictor, JsonElement value) {
+		Batch batch;
+		int index;
+		boolean isLeader;
+		synchronized (this) {
+			isLeader = open == null;
+			if (isLeader)
+				open = new Batch();
+			batch = open;
+			index = batch.values.size();
+			batch.values.add(value);
+			if (batch.values.size() >= maxSize) {
+				open = null; //full, so later requests start another
+				notifyAll();
+			}
+		}
+		if (isLeader)
+			lead(predictor, batch);
+		return batch.result(index);
+	}
+
+	/** Waits for the batch to fill or its window to pass, then applies the predictor to it. */
+	private void lead(Predictor predictor, Batch batch) {
+		try {
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + window;
+				long remaining = window;
+				while (open == batch && remaining > 0) {
+					wait(remaining);
+					remaining = deadline - System.currentTimeMillis();
+				}
+				if (open == batch)
+					open = null;
+			}
+			if (batch.values.size() == 1) {
+				batch.fail(); //nothing to coalesce, so apply as a single value
+				return;
+			}
+			batch.complete( predictor.apply(batch.values.iterator()) );
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			Logger.debug("Batch of %d values failed for predictor '%s', so applying each alone: %s", batch.values.size(), predictor.name, e);
+		} finally {
+			synchronized (this) {
+				if (open == batch) //if interrupted while waiting
+					open = null;
+			}
+			batch.fail(); //unless already complete
+		}
+	}
+
+	/** Values submitted together, and their results once applied. */
+	private static class Batch {
+		/** Guarded by the batcher until the batch is closed, and unchanged after. */
+		final List<JsonElement> values = new ArrayList<>();
+		private JsonArray results = null;
+		private boolean isDone = false;
+
+		synchronized void complete(JsonArray results) {
+			this.results = results;
+			isDone = true;
+			notifyAll();
+		}
+
+		synchronized void fail() {
+			if (! isDone) {
+				isDone = true;
+				notifyAll();
+			}
+		}
+
+		/** Returns the result for the value at the given index, or {@code null} if the batch failed. */
+		synchronized JsonElement result(int index) {
+			boolean isInterrupted = false;
+			while (! isDone) {
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					isInterrupted = true;
+				}
+			}
+			if (isInterrupted)
+				Thread.currentThread().interrupt();
+			return results != null && index < results.size() ? results.get(index) : null;
+		}
+	}
+
+}
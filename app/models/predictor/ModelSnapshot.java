@@ -0,0 +1,90 @@
+package models.predictor;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import util.ModelCache;
+import util.ModelCodec;
+import util.ModelStore;
+
+/**
+ * One version of a predictor's trained model: either a reference to its
+ * encoded bytes in the {@link ModelStore} or, for a version not saved
+ * yet, the {@linkplain ModelCodec encoded} bytes themselves, and (once needed) the deserialised model
+ * shared through the {@link ModelCache}. Snapshots and their models are
+ * never modified; an update produces a new snapshot, so a request keeps
+ * using the version it started with however the predictor is updated
+ * meanwhile.
+ */
+final class ModelSnapshot {
+	final String predictor;
+	final long version;
+	/** Reference to the stored model, or {@code null} if this version has not been stored. */
+	final String ref;
+	/** The encoded model, uncompressed, if it has not been stored, otherwise {@code null}. */
+	final byte[] bytes;
+	private volatile Serializable model;
+	/** The serialised model's size, once found. */
+	private volatile long size = -1;
+
+	/** A snapshot of a stored model. */
+	ModelSnapshot(String predictor, long version, String ref, Serializable model) {
+		this(predictor, version, ref, null, model);
+	}
+
+	/** A snapshot of a model not stored yet. */
+	ModelSnapshot(String predictor, long version, byte[] bytes) {
+		this(predictor, version, null, bytes, null);
+	}
+
+	private ModelSnapshot(String predictor, long version, String ref, byte[] bytes, Serializable model) {
+		this.predictor = predictor;
+		this.version = version;
+		this.ref = ref;
+		this.bytes = bytes;
+		this.model = model;
+	}
+
+	/**
+	 * Returns the model, which may be shared with concurrent requests, so
+	 * synchronise on it while using it.
+	 */
+	Serializable model() {
+		if (model == null)
+			model = load("predictor");
+		return model;
+	}
+
+	/**
+	 * Returns the {@code k}th replica of the model, for classifying part of
+	 * a batch alongside other replicas; replica 0 is {@link #model()}.
+	 */
+	Serializable replica(int k) {
+		return k == 0 ? model() : load("predictor#" + k);
+	}
+
+	/** Returns a new copy of the model, for the caller's use alone. */
+	Object copy() throws IOException {
+		return ref != null ? ModelStore.get().read(ref) : ModelCodec.decode(bytes);
+	}
+
+	/**
+	 * Returns the size of the serialised model, before any compression, as
+	 * read from its header when first needed.
+	 */
+	long size() throws IOException {
+		if (size < 0) {
+			ModelCodec.Header header = ref != null ? ModelStore.get().readHeader(ref) : ModelCodec.readHeader(bytes);
+			if (header.size >= 0)
+				size = header.size;
+			else
+				size = ref != null ? ModelStore.get().size(ref) : bytes.length;
+		}
+		return size;
+	}
+
+	private Serializable load(String part) {
+		return (Serializable) (ref != null ? ModelCache.getStored(predictor, version, part, ref) : ModelCache.get(predictor, version, part, bytes));
+	}
+
+}
@@ -0,0 +1,372 @@
+package models.predictor;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+
+import play.Logger;
+import play.Play;
+import play.db.jpa.JPA;
+import play.jobs.Every;
+import play.jobs.Job;
+import play.jobs.OnApplicationStart;
+import play.jobs.OnApplicationStop;
+import play.libs.F;
+import play.libs.Time;
+import util.ConfKeys;
+import util.ModelCodec;
+import util.ModelStore;
+import util.UpdateLog;
+import weka.classifiers.UpdateableClassifier;
+import weka.core.Instances;
+
+/**
+ * Write-behind for updates to {@link WekaPredictor}s. Rather than
+ * re-serialising and saving the whole model for every update request, an
+ * update is applied to a working copy of the predictor's model, which is
+ * kept in memory from then on, and recorded in its {@link UpdateLog}; the
+ * request completes once the log record is durable.
+ * <p>
+ * Updates to one predictor are made by one writer at a time, and the working
+ * copy is never used for inference: requests use the latest published
+ * {@link ModelSnapshot}, which is copied from the working copy when first
+ * needed after an update. A request never waits for an update in progress,
+ * but uses the previous snapshot instead. The model is saved to the
+ * database (checkpointed) in the background once
+ * {@link ConfKeys#UPDATE_LOG_CHECKPOINT_UPDATES} updates are pending or the
+ * oldest has waited {@link ConfKeys#UPDATE_LOG_CHECKPOINT_INTERVAL}, and
+ * when the application stops. Logged updates beyond the saved model are
+ * replayed at start up.
+ */
+public final class PendingUpdates {
+	private PendingUpdates() { }
+
+	private static final long checkpointUpdates = Long.parseLong( Play.configuration.getProperty(ConfKeys.UPDATE_LOG_CHECKPOINT_UPDATES, "100") );
+	private static final long checkpointInterval = 1000L * Time.parseDuration( Play.configuration.getProperty(ConfKeys.UPDATE_LOG_CHECKPOINT_INTERVAL, "30s") );
+
+	/** Current models of the predictors updated since start up, keyed by name. */
+	private static final ConcurrentMap<String,Live> models = new ConcurrentHashMap<>();
+
+	/** Returns the named predictor's models if it has been updated since start up, otherwise {@code null}. */
+	static Live current(String predictor) {
+		return models.get(predictor);
+	}
+
+	/**
+	 * Applies the given update values to the predictor's current model and
+	 * logs them, returning once the log record is durable.
+	 */
+	static void update(WekaPredictor predictor, JsonArray updateValues) {
+		UpdateLog log = UpdateLog.forPredictor(predictor.name);
+		Instances wekaDataset = new Instances(predictor.getWekaAttributeDetails(), 0);
+		Live live;
+		long sequence;
+		while (true) {
+			live = live(predictor);
+			live.writer.lock();
+			try {
+				if (live.isDiscarded()) //by a failed update while waiting
+					continue;
+				try {
+					for (JsonElement update : updateValues)
+						WekaPredictor.updateOne(live.working, wekaDataset, update.getAsJsonObject());
+					sequence = log.append(live.version + 1, updateValues);
+				} catch (IOException ioe) {
+					discardModel(predictor.name, live); //rebuilt from the database and log when next needed
+					throw new RuntimeException("Unable to log update", ioe);
+				} catch (Exception e) { //thrown by Weka if couldn't deal with new instance
+					discardModel(predictor.name, live); //as it may have been partly updated
+					throw new RuntimeException("Weka generated an exception during update", e);
+				}
+				synchronized (live) {
+					if (live.version++ == live.checkpointed)
+						live.pendingSince = System.currentTimeMillis();
+				}
+				break;
+			} finally {
+				live.writer.unlock();
+			}
+		}
+		try {
+			log.awaitDurable(sequence);
+		} catch (IOException ioe) {
+			//The update has been applied but not acknowledged, so the model is rebuilt from the database and log when next needed
+			discardModel(predictor.name, live);
+			throw new RuntimeException("Unable to log update", ioe);
+		}
+		if (live.version - live.checkpointed >= checkpointUpdates)
+			checkpointLater(predictor.name);
+	}
+
+	/** Forgets the named predictor's current model and deletes its log; call when it is deleted. */
+	static void discard(String predictor) {
+		Live live = models.get(predictor);
+		if (live != null)
+			discardModel(predictor, live);
+		if (UpdateLog.isEnabled())
+			UpdateLog.forPredictor(predictor).delete();
+	}
+
+	//--Internals--------------------------------------------------------------
+
+	/** Returns the predictor's current model, loading it (and replaying its log) if necessary. */
+	private static Live live(WekaPredictor predictor) {
+		Live live = models.get(predictor.name);
+		if (live != null)
+			return live;
+		synchronized (models) {
+			live = models.get(predictor.name);
+			if (live == null) {
+				try {
+					live = load(predictor);
+				} catch (Exception e) {
+					throw new RuntimeException("Unable to restore updates to predictor '" + predictor.name + "'", e);
+				}
+				models.put(predictor.name, live);
+			}
+			return live;
+		}
+	}
+
+	private static Live load(WekaPredictor predictor) throws Exception {
+		predictor.moveToModelStore();
+		//The log is read before the model since a checkpoint only discards log records once the model has been saved
+		List<UpdateLog.Record> records = UpdateLog.forPredictor(predictor.name).read();
+		Object[] saved = (Object[]) JPA.em()
+				.createQuery("select p.wekaPredictorRef, p.modelVersion from WekaPredictor p where p.name = :name")
+				.setParameter("name", predictor.name)
+				.getSingleResult();
+		long savedVersion = saved[1] == null ? 0 : (Long) saved[1];
+		Live live = new Live( new ModelSnapshot(predictor.name, savedVersion, (String) saved[0], null) );
+		Instances wekaDataset = new Instances(predictor.getWekaAttributeDetails(), 0);
+		for (UpdateLog.Record record : records) {
+			if (record.version <= live.version)
+				continue;
+			if (record.version != live.version + 1)
+				throw new IOException("Update log of predictor '" + predictor.name + "' skips from version " + live.version + " to " + record.version);
+			for (JsonElement update : record.values)
+				WekaPredictor.updateOne(live.working, wekaDataset, update.getAsJsonObject());
+			live.version = record.version;
+		}
+		if (live.version > savedVersion)
+			live.pendingSince = System.currentTimeMillis();
+		return live;
+	}
+
+	private static void discardModel(String predictor, Live live) {
+		models.remove(predictor, live);
+		synchronized (live) {
+			live.discarded = true;
+		}
+	}
+
+	/** Starts saving the named predictor's current model, unless it is already being saved or there is nothing to save. */
+	private static void checkpointLater(final String predictor) {
+		final Live live = models.get(predictor);
+		if (live == null)
+			return;
+		synchronized (live) {
+			if (live.checkpointing || live.discarded || live.version == live.checkpointed)
+				return;
+			live.checkpointing = true;
+		}
+		new Checkpoint(predictor, live).now().onRedeem(new F.Action<F.Promise<Long>>() {
+			public void invoke(F.Promise<Long> saved) { //called once the job's transaction has been committed (or has failed)
+				checkpointed(predictor, live, saved.getOrNull());
+			}
+		});
+	}
+
+	/**
+	 * Saves the current model to the {@link ModelStore} and its reference
+	 * to the database, returning its version, or {@code null} if there was
+	 * nothing to save.
+	 */
+	private static Long save(String predictor, Live live) throws IOException {
+		ModelSnapshot snapshot;
+		live.writer.lock();
+		try {
+			if (live.isDiscarded())
+				return null;
+			snapshot = live.publish();
+		} finally {
+			live.writer.unlock();
+		}
+		String ref = snapshot.ref != null ? snapshot.ref : ModelStore.get().put( ModelCodec.compress(snapshot.bytes) );
+		int saved = JPA.em()
+				.createQuery("update WekaPredictor p set p.wekaPredictorRef = :ref, p.modelVersion = :version where p.name = :name")
+				.setParameter("ref", ref)
+				.setParameter("version", snapshot.version)
+				.setParameter("name", predictor)
+				.executeUpdate();
+		return saved == 0 ? null : snapshot.version; //none if deleted meanwhile
+	}
+
+	private static void checkpointed(String predictor, Live live, Long version) {
+		synchronized (live) {
+			live.checkpointing = false;
+			if (version == null || version <= live.checkpointed)
+				return;
+			live.checkpointed = version;
+			if (live.version > version)
+				live.pendingSince = System.currentTimeMillis();
+		}
+		try {
+			UpdateLog.forPredictor(predictor).truncate(version);
+		} catch (IOException ioe) {
+			Logger.warn(ioe, "Unable to discard saved updates from the log of predictor '%s'", predictor);
+		}
+	}
+
+	//--Nested classes---------------------------------------------------------
+
+	/** The working and published models of a predictor, and their state relative to the saved model. */
+	static class Live {
+		/** Held while updating or copying the working model. */
+		final ReentrantLock writer = new ReentrantLock();
+		/** The model that updates are applied to, only by the holder of {@link #writer}. */
+		final UpdateableClassifier working;
+		/** The latest snapshot of the working model available to requests. */
+		private volatile ModelSnapshot published;
+		/** The working model's version; the remaining fields are guarded by this object's lock. */
+		volatile long version;
+		/** The version most recently saved to the database. */
+		long checkpointed;
+		/** When the oldest update not yet saved was made. */
+		long pendingSince;
+		boolean checkpointing = false;
+		/** Set once the model is no longer current, after which it is never saved. */
+		boolean discarded = false;
+
+		/** Starts from the given saved model, of which the working model is a private copy. */
+		Live(ModelSnapshot saved) throws IOException {
+			this.published = saved;
+			this.working = (UpdateableClassifier) saved.copy();
+			this.version = this.checkpointed = saved.version;
+		}
+
+		/**
+		 * Returns the latest snapshot, first copying the working model if it
+		 * has been updated since, unless an update is in progress, in which
+		 * case the previous snapshot is returned rather than waiting for it.
+		 */
+		ModelSnapshot published() {
+			ModelSnapshot snapshot = published;
+			if (snapshot.version == version || ! writer.tryLock())
+				return snapshot;
+			try {
+				return publish();
+			} finally {
+				writer.unlock();
+			}
+		}
+
+		/**
+		 * Brings the published snapshot up to date; the caller must hold
+		 * {@link #writer}. The copy is not compressed, since this may be on a
+		 * request's path and holds up updates; it is compressed when saved.
+		 */
+		ModelSnapshot publish() {
+			if (published.version != version)
+				published = new ModelSnapshot(published.predictor, version, ModelCodec.encode((Serializable) working, false));
+			return published;
+		}
+
+		/** Returns the version of the latest snapshot, without bringing it up to date. */
+		long publishedVersion() {
+			return published.version;
+		}
+
+		synchronized boolean isDiscarded() {
+			return discarded;
+		}
+	}
+
+	private static class Checkpoint extends Job<Long> {
+		private final String predictor;
+		private final Live live;
+
+		Checkpoint(String predictor, Live live) {
+			this.predictor = predictor;
+			this.live = live;
+		}
+
+		public Long doJobWithResult() throws IOException {
+			Long version = save(predictor, live);
+			if (version != null)
+				Logger.debug("Saved version %d of predictor '%s'", version, predictor);
+			return version;
+		}
+	}
+
+	/** Starts saving the models whose oldest pending update has waited long enough. */
+	@Every("5s")
+	public static class CheckpointStaleModels extends Job<Object> {
+		public void doJob() {
+			long now = System.currentTimeMillis();
+			for (Map.Entry<String,Live> entry : models.entrySet()) {
+				Live live = entry.getValue();
+				boolean isStale;
+				synchronized (live) {
+					isStale = live.version > live.checkpointed && now - live.pendingSince >= checkpointInterval;
+				}
+				if (isStale)
+					checkpointLater(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Replays logged updates that were not saved before the server stopped.
+	 * A log that cannot be replayed is left as it is for recovery by hand,
+	 * without stopping the server from starting.
+	 */
+	@OnApplicationStart
+	public static class ReplayUpdateLogs extends Job<Object> {
+		public void doJob() {
+			for (String name : UpdateLog.loggedPredictors()) {
+				try {
+					Predictor predictor = Predictor.findById(name);
+					if (! (predictor instanceof WekaPredictor)) {
+						UpdateLog.forPredictor(name).delete();
+						continue;
+					}
+					Live live = live((WekaPredictor) predictor);
+					if (live.version > live.checkpointed) {
+						Logger.info("Replayed %d logged update(s) to predictor '%s'", live.version - live.checkpointed, name);
+						checkpointLater(name);
+					} else {
+						models.remove(name, live);
+						UpdateLog.forPredictor(name).truncate(live.checkpointed);
+					}
+				} catch (IOException | RuntimeException e) {
+					Logger.error(e, "Unable to replay the update log of predictor '%s'; it has been kept for recovery", name);
+				}
+			}
+		}
+	}
+
+	/** Saves every model with pending updates; any left unsaved are replayed at the next start up. */
+	@OnApplicationStop
+	public static class SavePendingUpdates extends Job<Object> {
+		public void doJob() {
+			for (Map.Entry<String,Live> entry : models.entrySet()) {
+				if (entry.getValue().version > entry.getValue().checkpointed) {
+					try {
+						save(entry.getKey(), entry.getValue());
+					} catch (IOException | RuntimeException e) {
+						Logger.warn(e, "Unable to save predictor '%s'; its logged updates will be replayed", entry.getKey());
+					}
+				}
+			}
+		}
+	}
+
+}
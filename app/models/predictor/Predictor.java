@@ -1,6 +1,8 @@
 package models.predictor;
 
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.persistence.Entity;
 import javax.persistence.Inheritance;
@@ -19,6 +21,7 @@ import com.google.gson.JsonObject;
 
 import controllers.Learners;
 
+import util.NameSequences;
 import util.Util;
 
 
@@ -51,6 +54,16 @@ public abstract class Predictor extends Transformer {
 	 */
 	@Lob //since could be very long
 	public String updateSchema;
+	/**
+	 * Incremented whenever the trained model changes, so that copies of the
+	 * model kept outside the database can be told apart; {@code null} for
+	 * predictors stored before versions were kept, which are treated as
+	 * version 0.
+	 */
+	public Long modelVersion;
+	
+	/** Versions of the models changed since start up (other than by logged updates), keyed by predictor name. */
+	private static final ConcurrentMap<String,Long> changedVersions = new ConcurrentHashMap<>();
 	
 	/**
 	 * If training this predictor has been accepted by the server and the
@@ -160,20 +173,38 @@ public abstract class Predictor extends Transformer {
 	}
 	
 	public boolean isUpdatable() { return updateSchema != null; }
+	
+	/** Returns the current version of the trained model. */
+	public long getModelVersionNumber() { return modelVersion == null ? 0 : modelVersion; }
+	
+	/** Should be called by subclasses whenever they change the trained model. */
+	protected void modelChanged() {
+		modelVersion = (modelVersion == null ? 0 : modelVersion) + 1;
+		changedVersions.put(name, modelVersion);
+	}
+	
+	/**
+	 * Returns the version of the latest model published for the named
+	 * predictor, or {@code null} if its model has not changed since start
+	 * up. A request starting now uses this version or a later one, so results
+	 * cached under it were computed from it or a later one, never an earlier
+	 * one; finding it neither publishes nor copies the model.
+	 */
+	public static Long latestModelVersion(String predictor) {
+		PendingUpdates.Live live = PendingUpdates.current(predictor);
+		return live != null ? Long.valueOf( live.publishedVersion() ) : changedVersions.get(predictor); //boxed, lest a null version be unboxed
+	}
 
 	/**
 	 * Generates a timestamp based name incorporating the given
-	 * {@code learnerName} and {@code relationName}. Generates names until
-	 * it finds a unique one, which is only an issue when servicing two
-	 * concurrent requests.
+	 * {@code learnerName} and {@code relationName}. Concurrent requests for
+	 * the same learner and relation are given distinct timestamps, so the
+	 * database is normally consulted only once.
 	 */
-	public static synchronized String generateName(String learnerName, String relationName) {
-		String lead = learnerName + "_" + relationName;
-		String name = null;
-		do {
-			name = Util.generateTimeStampBasedName(lead, new Date());
-		} while (findById(name) != null);
-		return name;
+	public static String generateName(String learnerName, String relationName) {
+		return NameSequences.timeStamped(learnerName + "_" + relationName, new NameSequences.InUse() {
+			public boolean test(String name) { return findById(name) != null; }
+		});
 	}
 	
 	public JsonObject getReportableProvenance() {
@@ -202,6 +233,11 @@ public abstract class Predictor extends Transformer {
 	 */
 	public abstract void update(JsonArray updateValues);
 	
+	/** Persists the predictor after an {@linkplain #update(JsonArray) update}. */
+	public void saveUpdate() {
+		save();
+	}
+	
 	/**
 	 * Should be used by subclasses to modify the updated date in the
 	 * predictor's provenance.
@@ -1,6 +1,9 @@
 package models.predictor;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
 
 import javax.persistence.Entity;
 
@@ -11,11 +14,13 @@ import com.google.gson.JsonPrimitive;
 
 import play.Logger;
 import play.Play;
+import play.libs.F.Promise;
 import play.libs.WS;
 import play.libs.WS.HttpResponse;
 import util.ConfKeys;
 import util.HttpUtil;
-import util.SKLearnTrainer;
+import util.MatrixPayload;
+import util.SKLearnService;
 import util.TrainingException;
 
 /**
@@ -45,6 +50,10 @@ public class SKLearnPredictor extends Predictor {
 	//Loading appears to have to be delayed, at least when running in dev mode
 	protected static String predictorRoot = null;
 	
+	private static final boolean sendsBinaryPayloads = Boolean.parseBoolean( Play.configuration.getProperty(ConfKeys.SKLEARN_BINARY_PAYLOADS, "false") );
+	private static final int chunkSize = Math.max(1, Integer.parseInt( Play.configuration.getProperty(ConfKeys.SKLEARN_CHUNK_SIZE, "1000") ));
+	private static final int chunksInFlight = Math.max(1, Integer.parseInt( Play.configuration.getProperty(ConfKeys.SKLEARN_CHUNKS_IN_FLIGHT, "4") ));
+	
 	/**
 	 * Name of the sklearn predictor in the web.py service; an anti-pattern
 	 * since it must then create the URI later, but that is actually more flexible.
@@ -74,11 +83,27 @@ public class SKLearnPredictor extends Predictor {
 	 * Throws a {@link play.mvc.results.Error} if the sklearn service is not
 	 * running, which allows the error to be immediately presented as a 500
 	 * internal server error rather than revealing the Java exception's type.
+	 * Consults the {@link SKLearnService}'s cached health rather than the
+	 * service itself; if this returns, the outcome of the request must be
+	 * reported, as {@link #post(String, JsonObject)} does, or that it had
+	 * none.
 	 */
 	private void assertServiceIsUp() {
-		if (! SKLearnTrainer.serviceIsUp())
+		if (! SKLearnService.allowRequest())
 			throw new play.mvc.results.Error("This predictor is backed by scikit-learn, but the internal scikit-learn service is not currently running");
 	}
+	
+	/** Posts a request to the sklearn service, reporting its outcome to the {@link SKLearnService}. */
+	private static JsonObject post(String uri, JsonObject request) {
+		try {
+			JsonObject response = HttpUtil.postJSON(uri, request);
+			SKLearnService.succeeded();
+			return response;
+		} catch (RuntimeException e) {
+			SKLearnService.failed(e);
+			throw e;
+		}
+	}
 
 
 	//--Entity-related methods-------------------------------------------------
@@ -88,7 +113,14 @@ public class SKLearnPredictor extends Predictor {
 		//Note that since not persisting joined transformers have no way of knowing if
 		//(at some point in the past) a joined transformer was created that used this one. 
 		Logger.trace("Deleting sklearn predictor model (%s) associated with SKLearnPredictor %s", predictorName, name);
-		HttpResponse response = WS.url(getPredictorURI(Operation.DELETE)).delete();
+		HttpResponse response;
+		try {
+			response = WS.url(getPredictorURI(Operation.DELETE)).delete();
+			SKLearnService.succeeded();
+		} catch (RuntimeException e) {
+			SKLearnService.failed(e);
+			throw e;
+		}
 		if (! response.success())
 			throw new RuntimeException("Unable to delete predictor in scikit-learn service. Details: " + response.getString());
 		return super.delete();
@@ -99,17 +131,45 @@ public class SKLearnPredictor extends Predictor {
 	@Override
 	public JsonElement apply(JsonElement value) throws ArrayLengthMismatchException {
 		assertServiceIsUp();
-		return apply(value, false);
+		try {
+			return apply(value, false);
+		} catch (RuntimeException e) {
+			SKLearnService.abandoned(); //in case it failed before the request was sent
+			throw e;
+		}
 	}
 	
+	/**
+	 * Sends the values to the sklearn service in chunks of
+	 * {@link ConfKeys#SKLEARN_CHUNK_SIZE}, with up to
+	 * {@link ConfKeys#SKLEARN_CHUNKS_IN_FLIGHT} requests outstanding, so that
+	 * only that many values are held for sending at once and the service
+	 * predicts one chunk while the next is being gathered and sent. The
+	 * service is not consulted if there are no values.
+	 */
 	@Override
 	public JsonArray apply(Iterator<JsonElement> values) throws ArrayLengthMismatchException {
+		JsonArray results = new JsonArray();
+		if (! values.hasNext())
+			return results;
 		assertServiceIsUp();
-		//Ugh, tedious, but will still be more efficient to package all the values up for transmission to the scikit learn service.
-		JsonArray arrayValue = new JsonArray();
-		while (values.hasNext())
-			arrayValue.add(values.next());
-		return apply(arrayValue, true).getAsJsonArray();
+		try {
+			Deque<Promise<HttpResponse>> inFlight = new ArrayDeque<>(chunksInFlight);
+			while (values.hasNext()) {
+				if (inFlight.size() >= chunksInFlight) //results are collected in the order the chunks were sent
+					results.addAll( inferenceResult(inFlight.removeFirst()).getAsJsonArray() );
+				JsonArray chunk = new JsonArray();
+				while (chunk.size() < chunkSize && values.hasNext())
+					chunk.add(values.next());
+				inFlight.addLast( sendInference(chunk, true) );
+			}
+			while (! inFlight.isEmpty())
+				results.addAll( inferenceResult(inFlight.removeFirst()).getAsJsonArray() );
+		} catch (RuntimeException e) {
+			SKLearnService.abandoned(); //in case reading the values failed before any outcome was reported
+			throw e;
+		}
+		return results;
 	}
 	
 	/**
@@ -120,12 +180,48 @@ public class SKLearnPredictor extends Predictor {
 	 * features (error is detected by sklearn service)
 	 */
 	private JsonElement apply(JsonElement value, boolean multiple) throws ArrayLengthMismatchException {
-		//Repack request into JSON wrapper for sending to sklearn service
+		return inferenceResult( sendInference(value, multiple) );
+	}
+	
+	/** Starts a request for predictions of single or multiple values, returning the promised response. */
+	private Promise<HttpResponse> sendInference(JsonElement value, boolean multiple) {
+		//Repack request into JSON wrapper (or a binary matrix, if possible and enabled) for sending to sklearn service
 		JsonObject req = new JsonObject();
-		req.add(VALUE_ARG, value);
 		if (multiple)
 			req.add("multiple", new JsonPrimitive(true));
-		JsonObject response = HttpUtil.postJSON(getPredictorURI(Operation.INFER), req);
+		byte[] binary = multiple && sendsBinaryPayloads ? MatrixPayload.encode(req, VALUE_ARG, value.getAsJsonArray()) : null;
+		if (binary == null)
+			req.add(VALUE_ARG, value);
+		try {
+			String uri = getPredictorURI(Operation.INFER);
+			return binary != null ? HttpUtil.postBytesAsync(uri, binary, MatrixPayload.MIME_TYPE) : HttpUtil.postJSONAsync(uri, req);
+		} catch (RuntimeException e) {
+			SKLearnService.failed(e);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Waits for a response to {@link #sendInference(JsonElement, boolean)},
+	 * reporting its outcome to the {@link SKLearnService}, and returns the
+	 * predictions.
+	 */
+	private static JsonElement inferenceResult(Promise<HttpResponse> promisedResponse) throws ArrayLengthMismatchException {
+		JsonObject response;
+		try {
+			response = HttpUtil.toJsonObject(promisedResponse.get());
+			SKLearnService.succeeded();
+		} catch (InterruptedException ie) {
+			SKLearnService.abandoned();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the scikit-learn service", ie);
+		} catch (ExecutionException ee) {
+			SKLearnService.failed(ee.getCause());
+			throw new RuntimeException("Unable to obtain predictions from the scikit-learn service", ee.getCause());
+		} catch (RuntimeException e) {
+			SKLearnService.failed(e);
+			throw e;
+		}
 		if (response.has("badRequest"))
 			throw new ArrayLengthMismatchException(response.get("expected").getAsInt(), response.get("actual").getAsInt());
 		if (! response.has(VALUE_ARG))
@@ -140,9 +236,10 @@ public class SKLearnPredictor extends Predictor {
 		assertServiceIsUp();
 		JsonObject request = new JsonObject();
 		request.add("updates", updateValues);
-		JsonObject response = HttpUtil.postJSON(getPredictorURI(Operation.UPDATE), request);
+		JsonObject response = post(getPredictorURI(Operation.UPDATE), request);
 		if (! response.get("success").getAsBoolean() )
 			throw new RuntimeException("Error updating scikit learn predictor. Details: " + response.get("body").getAsString());
+		modelChanged(); //so that results cached under the previous version are not used
 		reviseUpdatedDate();
 	}
 
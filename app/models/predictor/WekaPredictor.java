@@ -1,20 +1,46 @@
 package models.predictor;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.persistence.Entity;
 import javax.persistence.Lob;
 import javax.persistence.Transient;
 
-import org.apache.commons.lang.SerializationUtils;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 
+import models.transformer.BadValueException;
+import models.transformer.Column;
 import play.Logger;
+import play.Play;
+import play.db.jpa.JPA;
+import play.jobs.Every;
+import play.jobs.Job;
+import play.jobs.OnApplicationStart;
+import play.libs.Time;
+import util.ConfKeys;
+import util.JSONType;
+import util.ModelCache;
+import util.ModelStore;
+import util.UpdateLog;
 import util.WekaTrainer;
 import weka.classifiers.Classifier;
 import weka.classifiers.UpdateableClassifier;
@@ -35,21 +61,36 @@ public class WekaPredictor extends Predictor {
 	private static final long serialVersionUID = 1L;
 	
 	/**
-	 * Serialised empty {@code Instances} describing WEKA Attributes and
-	 * indicating which is the class attribute.
+	 * Reference in the {@link ModelStore} to the serialised empty
+	 * {@code Instances} describing WEKA Attributes and indicating which is
+	 * the class attribute.
+	 */
+	public String wekaDatasetRef;
+	/** Reference in the {@link ModelStore} to the serialised trained WEKA predictor. */
+	public String wekaPredictorRef;
+	/**
+	 * Serialised {@code Instances}, as saved in the database before models
+	 * were kept in the {@link ModelStore}; {@code null} once
+	 * {@linkplain #moveToModelStore() moved} there.
 	 */
 	@Lob
 	public byte[] wekaDatasetBytes;
-	/** Serialised trained WEKA predictor. */
+	/** Serialised trained WEKA predictor, as saved in the database before the {@link ModelStore}. */
 	@Lob
 	public byte[] wekaPredictorBytes;
 
-	/** Actual WEKA {@code Instances} object; create copies when using. */
+	/**
+	 * Actual WEKA {@code Instances} object; create copies when using. May be
+	 * shared with other requests through the {@link ModelCache}.
+	 */
 	@Transient
 	private Instances wekaDataset;
-	/** Actual trained WEKA predictor. */
+	/**
+	 * The saved version of the trained WEKA predictor, unless it has been
+	 * updated since start up (see {@link #snapshot()}).
+	 */
 	@Transient
-	private Serializable wekaPredictor;
+	private ModelSnapshot saved;
 	
 	public WekaPredictor(String name, String description, String learnerName, String trainingStatus)
 	{
@@ -68,51 +109,312 @@ public class WekaPredictor extends Predictor {
 	//--Entity-related methods-------------------------------------------------
 	
 	public synchronized Instances getWekaAttributeDetails() {
-		if (wekaDataset == null)
-			wekaDataset = (Instances) SerializationUtils.deserialize(wekaDatasetBytes);
+		if (wekaDataset == null) {
+			moveToModelStore();
+			wekaDataset = (Instances) ModelCache.getStored(name, getModelVersionNumber(), "dataset", wekaDatasetRef);
+		}
 		return wekaDataset;
 	}
 
 	public void setWekaAttributeDetails(Instances wekaDataset) {
 		this.wekaDataset = new Instances(wekaDataset, 0);
-		this.wekaDatasetBytes = SerializationUtils.serialize(this.wekaDataset);
+		this.wekaDatasetRef = store(this.wekaDataset);
+		modelChanged();
+	}
+	
+	/**
+	 * Returns the trained WEKA predictor of the latest {@linkplain #snapshot() snapshot}.
+	 * It may be shared with other requests, so synchronise on it while
+	 * predicting.
+	 */
+	public Serializable getWekaPredictor() {
+		return snapshot().model();
 	}
 	
-	public synchronized Serializable getWekaPredictor() {
-		if (wekaPredictor == null)
-			wekaPredictor = (Serializable) SerializationUtils.deserialize(wekaPredictorBytes);
-		return wekaPredictor;
+	public synchronized void setWekaPredictor(Serializable wekaPredictor) {
+		this.wekaPredictorRef = store(wekaPredictor);
+		modelChanged();
+		this.saved = new ModelSnapshot(name, super.getModelVersionNumber(), wekaPredictorRef, wekaPredictor);
 	}
 	
-	public void setWekaPredictor(Serializable wekaPredictor) {
-		this.wekaPredictor = wekaPredictor;
-		this.wekaPredictorBytes = SerializationUtils.serialize(wekaPredictor);
+	/** Returns the reference to the saved model in the {@link ModelStore}. */
+	String getWekaPredictorRef() {
+		moveToModelStore();
+		return wekaPredictorRef;
+	}
+	
+	private static String store(Serializable object) {
+		try {
+			return ModelStore.get().write(object);
+		} catch (IOException ioe) {
+			throw new RuntimeException("Unable to store WEKA model", ioe);
+		}
+	}
+	
+	/** Stores bytes serialised before the {@link util.ModelCodec} was introduced, which it still decodes. */
+	private static String storeSerialised(byte[] serialised) {
+		try {
+			return ModelStore.get().put(serialised);
+		} catch (IOException ioe) {
+			throw new RuntimeException("Unable to store WEKA model", ioe);
+		}
+	}
+	
+	/**
+	 * Moves the serialised objects of a predictor saved before models were
+	 * kept in the {@link ModelStore} there, leaving references in the
+	 * database, so that loading the predictor no longer loads its model.
+	 */
+	synchronized void moveToModelStore() {
+		if (wekaPredictorBytes == null && wekaDatasetBytes == null)
+			return;
+		if (wekaPredictorBytes != null)
+			wekaPredictorRef = storeSerialised(wekaPredictorBytes);
+		if (wekaDatasetBytes != null)
+			wekaDatasetRef = storeSerialised(wekaDatasetBytes);
+		JPA.em().createQuery("update WekaPredictor p set p.wekaPredictorRef = :predictor, p.wekaDatasetRef = :dataset, " +
+					"p.wekaPredictorBytes = null, p.wekaDatasetBytes = null where p.name = :name")
+				.setParameter("predictor", wekaPredictorRef)
+				.setParameter("dataset", wekaDatasetRef)
+				.setParameter("name", name)
+				.executeUpdate();
+		wekaPredictorBytes = wekaDatasetBytes = null;
+	}
+	
+	/**
+	 * Returns the latest version of the trained model available for
+	 * inference, which is never modified; a request should use one snapshot
+	 * throughout, so that all its predictions come from the same version. If
+	 * the predictor has been updated since start up then this is published
+	 * by {@link PendingUpdates} and may be newer than the saved model.
+	 */
+	synchronized ModelSnapshot snapshot() {
+		PendingUpdates.Live live = PendingUpdates.current(name);
+		if (live != null)
+			return live.published();
+		if (saved == null)
+			saved = new ModelSnapshot(name, super.getModelVersionNumber(), getWekaPredictorRef(), null);
+		return saved;
+	}
+	
+	/** Returns the version of the current model, which may not have been saved yet. */
+	@Override
+	public long getModelVersionNumber() {
+		PendingUpdates.Live live = PendingUpdates.current(name);
+		return live != null ? live.version : super.getModelVersionNumber();
+	}
+	
+	/** Adds the {@linkplain #getModelVersionNumber() model version}, which changes with every update. */
+	@Override
+	public JsonObject getReportableProvenance() {
+		JsonObject provenance = super.getReportableProvenance();
+		provenance.addProperty("modelVersion", getModelVersionNumber());
+		return provenance;
+	}
+	
+	/** Also discards any updates not yet saved. */
+	@Override
+	public void _delete() {
+		super._delete();
+		PendingUpdates.discard(name);
 	}
 
 	//--Transformer interface--------------------------------------------------
 
+	/** Fewest instances worth classifying on another thread. */
+	private static final int MIN_STRIPE = 512;
+	private static final int maxThreads = Math.max(1, Integer.parseInt( Play.configuration.getProperty(ConfKeys.WEKA_PREDICTION_THREADS,
+			String.valueOf( Runtime.getRuntime().availableProcessors() )) ));
+	/** Threads shared by all Weka predictors for classifying the stripes of large batches; created when first needed. */
+	private static ExecutorService executor;
+
 	public JsonElement apply(JsonElement value) throws ArrayLengthMismatchException {
 		try {
-			Instances wekaDataset = getWekaAttributeDetails();
-			Instance wekaInstance = constructWekaInstance(null, (JsonArray) value, wekaDataset, 1);
+			Instances header = new Instances(getWekaAttributeDetails(), 0);
+			Instance wekaInstance = constructWekaInstance(null, (JsonArray) value, header, 1);
 			
-			Serializable wekaPredictor = getWekaPredictor();
-			if (wekaPredictor instanceof Classifier)
-				return predictClass((Classifier) wekaPredictor, wekaInstance);
-			else if (wekaPredictor instanceof Clusterer)
-				return predictCluster((Clusterer) wekaPredictor, wekaInstance);
+			Serializable wekaPredictor = snapshot().model();
+			synchronized (wekaPredictor) { //Weka does not promise that prediction is thread safe
+				if (wekaPredictor instanceof Classifier)
+					return predictClass((Classifier) wekaPredictor, wekaInstance, header.classAttribute());
+				else if (wekaPredictor instanceof Clusterer)
+					return predictCluster((Clusterer) wekaPredictor, wekaInstance);
+			}
+			throw new UnsupportedOperationException("Only classifiers and clustering algorithms currently supported");
+		} catch (ArrayLengthMismatchException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException("Possibly WEKA generated an exception during prediction", e);
+		}
+	}
+	
+	@Override
+	public JsonArray apply(Iterator<JsonElement> values) throws BadValueException {
+		return apply( Column.of(values) ).toJsonArray();
+	}
+	
+	/**
+	 * Predicts the target of every instance in a column. Each instance is
+	 * filled into a reused buffer (directly from the element columns when the
+	 * instances are held element-wise, as produced by an array attribute) and
+	 * its prediction is written straight into a column of the output type.
+	 * Large columns are split into stripes that are classified in parallel,
+	 * each by its own replica of the model against its own copy of the
+	 * header, as Weka models are not thread safe.
+	 */
+	@Override
+	public Column apply(final Column values) throws BadValueException {
+		final Instances wekaDataset = getWekaAttributeDetails();
+		final int instanceSize = wekaDataset.numAttributes() - (wekaDataset.classIndex() >= 0 ? 1 : 0);
+		if (values instanceof Column.Tuples && ((Column.Tuples) values).width() < instanceSize)
+			throw new ArrayLengthMismatchException(instanceSize, ((Column.Tuples) values).width());
+		
+		final ModelSnapshot snapshot = snapshot();
+		Serializable wekaPredictor = snapshot.model();
+		final Column output;
+		if (wekaPredictor instanceof Classifier)
+			output = Column.allocate(wekaDataset.classAttribute().isNominal() ? JSONType.STRING : JSONType.NUMBER, values.size());
+		else if (wekaPredictor instanceof Clusterer)
+			output = Column.allocate(JSONType.INTEGER, values.size());
+		else
 			throw new UnsupportedOperationException("Only classifiers and clustering algorithms currently supported");
+		final boolean[] missing = new boolean[values.size()];
+		
+		final int n = values.size();
+		final int stripes = stripes(n, snapshot);
+		List<Future<Void>> others = new ArrayList<>();
+		try {
+			for (int s = 1; s < stripes; s++) {
+				final int k = s;
+				others.add( executor().submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						predict(snapshot.replica(k), wekaDataset, values, stripeStart(n, stripes, k), stripeStart(n, stripes, k + 1), output, missing);
+						return null;
+					}
+				}) );
+			}
+			predict(wekaPredictor, wekaDataset, values, 0, stripeStart(n, stripes, 1), output, missing); //the first stripe on this thread
+			for (Future<Void> other : others)
+				other.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ArrayLengthMismatchException)
+				throw (ArrayLengthMismatchException) e.getCause();
+			throw new RuntimeException("Possibly WEKA generated an exception during prediction", e.getCause());
 		} catch (ArrayLengthMismatchException e) {
 			throw e;
 		} catch (Exception e) {
 			throw new RuntimeException("Possibly WEKA generated an exception during prediction", e);
+		} finally {
+			for (Future<Void> other : others) //only has an effect if a stripe failed
+				other.cancel(true);
+		}
+		
+		for (int i = 0; i < n; i++)
+			if (missing[i])
+				output.set(i, JsonNull.INSTANCE);
+		return output;
+	}
+	
+	/**
+	 * Returns the number of stripes in which to classify {@code n} instances:
+	 * no more than there are threads, each of at least {@link #MIN_STRIPE}
+	 * instances, and with the extra replicas of the model taking no more than
+	 * half of the {@link ModelCache} (or each batch would deserialise them
+	 * afresh).
+	 */
+	private static int stripes(final int n, ModelSnapshot snapshot) {
+		if (n < 2 * MIN_STRIPE || maxThreads < 2)
+			return 1; //without finding the model's size
+		long replicas;
+		try {
+			replicas = ModelCache.capacity() / 2 / Math.max(1, snapshot.size());
+		} catch (IOException ioe) {
+			return 1; //and the model will fail to load
+		}
+		return (int) Math.max(1, Math.min( Math.min(maxThreads, n / MIN_STRIPE), 1 + replicas ));
+	}
+	
+	private static int stripeStart(final int n, final int stripes, final int k) {
+		return (int) ((long) n * k / stripes);
+	}
+	
+	private static synchronized ExecutorService executor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(maxThreads - 1, new ThreadFactory() { //the caller classifies one stripe itself
+				private final AtomicInteger count = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "weka-prediction-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+	
+	/**
+	 * Predicts the targets of instances {@code from} (inclusive) to
+	 * {@code to} (exclusive) of {@code values} into {@code output} using the
+	 * given model, which is held throughout. Missing instances are marked in
+	 * {@code missing} instead of in {@code output}, whose own mask is not
+	 * safe to fill from several threads.
+	 */
+	private static void predict(Serializable model, Instances wekaDataset, Column values, final int from, final int to,
+			Column output, boolean[] missing) throws Exception
+	{
+		Instances header = new Instances(wekaDataset, 0);
+		final int sourceOffset = header.classIndex() >= 0 ? 1 : 0;
+		final int numAttributes = header.numAttributes();
+		Column.Tuples tuples = values instanceof Column.Tuples ? (Column.Tuples) values : null;
+		double[] attrValues = new double[numAttributes];
+		if (sourceOffset > 0)
+			attrValues[0] = WekaTrainer.MISSING_VALUE; //the unknown target
+		
+		synchronized (model) { //replicas are confined to one stripe of a batch, but concurrent batches may share them
+			for (int i = from; i < to; i++) {
+				if (values.isMissing(i)) {
+					missing[i] = true;
+					continue;
+				}
+				if (tuples != null) {
+					for (int j = sourceOffset; j < numAttributes; j++)
+						attrValues[j] = wekaValue(header.attribute(j), tuples.elements[j - sourceOffset], i);
+				} else {
+					JsonArray source = values.get(i).getAsJsonArray();
+					if (source.size() < numAttributes - sourceOffset)
+						throw new ArrayLengthMismatchException(numAttributes - sourceOffset, source.size());
+					for (int j = sourceOffset; j < numAttributes; j++)
+						attrValues[j] = WekaTrainer.generateWekaValue(header.attribute(j), source.get(j - sourceOffset));
+				}
+				Instance wekaInstance = new DenseInstance(1, attrValues); //wraps rather than copies the buffer, which is only refilled once the instance is finished with
+				wekaInstance.setDataset(header);
+				if (model instanceof Classifier) {
+					double pred = ((Classifier) model).classifyInstance(wekaInstance);
+					if (output instanceof Column.Strings)
+						((Column.Strings) output).values[i] = header.classAttribute().value((int) pred);
+					else
+						((Column.Doubles) output).values[i] = pred;
+				} else {
+					((Column.Integers) output).values[i] = ((Clusterer) model).clusterInstance(wekaInstance);
+				}
+			}
 		}
 	}
 	
-	private JsonPrimitive predictClass(Classifier wekaClassifier, Instance wekaInstance) throws Exception {
+	/** Returns the Weka value of the {@code i}th value in {@code column}, avoiding boxing for numerical columns. */
+	private static double wekaValue(weka.core.Attribute wekaAttribute, Column column, final int i) {
+		if (column.isMissing(i))
+			return WekaTrainer.MISSING_VALUE;
+		if (column instanceof Column.Doubles)
+			return ((Column.Doubles) column).values[i];
+		if (column instanceof Column.Integers)
+			return ((Column.Integers) column).values[i];
+		return WekaTrainer.generateWekaValue(wekaAttribute, column.get(i));
+	}
+	
+	private JsonPrimitive predictClass(Classifier wekaClassifier, Instance wekaInstance, weka.core.Attribute wekaClassAttr) throws Exception {
 		double pred = wekaClassifier.classifyInstance(wekaInstance);
 		
-		weka.core.Attribute wekaClassAttr = wekaDataset.attribute( wekaDataset.classIndex() );
 		//Assumes output is either nominal or numerical; if supporting a wider range of learners this will need to be modified (does Weka support a wider range?)
 		if (wekaClassAttr.isNumeric())
 			return new JsonPrimitive( pred );
@@ -127,10 +429,20 @@ public class WekaPredictor extends Predictor {
 	
 	//--Predictor-specific methods---------------------------------------------
 	
+	/**
+	 * Updates the model. If updates are logged then the update is applied to
+	 * the current model and logged, and the model is saved later; otherwise
+	 * it is applied to a copy of the saved model, which replaces it.
+	 */
 	public void update(JsonArray updateValues) {
+		if (UpdateLog.isEnabled()) {
+			PendingUpdates.update(this, updateValues);
+			reviseUpdatedDate();
+			return;
+		}
 		try {
-			assert getWekaPredictor() instanceof UpdateableClassifier;
-			UpdateableClassifier wekaClassifier = (UpdateableClassifier) getWekaPredictor();
+			//Update a private copy, as the cached model may be in use by other requests
+			UpdateableClassifier wekaClassifier = (UpdateableClassifier) ModelStore.get().read( getWekaPredictorRef() );
 			Instances wekaDataset = new Instances(getWekaAttributeDetails(), 0);
 			for (JsonElement update : updateValues)
 				updateOne(wekaClassifier, wekaDataset, update.getAsJsonObject());
@@ -141,7 +453,23 @@ public class WekaPredictor extends Predictor {
 		}
 	}
 	
-	private void updateOne(UpdateableClassifier wekaClassifier, Instances wekaDataset, JsonObject update) throws Exception {
+	/**
+	 * If updates are logged then only the revised provenance is saved, as
+	 * the model itself is saved by a later checkpoint.
+	 */
+	@Override
+	public void saveUpdate() {
+		if (! UpdateLog.isEnabled()) {
+			super.saveUpdate();
+			return;
+		}
+		JPA.em().createQuery("update Predictor p set p.provenance = :provenance where p.name = :name")
+				.setParameter("provenance", provenance)
+				.setParameter("name", name)
+				.executeUpdate();
+	}
+	
+	static void updateOne(UpdateableClassifier wekaClassifier, Instances wekaDataset, JsonObject update) throws Exception {
 		Instance wekaInstance = constructWekaInstance(update.get("target"),
 				update.get("source").getAsJsonArray(),
 				wekaDataset,
@@ -185,5 +513,53 @@ public class WekaPredictor extends Predictor {
 		wekaInstance.setDataset(wekaDataset);
 		return wekaInstance;
 	}
+	
+	/**
+	 * Moves the models of predictors saved in the database by earlier
+	 * versions of the server into the {@link ModelStore}, in the background.
+	 */
+	@OnApplicationStart(async=true)
+	public static class MoveModelsToStore extends Job<Object> {
+		public void doJob() {
+			@SuppressWarnings("unchecked")
+			List<String> names = JPA.em()
+					.createQuery("select p.name from WekaPredictor p where p.wekaPredictorBytes is not null or p.wekaDatasetBytes is not null")
+					.getResultList();
+			for (String name : names) {
+				WekaPredictor predictor = WekaPredictor.findById(name);
+				predictor.moveToModelStore();
+				JPA.em().clear(); //no need to keep the models in memory
+			}
+			if (! names.isEmpty())
+				Logger.info("Moved the models of %d predictor(s) from the database to the model store", names.size());
+		}
+	}
+	
+	/**
+	 * Deletes the objects in the {@link ModelStore} that no predictor
+	 * references any more. An object is only deleted once it was last stored
+	 * {@link ConfKeys#MODEL_STORE_GC_GRACE} ago, so that one being saved by
+	 * a transaction in progress is not deleted before its reference is.
+	 */
+	@Every("1h")
+	public static class CollectUnusedModels extends Job<Object> {
+		private static final long grace = 1000L * Time.parseDuration( Play.configuration.getProperty(ConfKeys.MODEL_STORE_GC_GRACE, "1h") );
+		
+		public void doJob() throws IOException {
+			long putBefore = System.currentTimeMillis() - grace; //before reading the references, so that any saved since are recent enough to keep
+			@SuppressWarnings("unchecked")
+			List<Object[]> refs = JPA.em()
+					.createQuery("select p.wekaPredictorRef, p.wekaDatasetRef from WekaPredictor p")
+					.getResultList();
+			Set<String> inUse = new HashSet<>();
+			for (Object[] predictorRefs : refs)
+				for (Object ref : predictorRefs)
+					if (ref != null)
+						inUse.add((String) ref);
+			int deleted = ModelStore.get().collectGarbage(inUse, putBefore);
+			if (deleted > 0)
+				Logger.info("Deleted %d unused model(s) from the model store", deleted);
+		}
+	}
 
 }
\ No newline at end of file
@@ -22,13 +22,15 @@ import util.Schema;
  * some shared fields and a common interface. Transformations are
  * {@link Function}s, in that they can be applied to a value to produce a
  * result, but the format of that input value is left for subclasses and their
- * instances to define.
+ * instances to define. All may be applied to a {@link Column} of values, but
+ * only those subclasses that override {@link #apply(Column)} avoid boxing
+ * every value into JSON.
  * 
  * @author jmontgomery
  *
  */
 @MappedSuperclass
-public abstract class AbstractFunction extends NamedModel implements Function {
+public abstract class AbstractFunction extends NamedModel implements ColumnFunction {
 	private static final long serialVersionUID = 1L;
 	/** Human-readable description of this attribute. */
 	public String description;
@@ -94,4 +96,13 @@ public abstract class AbstractFunction extends NamedModel implements Function {
 		return result;
 	}
 	
+	/**
+	 * Default batch implementation, which applies this function to each
+	 * boxed value in turn. Subclasses that can work directly on primitive
+	 * columns should override this.
+	 */
+	public Column apply(Column values) throws BadValueException {
+		return Column.of( apply( values.iterator() ) );
+	}
+	
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package models.transformer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -11,6 +12,8 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonNull;
 import com.google.gson.JsonPrimitive;
 
+import util.JSONType;
+
 /**
  * Represents a family of lightweight transformers which are accessed through
  * this class. A list of valid identifiers is available in {@link #names},
@@ -42,8 +45,12 @@ public abstract class BuiltinTransformer extends Transformer {
 	/** Cached built-in transformer instances. */
 	private static final Map<String,BuiltinTransformer> cache = new HashMap<>();
 	
+	/** Type of column produced when applied to a {@link Column}, or {@code null} if not atomic. */
+	private final JSONType emitsType;
+	
 	private BuiltinTransformer(String accepts, String emits, String desc) {
 		this.name = nameFromClass(getClass());
+		this.emitsType = emits.startsWith("{") ? null : JSONType.fromJSONTypeName(emits.substring(1));
 		this.accepts = changeQuotes(accepts);
 		this.emits = changeQuotes(emits);
 		this.description = desc;
@@ -87,6 +94,51 @@ public abstract class BuiltinTransformer extends Transformer {
 		}
 	}
 
+	/**
+	 * Applies this transformer to each value in turn and stores the results
+	 * in a column of its output type, so that the next stage of a pipeline
+	 * receives them unboxed.
+	 */
+	@Override
+	public Column apply(Column values) throws BadValueException {
+		Column output = Column.allocate(emitsType, values.size());
+		for (int i = 0, c = values.size(); i < c; i++)
+			output.set(i, apply( values.get(i) ));
+		return output;
+	}
+
+	/**
+	 * Returns the element columns of {@code values} as {@link Column.Doubles}
+	 * if it is a {@link Column.Tuples} column of numbers, so that numeric
+	 * transformers of arrays can work on them directly; otherwise returns
+	 * {@code null}.
+	 */
+	private static Column.Doubles[] numericElements(Column values) throws BadValueException {
+		if (! (values instanceof Column.Tuples))
+			return null;
+		Column[] elements = ((Column.Tuples) values).elements;
+		Column.Doubles[] doubles = new Column.Doubles[elements.length];
+		for (int j = 0; j < elements.length; j++) {
+			if (! (elements[j] instanceof Column.Doubles || elements[j] instanceof Column.Integers))
+				return null;
+			doubles[j] = elements[j].asDoubles();
+		}
+		return doubles;
+	}
+
+	/**
+	 * Additionally marks as missing each value of {@code output} (already
+	 * missing wherever its input array is) whose array has a missing element.
+	 */
+	private static Column.Doubles withMissing(Column.Doubles output, Column.Doubles[] elements) {
+		for (Column.Doubles element : elements)
+			if (element.hasMissing())
+				for (int i = 0; i < output.size; i++)
+					if (element.isMissing(i))
+						output.setMissing(i);
+		return output;
+	}
+
 	//--The built-in transformers----------------------------------------------
 	
 	private static class Square extends BuiltinTransformer {
@@ -94,6 +146,12 @@ public abstract class BuiltinTransformer extends Transformer {
 		public JsonElement apply(JsonElement value) {
 			return value.isJsonNull() ? JsonNull.INSTANCE : new JsonPrimitive( Math.pow( ((JsonPrimitive)value).getAsDouble(), 2 ) );
 		}
+		public Column apply(Column values) throws BadValueException {
+			double[] x = values.asDoubles().values, squares = new double[x.length];
+			for (int i = 0; i < x.length; i++)
+				squares[i] = x[i] * x[i];
+			return new Column.Doubles(squares, values);
+		}
 	}
 	
 	private static class Average extends BuiltinTransformer {
@@ -102,10 +160,25 @@ public abstract class BuiltinTransformer extends Transformer {
 			if (value.isJsonNull())
 				return JsonNull.INSTANCE; 
 			double sum = 0;
-			for (JsonElement el : ((JsonArray)value))
+			for (JsonElement el : ((JsonArray)value)) {
+				if (el.isJsonNull())
+					return JsonNull.INSTANCE; //as for a missing element in apply(Column)
 				sum += el.getAsDouble();
+			}
 			return new JsonPrimitive( sum / ((JsonArray)value).size() );
 		}
+		public Column apply(Column values) throws BadValueException {
+			Column.Doubles[] elements = numericElements(values);
+			if (elements == null || elements.length == 0)
+				return super.apply(values);
+			double[] averages = new double[values.size()];
+			for (Column.Doubles element : elements)
+				for (int i = 0; i < averages.length; i++)
+					averages[i] += element.values[i];
+			for (int i = 0; i < averages.length; i++)
+				averages[i] /= elements.length;
+			return withMissing(new Column.Doubles(averages, values), elements);
+		}
 	}
 	
 	private static class Product extends BuiltinTransformer {
@@ -114,10 +187,24 @@ public abstract class BuiltinTransformer extends Transformer {
 			if (value.isJsonNull())
 				return JsonNull.INSTANCE; 
 			double product = 1;
-			for (JsonElement el : ((JsonArray)value))
+			for (JsonElement el : ((JsonArray)value)) {
+				if (el.isJsonNull())
+					return JsonNull.INSTANCE; //as for a missing element in apply(Column)
 				product *= el.getAsDouble();
+			}
 			return new JsonPrimitive( product );
 		}
+		public Column apply(Column values) throws BadValueException {
+			Column.Doubles[] elements = numericElements(values);
+			if (elements == null || elements.length == 0)
+				return super.apply(values);
+			double[] products = new double[values.size()];
+			Arrays.fill(products, 1);
+			for (Column.Doubles element : elements)
+				for (int i = 0; i < products.length; i++)
+					products[i] *= element.values[i];
+			return withMissing(new Column.Doubles(products, values), elements);
+		}
 	}
 
 	private static class Str extends BuiltinTransformer {
@@ -0,0 +1,198 @@
+package models.transformer;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.persistence.Entity;
+import javax.persistence.Lob;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import controllers.Transformers;
+
+import models.PSI;
+import models.predictor.Predictor;
+import play.Logger;
+import play.jobs.Job;
+import play.jobs.OnApplicationStart;
+import util.NameSequences;
+import util.Util;
+
+/**
+ * A joined transformer (a transformer or predictor followed by an
+ * {@link EncodedTransformerChain}) that has been stored under a short name,
+ * so that it can be used without the ever-growing encoded chain in its URI.
+ * Compatibility of the chain is checked, and any enumerated emits schema
+ * derived, when it is stored; its pipeline is built once, either at start up
+ * or when first used, and is shared by all requests until one of its
+ * predictors changes.
+ */
+@Entity
+public class ChainedTransformer extends Transformer {
+	private static final long serialVersionUID = 1L;
+
+	/** Route of the transformer at the start of the chain; {@link PSI#TRANSFORMER_BASE} or {@link PSI#PREDICTOR_BASE}. */
+	public String baseKind;
+	/** ID of the transformer at the start of the chain. */
+	public String baseID;
+	/** The rest of the chain, base64 encoded as in a joined transformer's URI. */
+	@Lob
+	public String chain;
+
+	/** Pipelines built for stored chains, keyed by name. */
+	private static final ConcurrentMap<String,Pipeline> pipelines = new ConcurrentHashMap<>();
+
+	public ChainedTransformer() { this(""); }
+
+	public ChainedTransformer(String name) {
+		super(name);
+	}
+
+	/**
+	 * Stores the given chain following {@code base} under a new name. The
+	 * chain must already have been checked for compatibility with
+	 * {@code base}, as is done when it is {@linkplain EncodedTransformerChain#constructProcessingPipeline constructed}.
+	 */
+	public static ChainedTransformer create(Transformers.Kind baseKind, Transformer base, EncodedTransformerChain chain) {
+		String name = NameSequences.reserve("chain1", "chain%d", NAME_IN_USE);
+		try {
+			ChainedTransformer t = new ChainedTransformer(name);
+			t.baseKind = baseKind.getRoute();
+			t.baseID = base.name;
+			t.chain = chain.toBase64JSON();
+			t.accepts = base.accepts;
+			t.emits = chain.getEmits().toString();
+			t.description = chain.getDescription() == null ? base.description + " (transformed)" : chain.getDescription();
+			JsonObject provenance = new JsonObject();
+			provenance.addProperty("created", Util.UTC_DATETIME_FORMAT.format(new Date()));
+			provenance.addProperty("transformer", Transformers.getReverseRoute(baseKind, base));
+			provenance.add("joinedWith", chain.constructProvenanceEntry("transformer", "joinedWith"));
+			t.provenance = provenance.toString();
+			t.save();
+			return t;
+		} finally {
+			NameSequences.release(name);
+		}
+	}
+
+	/**
+	 * Returns the name of a stored chain that uses the given stored
+	 * transformer, as its base or later in the chain; {@code null} if there
+	 * is none.
+	 */
+	public static String findUserOf(String transformerID) {
+		List<ChainedTransformer> stored = ChainedTransformer.findAll();
+		for (ChainedTransformer t : stored) {
+			if (t.baseKind.equals(PSI.TRANSFORMER_BASE) && t.baseID.equals(transformerID))
+				return t.name;
+			try {
+				if (EncodedTransformerChain.unpack(t.chain).usesTransformer(transformerID))
+					return t.name;
+			} catch (TransformationEncodingException tee) {
+				Logger.warn("Stored joined transformer '%s' could not be decoded: %s", t.name, tee.getMessage());
+			}
+		}
+		return null;
+	}
+
+	/** Discards this transformer's pipeline, and any cached chains using it; call when it is deleted. */
+	public void forgetPipeline() {
+		pipelines.remove(name);
+		EncodedTransformerChain.invalidateStoredTransformer(name);
+	}
+
+	/**
+	 * Discards the pipelines of stored chains that use the given predictor,
+	 * which should be called whenever a predictor is updated or deleted,
+	 * once the change has been committed.
+	 */
+	public static void invalidatePredictor(String predictorID) {
+		Iterator<Pipeline> it = pipelines.values().iterator();
+		while (it.hasNext())
+			if (it.next().predictors.contains(predictorID))
+				it.remove();
+	}
+
+	/**
+	 * Returns the IDs of the predictors used by this stored chain's pipeline,
+	 * including its base, building the pipeline if necessary.
+	 */
+	public Set<String> getPredictorIDs() {
+		return getPipeline().predictors;
+	}
+
+	/** Returns the stored chain's pipeline, building it if necessary. */
+	private Pipeline getPipeline() {
+		Pipeline pipeline = pipelines.get(name);
+		if (pipeline == null) {
+			try {
+				pipeline = new Pipeline(this);
+			} catch (TransformationEncodingException tee) {
+				throw new RuntimeException("Stored joined transformer '" + name + "' could not be reconstructed: " + tee.getMessage(), tee);
+			}
+			pipelines.put(name, pipeline);
+		}
+		return pipeline;
+	}
+
+	//--Function interface-----------------------------------------------------
+
+	public JsonElement apply(JsonElement value) throws BadValueException {
+		return getPipeline().f.apply(value);
+	}
+
+	public JsonArray apply(Iterator<JsonElement> values) throws BadValueException {
+		return getPipeline().f.apply(values);
+	}
+
+	public Column apply(Column values) throws BadValueException {
+		return Column.transform(getPipeline().f, values);
+	}
+
+	//--Nested classes---------------------------------------------------------
+
+	/** A stored chain's ready-to-run pipeline and the predictors it uses. */
+	private static class Pipeline {
+		final Function f;
+		final Set<String> predictors = new HashSet<>();
+
+		Pipeline(ChainedTransformer t) throws TransformationEncodingException {
+			Transformer base = t.baseKind.equals(PSI.PREDICTOR_BASE) ? Predictor.<Predictor>findById(t.baseID) : BuiltinTransformer.load(t.baseID);
+			if (base == null)
+				base = ExpressionTransformer.<ExpressionTransformer>findById(t.baseID);
+			if (base == null)
+				base = ChainedTransformer.<ChainedTransformer>findById(t.baseID);
+			if (base == null)
+				throw new TransformationEncodingException("Transformer '" + t.baseID + "' no longer exists");
+			EncodedTransformerChain encoded = EncodedTransformerChain.unpack(t.chain);
+			f = encoded.constructVerifiedPipeline(base);
+			predictors.addAll( encoded.getPredictorIDs() );
+			if (base instanceof Predictor)
+				predictors.add(base.name);
+		}
+	}
+
+	/** Builds the pipelines of all stored chains so that their first use is not delayed. */
+	@OnApplicationStart
+	public static class BuildPipelines extends Job<Object> {
+		public void doJob() {
+			List<ChainedTransformer> stored = ChainedTransformer.findAll();
+			for (ChainedTransformer t : stored) {
+				try {
+					t.getPipeline();
+				} catch (RuntimeException e) {
+					Logger.warn(e, "Unable to build pipeline for stored joined transformer '%s'", t.name);
+				}
+			}
+			Logger.info("Built pipelines for %d stored joined transformer(s)", stored.size());
+		}
+	}
+
+}
@@ -0,0 +1,605 @@
+package models.transformer;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonPrimitive;
+
+import util.JSONType;
+import util.Util;
+
+/**
+ * A block of values held column-wise, so that the output of an attribute or
+ * transformer applied to many instances can be passed along a processing
+ * pipeline without boxing every value into a Gson object. Atomic values are
+ * kept in primitive arrays (or an array of strings) with a separate mask
+ * marking missing values, structured array values are kept as a
+ * {@link Tuples} of element columns, and anything else falls back to a
+ * {@link Values} column of {@link JsonElement}s.
+ * <p>
+ * Columns are filled in once when created and should be treated as immutable
+ * thereafter. JSON is only produced when a value is requested with
+ * {@link #get(int)}, which is intended to happen when rendering a response.
+ */
+public abstract class Column implements Iterable<JsonElement>, Serializable {
+	private static final long serialVersionUID = 1L;
+	/** Rough per-object overhead used when estimating the memory a column occupies. */
+	private static final int OBJECT_OVERHEAD = 16;
+	/**
+	 * Number of values pushed through a pipeline at a time when it is
+	 * applied to many; large enough for batch paths to work on many values
+	 * at once, while bounding the intermediate columns between stages.
+	 */
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	/** Number of values in the column. */
+	protected final int size;
+	/** Missing value mask; {@code null} until the first value is marked missing. */
+	private boolean[] missing;
+
+	protected Column(final int size) {
+		this.size = size;
+	}
+
+	/** Returns the number of values in this column. */
+	public int size() { return size; }
+
+	/** Returns {@code true} if the {@code i}th value is missing (i.e., JSON {@code null}). */
+	public boolean isMissing(final int i) { return missing != null && missing[i]; }
+
+	/** Returns {@code true} if at least one value in the column is missing. */
+	public boolean hasMissing() {
+		if (missing != null)
+			for (boolean m : missing)
+				if (m) return true;
+		return false;
+	}
+
+	/** Marks the {@code i}th value as missing. */
+	protected void setMissing(final int i) {
+		if (missing == null)
+			missing = new boolean[size];
+		missing[i] = true;
+	}
+
+	/** Copies the missing value mask of {@code other}, which must be the same size. */
+	protected void copyMissing(Column other) {
+		missing = other.missing == null ? null : Arrays.copyOf(other.missing, size);
+	}
+
+	/**
+	 * Returns the {@code i}th value boxed as JSON; missing values are returned
+	 * as {@link JsonNull#INSTANCE}.
+	 */
+	public JsonElement get(final int i) {
+		return isMissing(i) ? JsonNull.INSTANCE : box(i);
+	}
+
+	/** Boxes the (non-missing) {@code i}th value into JSON. */
+	protected abstract JsonElement box(final int i);
+
+	/**
+	 * Returns this column as a {@link Doubles} column, converting if
+	 * necessary.
+	 * @throws BadValueException if a non-missing value is not a number.
+	 */
+	public Doubles asDoubles() throws BadValueException {
+		Doubles doubles = new Doubles(size);
+		for (int i = 0; i < size; i++) {
+			JsonElement value = get(i);
+			if (value.isJsonNull())
+				doubles.setMissing(i);
+			else if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber())
+				doubles.values[i] = value.getAsDouble();
+			else
+				throw new BadValueException("Expected a number but encountered " + value);
+		}
+		return doubles;
+	}
+
+	/**
+	 * Returns an estimate of the memory, in bytes, occupied by this column's
+	 * values; used to bound the size of caches of columns.
+	 */
+	public long estimateBytes() {
+		return OBJECT_OVERHEAD + (missing == null ? 0 : size);
+	}
+
+	/** Boxes every value into a {@link JsonArray}; for use at the HTTP boundary. */
+	public JsonArray toJsonArray() {
+		JsonArray array = new JsonArray();
+		for (int i = 0; i < size; i++)
+			array.add( get(i) );
+		return array;
+	}
+
+	/** Iterates over the column's values, boxing each one as it is reached. */
+	public Iterator<JsonElement> iterator() {
+		return new Iterator<JsonElement>() {
+			private int next = 0;
+			public boolean hasNext() { return next < size; }
+			public JsonElement next() {
+				if (! hasNext())
+					throw new NoSuchElementException(String.valueOf(next));
+				return get(next++);
+			}
+			public void remove() { throw new UnsupportedOperationException(); }
+		};
+	}
+
+	public String toString() { return toJsonArray().toString(); }
+
+	/** Returns a new column holding the values from {@code from} (inclusive) to {@code to} (exclusive). */
+	public Column slice(final int from, final int to) {
+		Column slice = sliceValues(from, to);
+		slice.missing = missing == null ? null : Arrays.copyOfRange(missing, from, to);
+		return slice;
+	}
+
+	/** Returns a new column of this type holding the given range of values, without marking any as missing. */
+	protected abstract Column sliceValues(final int from, final int to);
+
+	/**
+	 * Returns a new column of this type holding the values of the given
+	 * columns, which are all of this type, end to end, without marking any
+	 * as missing.
+	 */
+	protected abstract Column concatValues(List<Column> parts, final int size);
+
+	//--Construction-----------------------------------------------------------
+
+	/** Returns a {@link Values} column holding the given JSON values. */
+	public static Values of(JsonArray values) {
+		Values column = new Values(values.size());
+		for (int i = 0; i < column.size; i++)
+			column.set(i, values.get(i));
+		return column;
+	}
+
+	/**
+	 * Returns a column of the given JSON {@code type} holding the given
+	 * values, as long as every non-missing value is a primitive of that type;
+	 * otherwise returns a {@link Values} column. Numbers are only held as
+	 * {@link Doubles} if none is written as an integer, and as
+	 * {@link Integers} if all are and fit, so that they are returned as they
+	 * were given (5 rather than 5.0, and long integers without losing
+	 * precision); otherwise they too are kept in a {@link Values} column.
+	 */
+	public static Column of(JsonElement[] values, JSONType type) {
+		for (JsonElement value : values)
+			if (! conforms(value, type)) {
+				type = null;
+				break;
+			}
+		if (type == JSONType.NUMBER)
+			type = numberType(values);
+		Column column = allocate(type, values.length);
+		for (int i = 0; i < values.length; i++)
+			column.set(i, values[i]);
+		return column;
+	}
+
+	/** Returns {@code true} if the value is missing or could be stored in a column of the given type. */
+	private static boolean conforms(JsonElement value, JSONType type) {
+		if (value == null || value.isJsonNull() || type == null)
+			return true;
+		if (! value.isJsonPrimitive())
+			return false;
+		JsonPrimitive primitive = value.getAsJsonPrimitive();
+		switch (type) {
+		case NUMBER: return primitive.isNumber();
+		case INTEGER: return primitive.isNumber() && primitive.getAsDouble() == primitive.getAsInt();
+		case STRING: return primitive.isString();
+		default: return true;
+		}
+	}
+
+	/**
+	 * Returns the type of column that holds the given numbers as they are
+	 * written: {@code INTEGER} if all are integers that fit in an
+	 * {@code int}, {@code NUMBER} if none is an integer, and otherwise
+	 * {@code null}.
+	 */
+	private static JSONType numberType(JsonElement[] values) {
+		boolean hasIntegers = false, hasReals = false, fitInts = true;
+		for (JsonElement value : values) {
+			if (value == null || value.isJsonNull())
+				continue;
+			String text = value.getAsString();
+			if (text.indexOf('.') >= 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0) {
+				hasReals = true;
+			} else {
+				hasIntegers = true;
+				try {
+					Integer.parseInt(text);
+				} catch (NumberFormatException nfe) {
+					fitInts = false;
+				}
+			}
+			if (hasReals && hasIntegers)
+				return null;
+		}
+		if (hasIntegers)
+			return fitInts ? JSONType.INTEGER : null;
+		return JSONType.NUMBER;
+	}
+
+	/** Drains the given iterator into a {@link Values} column. */
+	public static Values of(Iterator<JsonElement> values) {
+		List<JsonElement> drained = new ArrayList<>();
+		while (values.hasNext())
+			drained.add( values.next() );
+		Values column = new Values(drained.size());
+		for (int i = 0; i < column.size; i++)
+			column.set(i, drained.get(i));
+		return column;
+	}
+
+	/**
+	 * Returns a new, empty column of {@code size} values suitable for holding
+	 * values of the given JSON {@code type}: {@code NUMBER}s become
+	 * {@link Doubles}, {@code INTEGER}s become {@link Integers} and
+	 * {@code STRING}s become {@link Strings}. Any other (or {@code null})
+	 * type results in a {@link Values} column.
+	 */
+	public static Column allocate(JSONType type, final int size) {
+		if (type != null) {
+			switch (type) {
+			case NUMBER: return new Doubles(size);
+			case INTEGER: return new Integers(size);
+			case STRING: return new Strings(size);
+			default: break;
+			}
+		}
+		return new Values(size);
+	}
+
+	/**
+	 * Sets the {@code i}th value from a JSON value; {@code null} or
+	 * {@code JsonNull} values are marked as missing. Only for use while
+	 * filling a newly {@linkplain #allocate(JSONType, int) allocated} column.
+	 */
+	public void set(final int i, JsonElement value) {
+		if (value == null || value.isJsonNull())
+			setMissing(i);
+		else
+			unbox(i, value);
+	}
+
+	/**
+	 * Sets the {@code i}th value by parsing the given text, as read from a
+	 * data file; a {@code null} value is marked as missing.
+	 */
+	public void parse(final int i, String text) {
+		if (text == null)
+			setMissing(i);
+		else
+			unbox(i, new JsonPrimitive(text));
+	}
+
+	/** Stores the (non-null) JSON value at position {@code i}. */
+	protected abstract void unbox(final int i, JsonElement value);
+
+	/**
+	 * Returns the given columns end to end, in a column of their type if
+	 * they are all of the same type (and width, for {@link Tuples}), and
+	 * otherwise in a {@link Values} column.
+	 */
+	public static Column concat(List<Column> parts) {
+		if (parts.size() == 1)
+			return parts.get(0);
+		Column first = parts.get(0);
+		int size = 0;
+		boolean isSameType = true;
+		for (Column part : parts) {
+			size += part.size;
+			if (part.getClass() != first.getClass() || part instanceof Tuples && ((Tuples) part).width() != ((Tuples) first).width())
+				isSameType = false;
+		}
+		if (! isSameType) {
+			Values values = new Values(size);
+			int i = 0;
+			for (Column part : parts)
+				for (int j = 0; j < part.size; j++)
+					values.set(i++, part.get(j));
+			return values;
+		}
+		Column joined = first.concatValues(parts, size);
+		int offset = 0;
+		for (Column part : parts) {
+			if (part.missing != null)
+				for (int j = 0; j < part.size; j++)
+					if (part.missing[j])
+						joined.setMissing(offset + j);
+			offset += part.size;
+		}
+		return joined;
+	}
+
+	/**
+	 * Applies {@code f} to every value of the given column, using its batch
+	 * path if it is a {@link ColumnFunction} and otherwise applying it to the
+	 * boxed values.
+	 */
+	public static Column transform(Function f, Column values) throws BadValueException {
+		if (f instanceof ColumnFunction)
+			return ((ColumnFunction)f).apply(values);
+		return of( f.apply(values.iterator()) );
+	}
+
+	/**
+	 * Applies {@code f} to the values read from the given iterator, a
+	 * {@linkplain #CHUNK_SIZE chunk} at a time, so that only {@code f}'s
+	 * output is held for all of them.
+	 */
+	public static Column transform(Function f, Iterator<JsonElement> values) throws BadValueException {
+		List<Column> parts = new ArrayList<>();
+		List<JsonElement> chunk = new ArrayList<>();
+		do {
+			chunk.clear();
+			while (values.hasNext() && chunk.size() < CHUNK_SIZE)
+				chunk.add( values.next() );
+			parts.add( transform(f, of(chunk.iterator())) );
+		} while (values.hasNext());
+		return concat(parts);
+	}
+
+	//--Column types-----------------------------------------------------------
+
+	/** A column of real numbers. */
+	public static class Doubles extends Column {
+		private static final long serialVersionUID = 1L;
+		public final double[] values;
+
+		public Doubles(final int size) {
+			super(size);
+			values = new double[size];
+		}
+
+		/** Creates a new column of the given values with the same missing values as {@code like}. */
+		public Doubles(double[] values, Column like) {
+			super(values.length);
+			this.values = values;
+			copyMissing(like);
+		}
+
+		protected JsonElement box(final int i) { return new JsonPrimitive(values[i]); }
+
+		protected void unbox(final int i, JsonElement value) { values[i] = value.getAsDouble(); }
+
+		protected Doubles sliceValues(final int from, final int to) {
+			Doubles slice = new Doubles(to - from);
+			System.arraycopy(values, from, slice.values, 0, to - from);
+			return slice;
+		}
+
+		protected Doubles concatValues(List<Column> parts, final int size) {
+			Doubles joined = new Doubles(size);
+			int offset = 0;
+			for (Column part : parts) {
+				System.arraycopy(((Doubles) part).values, 0, joined.values, offset, part.size);
+				offset += part.size;
+			}
+			return joined;
+		}
+
+		public long estimateBytes() { return super.estimateBytes() + 8L * size; }
+
+		public void parse(final int i, String text) {
+			if (text == null) setMissing(i);
+			else values[i] = Double.parseDouble(text);
+		}
+
+		public Doubles asDoubles() { return this; }
+	}
+
+	/** A column of integers. */
+	public static class Integers extends Column {
+		private static final long serialVersionUID = 1L;
+		public final int[] values;
+
+		public Integers(final int size) {
+			super(size);
+			values = new int[size];
+		}
+
+		protected JsonElement box(final int i) { return new JsonPrimitive(values[i]); }
+
+		protected void unbox(final int i, JsonElement value) { values[i] = value.getAsInt(); }
+
+		protected Integers sliceValues(final int from, final int to) {
+			Integers slice = new Integers(to - from);
+			System.arraycopy(values, from, slice.values, 0, to - from);
+			return slice;
+		}
+
+		protected Integers concatValues(List<Column> parts, final int size) {
+			Integers joined = new Integers(size);
+			int offset = 0;
+			for (Column part : parts) {
+				System.arraycopy(((Integers) part).values, 0, joined.values, offset, part.size);
+				offset += part.size;
+			}
+			return joined;
+		}
+
+		public void parse(final int i, String text) {
+			if (text == null) setMissing(i);
+			else values[i] = Integer.parseInt(text);
+		}
+
+		public Doubles asDoubles() {
+			Doubles doubles = new Doubles(size);
+			for (int i = 0; i < size; i++)
+				doubles.values[i] = values[i];
+			doubles.copyMissing(this);
+			return doubles;
+		}
+
+		public long estimateBytes() { return super.estimateBytes() + 4L * size; }
+	}
+
+	/** A column of strings. */
+	public static class Strings extends Column {
+		private static final long serialVersionUID = 1L;
+		public final String[] values;
+
+		public Strings(final int size) {
+			super(size);
+			values = new String[size];
+		}
+
+		protected JsonElement box(final int i) { return new JsonPrimitive(values[i]); }
+
+		protected void unbox(final int i, JsonElement value) { values[i] = value.getAsString(); }
+
+		protected Strings sliceValues(final int from, final int to) {
+			Strings slice = new Strings(to - from);
+			System.arraycopy(values, from, slice.values, 0, to - from);
+			return slice;
+		}
+
+		protected Strings concatValues(List<Column> parts, final int size) {
+			Strings joined = new Strings(size);
+			int offset = 0;
+			for (Column part : parts) {
+				System.arraycopy(((Strings) part).values, 0, joined.values, offset, part.size);
+				offset += part.size;
+			}
+			return joined;
+		}
+
+		public void parse(final int i, String text) {
+			if (text == null) setMissing(i);
+			else values[i] = text;
+		}
+
+		public long estimateBytes() {
+			long bytes = super.estimateBytes() + 8L * size;
+			for (String value : values)
+				if (value != null)
+					bytes += 2 * OBJECT_OVERHEAD + 2L * value.length();
+			return bytes;
+		}
+	}
+
+	/**
+	 * A column of array values held as one column per array element. All
+	 * arrays in the column therefore have the same length.
+	 */
+	public static class Tuples extends Column {
+		private static final long serialVersionUID = 1L;
+		public final Column[] elements;
+
+		public Tuples(Column[] elements, final int size) {
+			super(size);
+			this.elements = elements;
+		}
+
+		/** Returns the number of elements in each array value. */
+		public int width() { return elements.length; }
+
+		protected JsonElement box(final int i) {
+			JsonArray array = new JsonArray();
+			for (Column element : elements)
+				array.add( element.get(i) );
+			return array;
+		}
+
+		protected void unbox(final int i, JsonElement value) {
+			throw new UnsupportedOperationException("Array columns are assembled from their element columns");
+		}
+
+		protected Tuples sliceValues(final int from, final int to) {
+			Column[] slices = new Column[elements.length];
+			for (int j = 0; j < elements.length; j++)
+				slices[j] = elements[j].slice(from, to);
+			return new Tuples(slices, to - from);
+		}
+
+		protected Tuples concatValues(List<Column> parts, final int size) {
+			Column[] joined = new Column[elements.length];
+			for (int j = 0; j < elements.length; j++) {
+				List<Column> elementParts = new ArrayList<>(parts.size());
+				for (Column part : parts)
+					elementParts.add( ((Tuples) part).elements[j] );
+				joined[j] = concat(elementParts);
+			}
+			return new Tuples(joined, size);
+		}
+
+		public long estimateBytes() {
+			long bytes = super.estimateBytes();
+			for (Column element : elements)
+				bytes += element.estimateBytes();
+			return bytes;
+		}
+	}
+
+	/** The fall-back column type for values with no primitive representation. */
+	public static class Values extends Column {
+		private static final long serialVersionUID = 1L;
+		/** Gson values are not serializable, so are written as JSON text. */
+		public transient JsonElement[] values;
+
+		public Values(final int size) {
+			super(size);
+			values = new JsonElement[size];
+		}
+
+		protected JsonElement box(final int i) { return values[i]; }
+
+		protected void unbox(final int i, JsonElement value) { values[i] = value; }
+
+		protected Values sliceValues(final int from, final int to) {
+			Values slice = new Values(to - from);
+			System.arraycopy(values, from, slice.values, 0, to - from);
+			return slice;
+		}
+
+		protected Values concatValues(List<Column> parts, final int size) {
+			Values joined = new Values(size);
+			int offset = 0;
+			for (Column part : parts) {
+				System.arraycopy(((Values) part).values, 0, joined.values, offset, part.size);
+				offset += part.size;
+			}
+			return joined;
+		}
+
+		/** Estimated from the length of the values' JSON text, which is crude but cheap enough. */
+		public long estimateBytes() {
+			long bytes = super.estimateBytes() + 8L * size;
+			for (JsonElement value : values)
+				if (value != null)
+					bytes += OBJECT_OVERHEAD + 2L * value.toString().length();
+			return bytes;
+		}
+
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			out.defaultWriteObject();
+			for (JsonElement value : values)
+				out.writeObject(value == null ? null : value.toString());
+		}
+
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			values = new JsonElement[size];
+			for (int i = 0; i < size; i++) {
+				String json = (String) in.readObject();
+				values[i] = json == null ? null : Util.parseJSON(json);
+			}
+		}
+	}
+
+}
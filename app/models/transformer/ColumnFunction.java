@@ -0,0 +1,17 @@
+package models.transformer;
+
+/**
+ * A {@link Function} that can also be applied to a whole {@link Column} of
+ * values at once, producing a column of results. Implementations should avoid
+ * boxing values into JSON wherever the types of their inputs and outputs
+ * allow it; JSON need only be produced when the final result is rendered.
+ */
+public interface ColumnFunction extends Function {
+	/**
+	 * Returns a column holding the result of applying the
+	 * {@code ColumnFunction} to each value in {@code values}, in the same
+	 * order.
+	 */
+	public Column apply(Column values) throws BadValueException;
+
+}
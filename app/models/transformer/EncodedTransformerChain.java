@@ -5,18 +5,30 @@ package models.transformer;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 import models.PSI;
+import models.predictor.Predictor;
 
 import org.apache.commons.codec.binary.Base64;
 import org.hibernate.cfg.NotYetImplementedException;
 
+import play.Play;
 import play.mvc.Router;
 
+import util.ConfKeys;
 import util.ExternalResourceException;
 import util.Schema;
 import util.Util;
@@ -34,6 +46,20 @@ import controllers.Transformers;
  * of a chain of transformers (that uses arrays where objects are clearly
  * indicated) encoded in base64 and a Java list of the same information. Can
  * load the actual transformers referred to by the JSON representation.
+ * <p>
+ * Unpacked chains that only refer to transformers hosted by this service are
+ * kept in a bounded cache, along with their processing pipeline and the
+ * start points already found to be compatible with them, so that repeated
+ * requests for the same chain skip decoding, transformer lookups and schema
+ * compatibility checks. Chains are therefore not modified once unpacked;
+ * {@link #create} extends a copy. Cached chains using a predictor must be
+ * {@linkplain #invalidatePredictor(String) invalidated} once its change has
+ * been committed, since they hold its entity.
+ * <p>
+ * When every link in a chain is pure (a built-in transformer or a predictor
+ * that cannot be updated) and it follows a transformer that enumerates the
+ * values it emits, the chain is evaluated over those values once and
+ * replaced by a {@link LookupTable}.
  * 
  * @author jmontgomery
  *
@@ -47,8 +73,31 @@ public class EncodedTransformerChain {
 	/** The URI key name used to identify an encoded transformer chain. */
 	public static final String URI_KEY = "t";
 	
+	/** Unpacked local chains, keyed by their base64 encoding, in access order. */
+	private static final Map<String,EncodedTransformerChain> cache = Collections.synchronizedMap(
+			new LinkedHashMap<String,EncodedTransformerChain>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				private final int capacity = Integer.parseInt( Play.configuration.getProperty(ConfKeys.CHAIN_CACHE_SIZE, "256") );
+				protected boolean removeEldestEntry(Map.Entry<String,EncodedTransformerChain> eldest) {
+					return size() > capacity;
+				}
+			});
+	
 	private List<Link> list = new Vector<>();
 	private String base64;
+	/** The chain's transformers joined together, once constructed. */
+	private volatile Function pipeline;
+	/**
+	 * Keys of the start points that have passed {@link #checkCompatible} with
+	 * this chain; values they emit are passed through the chain without
+	 * validation against each stage's accepts schema.
+	 */
+	private final Set<String> compatibleStarts = Collections.newSetFromMap( new ConcurrentHashMap<String,Boolean>() );
+	/**
+	 * The pipeline, or a {@link LookupTable} standing in for it, to use after
+	 * start points with each emits schema (as normalised JSON text).
+	 */
+	private final ConcurrentMap<String,Function> pipelinesByStartEmits = new ConcurrentHashMap<>();
 	
 	private enum TransformerType { TRANSFORMER, PREDICTOR, EXTERNAL };
 	
@@ -77,43 +126,132 @@ public class EncodedTransformerChain {
 		}		
 	}
 	
+	/** Creates a copy of {@code other} that can be extended without affecting it. */
+	private EncodedTransformerChain(EncodedTransformerChain other) {
+		base64 = other.base64;
+		for (Link link : other.list)
+			list.add( new Link(link) );
+	}
+	
 	/**
 	 * Returns a new transformer chain containing {@code g}, whose accepts
 	 * schema is tested for compatibility against {@code f.emits}. If the given
-	 * {@code priorTransformation} is not {@code null} then it is extended by
-	 * the given function {@code g} and returned as the result; otherwise a new
-	 * {@code EncodedTransformerChain is returned}.
+	 * {@code priorTransformation} is not {@code null} then a copy of it is
+	 * extended by the given function {@code g} and returned as the result;
+	 * otherwise a new {@code EncodedTransformerChain is returned}.
 	 * @throws TransformationEncodingException 
 	 */
 	public static EncodedTransformerChain create(AbstractFunction f, EncodedTransformerChain priorTransformation,
 			final String g, final String description) throws TransformationEncodingException
 	{
-		EncodedTransformerChain chain = priorTransformation == null ? new EncodedTransformerChain() : priorTransformation;
+		EncodedTransformerChain chain = priorTransformation == null ? new EncodedTransformerChain() : new EncodedTransformerChain(priorTransformation);
 		chain.add(chain.list.isEmpty() ? Util.parseJSON(f.emits) : chain.getEnd().emits, g, description);
+		if (chain.isLocal()) //likely to be requested next, so keep any lookup table derived in creating it
+			cache.put(chain.toBase64JSON(), chain);
 		return chain;
 	}
 	
+	/**
+	 * Returns the chain encoded by {@code base64Chain}, which may be shared
+	 * with other requests and so must not be modified.
+	 */
 	public static EncodedTransformerChain unpack(final String base64Chain) throws TransformationEncodingException {
+		EncodedTransformerChain chain = cache.get(base64Chain);
+		if (chain != null)
+			return chain;
 		try {
 			JsonElement json = Util.parseJSON( new String( Base64.decodeBase64(base64Chain) ) );
 			if (! json.isJsonArray())
 				throw new TransformationEncodingException("Badly encoded joined transformer information");
-			return new EncodedTransformerChain( json.getAsJsonArray(), base64Chain );
+			chain = new EncodedTransformerChain( json.getAsJsonArray(), base64Chain );
+			if (chain.isLocal())
+				cache.put(base64Chain, chain);
+			return chain;
 		} catch (JsonSyntaxException jse) {
 			throw new TransformationEncodingException("Unable to interpret joined transformer information");
 		}
 	}
 	
+	/**
+	 * Returns a single fused pipeline that applies {@code start} followed by
+	 * every transformer in this chain.
+	 * @see JoinedTransformer
+	 */
 	public Function constructProcessingPipeline(AbstractFunction start) throws TransformationEncodingException {
-		checkCompatible( start.getEmitsInJSON(), list.get(0).fetchTransformer(true).getAcceptsInJSON() );
-		return new JoinedTransformer(start, constructProcessingPipeline(0));
+		String startKey = start.getClass().getName() + " " + start.name + " " + start.emits;
+		if (! compatibleStarts.contains(startKey)) {
+			checkCompatible( start.getEmitsInJSON(), list.get(0).fetchTransformer(true).getAcceptsInJSON() );
+			compatibleStarts.add(startKey);
+		}
+		return constructVerifiedPipeline(start);
+	}
+	
+	/**
+	 * As for {@link #constructProcessingPipeline(AbstractFunction)}, but
+	 * without checking that {@code start} is compatible with the chain, which
+	 * must have been done previously (such as when the chain was stored).
+	 */
+	Function constructVerifiedPipeline(AbstractFunction start) throws TransformationEncodingException {
+		String startEmits = start.getEmitsInJSON().toString();
+		Function rest = pipelinesByStartEmits.get(startEmits);
+		if (rest == null) {
+			if (pipeline == null)
+				pipeline = constructProcessingPipeline(0);
+			rest = pipeline;
+			JsonArray enumValues = isPure(0) ? enumValues(start.getEmitsInJSON()) : null;
+			if (enumValues != null) {
+				try {
+					rest = new LookupTable(enumValues, pipeline);
+				} catch (BadValueException bve) { //start should not emit values the chain rejects, but it is not for the lookup table to say
+					rest = pipeline;
+				}
+			}
+			pipelinesByStartEmits.put(startEmits, rest);
+		}
+		return new JoinedTransformer( Arrays.<Function>asList(start, rest) );
+	}
+	
+	/**
+	 * Removes any cached chains that use the given predictor, which should
+	 * be called whenever a predictor is deleted.
+	 */
+	public static void invalidatePredictor(String predictorID) {
+		synchronized (cache) {
+			Iterator<EncodedTransformerChain> it = cache.values().iterator();
+			while (it.hasNext())
+				for (Link link : it.next().list) //predictors used by stored joined transformers are looked up on each use
+					if (link.type == TransformerType.PREDICTOR && link.extractID(link.f).equals(predictorID)) {
+						it.remove();
+						break;
+					}
+		}
+	}
+	
+	/** Removes any cached chains that use the given stored joined transformer. */
+	static void invalidateStoredTransformer(String id) {
+		synchronized (cache) {
+			Iterator<EncodedTransformerChain> it = cache.values().iterator();
+			while (it.hasNext())
+				if (it.next().usesTransformer(id))
+					it.remove();
+		}
+	}
+	
+	/** Returns {@code true} if a link in this chain is the local transformer with the given ID. */
+	boolean usesTransformer(String id) {
+		for (Link link : list)
+			if (link.type == TransformerType.TRANSFORMER && link.extractID(link.f).equals(id))
+				return true;
+		return false;
 	}
 	
 	private Function constructProcessingPipeline(int pos) throws TransformationEncodingException {
-		Transformer f = list.get(pos).fetchTransformer(false); 
-		if (pos < list.size() - 1)
-			return new JoinedTransformer(f, constructProcessingPipeline(pos+1));
-		return f;
+		if (pos == list.size() - 1)
+			return list.get(pos).fetchTransformer(false);
+		List<Function> stages = new ArrayList<>( list.size() - pos );
+		for (int i = pos; i < list.size(); i++)
+			stages.add( list.get(i).fetchTransformer(false) );
+		return new JoinedTransformer(stages);
 	}
 	
 	/**
@@ -156,6 +294,35 @@ public class EncodedTransformerChain {
 		return getEnd().emits;
 	}
 
+	/**
+	 * Returns {@code true} if every link refers to a transformer hosted by
+	 * this service, so that the chain's output can only change when one of
+	 * its {@linkplain #getPredictorIDs() predictors} does.
+	 */
+	public boolean isLocal() {
+		for (Link link : list)
+			if (link.type == TransformerType.EXTERNAL)
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Returns the IDs of the local predictors used in this chain, including
+	 * those used by any stored joined transformers in it that have been
+	 * fetched, as they all have once the chain's processing pipeline has
+	 * been constructed.
+	 */
+	public Set<String> getPredictorIDs() {
+		Set<String> ids = new HashSet<>();
+		for (Link link : list) {
+			if (link.type == TransformerType.PREDICTOR)
+				ids.add( link.extractID(link.f) );
+			else if (link.t instanceof ChainedTransformer)
+				ids.addAll( ((ChainedTransformer) link.t).getPredictorIDs() );
+		}
+		return ids;
+	}
+
 	/** Returns the description of the transformer chain (may be null). */
 	public String getDescription() { return getEnd().description; }
 	
@@ -166,6 +333,8 @@ public class EncodedTransformerChain {
 	
 	private void add(JsonElement mustAccept, String g, String description) throws TransformationEncodingException {
 		base64 = null;
+		pipeline = null;
+		pipelinesByStartEmits.clear();
 		String gt = null;
 		if (g.startsWith("http://")) {
 			try {
@@ -196,7 +365,8 @@ public class EncodedTransformerChain {
 		
 		//Add g's transformer chain if present; assume it is a valid extension to g
 		if (gt != null) {
-			list.addAll( EncodedTransformerChain.unpack(gt).list );
+			for (Link link : EncodedTransformerChain.unpack(gt).list)
+				list.add( new Link(link) ); //copied, since the last is modified below and the unpacked chain may be cached
 			list.get(list.size()-1).description = description; //only kept by last entry
 		}
 		
@@ -209,7 +379,9 @@ public class EncodedTransformerChain {
 	 * that the joined transformer's emits schema enumerates the values that
 	 * <em>it</em> emits. The modification is only made if the previous end
 	 * enumerates its values, the present end does not, and each link in the
-	 * chain appears to be an immutable function.
+	 * chain appears to be an immutable function. If the values were
+	 * enumerated by the start of the chain then the result is also kept as
+	 * the chain's {@link LookupTable} for that start.
 	 * @throws TransformationEncodingException if was unable to compile the old
 	 * or current end point's emits schema, or if one of the enumerated values
 	 * from the old end is not acceptable to the rest of the chain (which
@@ -220,13 +392,15 @@ public class EncodedTransformerChain {
 			JsonObject prevEndEmits = Schema.compileToJSONSchema(prevEmits);
 			if (prevEndEmits.has("enum")) {
 				JsonObject newEndEmits = Schema.compileToJSONSchema(getEmits());
-				if (! newEndEmits.has("enum")) {
-					for (int i = startRest, c = list.size(); i < c; i++)
-						if (! (list.get(i).fetchTransformer(false) instanceof BuiltinTransformer))
-							return; //could expand test to allow non-updatable predictors too
+				if (! newEndEmits.has("enum") && isPure(startRest)) {
 					Function fRest = constructProcessingPipeline(startRest);
-					JsonArray enumValues = fRest.apply( prevEndEmits.get("enum").getAsJsonArray().iterator() );
+					JsonArray inputs = prevEndEmits.get("enum").getAsJsonArray();
+					JsonArray enumValues = fRest.apply( inputs.iterator() );
 					getEnd().emits = Schema.addEnumToPSISchema( getEmits(), enumValues );
+					if (startRest == 0) {
+						pipeline = fRest;
+						pipelinesByStartEmits.put( prevEmits.toString(), new LookupTable(inputs, enumValues, fRest) );
+					}
 				}
 			}
 		} catch (ExternalResourceException ere) {
@@ -236,6 +410,30 @@ public class EncodedTransformerChain {
 		}
 	}
 	
+	/**
+	 * Returns {@code true} if every link from position {@code from} onwards
+	 * is a built-in or expression transformer or a predictor that cannot be
+	 * updated, and so always gives the same output for the same input.
+	 */
+	private boolean isPure(int from) throws TransformationEncodingException {
+		for (int i = from, c = list.size(); i < c; i++) {
+			Transformer t = list.get(i).fetchTransformer(false);
+			if (! (t instanceof BuiltinTransformer || t instanceof ExpressionTransformer || t instanceof Predictor && ! ((Predictor) t).isUpdatable()))
+				return false;
+		}
+		return true;
+	}
+	
+	/** Returns the values enumerated by the given emits schema, or {@code null} if it does not enumerate them. */
+	private static JsonArray enumValues(JsonElement emits) {
+		try {
+			JsonObject compiled = Schema.compileToJSONSchema(emits);
+			return compiled.has("enum") ? compiled.get("enum").getAsJsonArray() : null;
+		} catch (ExternalResourceException ere) {
+			return null; //no lookup table, but the chain still works
+		}
+	}
+	
 	/** Throws an exception if {@code Schema.isIncompatible(emits, accepts)}. */
 	protected void checkCompatible(JsonElement emits, JsonElement accepts) throws TransformationEncodingException {
 		try {
@@ -269,6 +467,15 @@ public class EncodedTransformerChain {
 			this.type = determineType(f);
 		}
 		
+		/** Copies the given link, including any transformer it has already fetched. */
+		public Link(Link other) {
+			this.f = other.f;
+			this.emits = other.emits;
+			this.description = other.description;
+			this.type = other.type;
+			this.t = other.t;
+		}
+		
 		public Link(String f, String description) throws TransformationEncodingException {
 			this(f, null, description);
 			fetchTransformer(true);
@@ -288,7 +495,7 @@ public class EncodedTransformerChain {
 				if (t != null && !(type == TransformerType.EXTERNAL && fetchExternal))
 					return t;
 				switch(type) {
-				case TRANSFORMER: t = BuiltinTransformer.load( extractID(f) ); break;
+				case TRANSFORMER: t = Transformers.find(Transformers.Kind.TRANSFORMER, extractID(f) ); break;
 				case PREDICTOR: t = Transformers.find(Transformers.Kind.PREDICTOR, extractID(f) );  break;
 				case EXTERNAL: t = new ExternalTransformer(f, fetchExternal); break;
 				default: t = null;
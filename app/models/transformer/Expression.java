@@ -0,0 +1,768 @@
+package models.transformer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import util.ExternalResourceException;
+import util.JSONType;
+import util.Schema;
+
+/**
+ * A small arithmetic and conditional expression over a transformer's input
+ * value, which is referred to as {@code x}. Expressions are parsed and
+ * checked against the schema of accepted values once, and compiled into a
+ * tree of nodes that each evaluate to a primitive {@code double} or
+ * {@code boolean}, so that evaluation involves no parsing, schema lookups or
+ * boxing beyond reading the input.
+ * <p>
+ * The language, from lowest to highest precedence:
+ * <ul>
+ *   <li>{@code c ? a : b}, where {@code c} is boolean and {@code a} and
+ *   {@code b} are both numbers or both booleans;</li>
+ *   <li>{@code ||}, then {@code &&}, on booleans;</li>
+ *   <li>{@code < <= > >= == !=} on numbers (and {@code == !=} on booleans);</li>
+ *   <li>{@code + -}, then {@code * / %}, then unary {@code -} and
+ *   {@code !}, then {@code ^} (power, right associative);</li>
+ *   <li>{@code x.field} and {@code x[i]} to select an object's field or an
+ *   array's element (with {@code i} a literal integer);</li>
+ *   <li>number literals, {@code true}, {@code false}, {@code x}, parentheses
+ *   and the functions {@code abs sqrt exp log floor ceil round} (of a
+ *   number), {@code min max} (of two numbers, or of an array of numbers),
+ *   and {@code sum mean len} (of an array of numbers); {@code round} is
+ *   {@link Math#rint}, so rounds halves to the even integer
+ *   ({@code round(2.5)} is 2).</li>
+ * </ul>
+ * If the input, or any field or element selected from it, is missing or
+ * {@code null}, or a number expression evaluates to a non-finite value,
+ * then the expression's value is {@code null}.
+ */
+public final class Expression {
+	/** The expression as given. */
+	private final String text;
+	/** Root of the compiled expression; either a {@link NumberNode} or a {@link BooleanNode}. */
+	private final Node root;
+	/** {@code true} if the accepted value is itself a number, which may then be read unboxed. */
+	private final boolean numericInput;
+
+	private Expression(String text, Node root, boolean numericInput) {
+		this.text = text;
+		this.root = root;
+		this.numericInput = numericInput;
+	}
+
+	/**
+	 * Parses the given expression and checks it against the PSI schema of
+	 * the values it will be applied to.
+	 * @throws IllegalArgumentException if the expression is malformed or
+	 *  does not make sense for values described by {@code accepts}.
+	 * @throws ExternalResourceException if {@code accepts} refers to a
+	 *  schema that cannot be retrieved.
+	 */
+	public static Expression compile(String text, JsonElement accepts) throws ExternalResourceException {
+		JsonObject schema = Schema.compileToJSONSchema(accepts);
+		Parser parser = new Parser(text, schema);
+		Node root = parser.parse();
+		if (root instanceof Path)
+			root = ((Path) root).asAtomic();
+		return new Expression(text, root, isType(schema, "number") || isType(schema, "integer"));
+	}
+
+	/** Returns the type of the expression's values, {@code NUMBER} or {@code BOOLEAN}. */
+	public JSONType getType() {
+		return root instanceof NumberNode ? JSONType.NUMBER : JSONType.BOOLEAN;
+	}
+
+	/** Returns the expression's value for the given input. */
+	public JsonElement apply(JsonElement value) {
+		if (value == null || value.isJsonNull())
+			return JsonNull.INSTANCE;
+		Input in = new Input();
+		in.set(value, numericInput);
+		return evaluate(in);
+	}
+
+	/**
+	 * Returns the expression's values for each of the given inputs; number
+	 * expressions are evaluated straight into a {@link Column.Doubles}.
+	 */
+	public Column apply(Column values) {
+		final int size = values.size();
+		Input in = new Input();
+		double[] numbers = numericInput && values instanceof Column.Doubles ? ((Column.Doubles) values).values : null;
+		if (root instanceof NumberNode) {
+			NumberNode f = (NumberNode) root;
+			Column.Doubles output = new Column.Doubles(size);
+			for (int i = 0; i < size; i++) {
+				if (values.isMissing(i)) {
+					output.setMissing(i);
+					continue;
+				}
+				if (numbers != null)
+					in.number = numbers[i];
+				else
+					in.set(values.get(i), numericInput);
+				try {
+					double result = f.eval(in);
+					if (Double.isNaN(result) || Double.isInfinite(result))
+						output.setMissing(i);
+					else
+						output.values[i] = result;
+				} catch (MissingValue mv) {
+					output.setMissing(i);
+				}
+			}
+			return output;
+		}
+		Column output = Column.allocate(getType(), size);
+		for (int i = 0; i < size; i++) {
+			if (values.isMissing(i))
+				output.set(i, JsonNull.INSTANCE);
+			else {
+				if (numbers != null)
+					in.number = numbers[i];
+				else
+					in.set(values.get(i), numericInput);
+				output.set(i, evaluate(in));
+			}
+		}
+		return output;
+	}
+
+	private JsonElement evaluate(Input in) {
+		try {
+			if (root instanceof BooleanNode)
+				return new JsonPrimitive( ((BooleanNode) root).eval(in) );
+			double result = ((NumberNode) root).eval(in);
+			return Double.isNaN(result) || Double.isInfinite(result) ? JsonNull.INSTANCE : new JsonPrimitive(result);
+		} catch (MissingValue mv) {
+			return JsonNull.INSTANCE;
+		}
+	}
+
+	@Override
+	public String toString() { return text; }
+
+	private static boolean isType(JsonObject schema, String type) {
+		JsonElement t = schema.get("type");
+		return t != null && t.isJsonPrimitive() && t.getAsString().equals(type);
+	}
+
+	//--Evaluation-------------------------------------------------------------
+
+	/** The value an expression is being evaluated for. */
+	private static final class Input {
+		JsonElement value;
+		/** The value as a number, if the input is numeric. */
+		double number;
+
+		void set(JsonElement value, boolean numeric) {
+			this.value = value;
+			if (numeric)
+				this.number = value.getAsDouble();
+		}
+	}
+
+	/** Thrown when a selected field or element is missing; preallocated as it is not exceptional. */
+	private static final class MissingValue extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		static final MissingValue INSTANCE = new MissingValue();
+
+		private MissingValue() { super("Missing value", null, false, false); }
+	}
+
+	private static interface Node { }
+
+	private static abstract class NumberNode implements Node {
+		abstract double eval(Input in);
+	}
+
+	private static abstract class BooleanNode implements Node {
+		abstract boolean eval(Input in);
+	}
+
+	private static final class Constant extends NumberNode {
+		private final double value;
+		Constant(double value) { this.value = value; }
+		double eval(Input in) { return value; }
+	}
+
+	private static final class BooleanConstant extends BooleanNode {
+		private final boolean value;
+		BooleanConstant(boolean value) { this.value = value; }
+		boolean eval(Input in) { return value; }
+	}
+
+	/** The input value, when it is a number. */
+	private static final class NumericInput extends NumberNode {
+		double eval(Input in) { return in.number; }
+	}
+
+	private static final class Negate extends NumberNode {
+		private final NumberNode a;
+		Negate(NumberNode a) { this.a = a; }
+		double eval(Input in) { return -a.eval(in); }
+	}
+
+	private static final class Add extends NumberNode {
+		private final NumberNode a, b;
+		Add(NumberNode a, NumberNode b) { this.a = a; this.b = b; }
+		double eval(Input in) { return a.eval(in) + b.eval(in); }
+	}
+
+	private static final class Subtract extends NumberNode {
+		private final NumberNode a, b;
+		Subtract(NumberNode a, NumberNode b) { this.a = a; this.b = b; }
+		double eval(Input in) { return a.eval(in) - b.eval(in); }
+	}
+
+	private static final class Multiply extends NumberNode {
+		private final NumberNode a, b;
+		Multiply(NumberNode a, NumberNode b) { this.a = a; this.b = b; }
+		double eval(Input in) { return a.eval(in) * b.eval(in); }
+	}
+
+	private static final class Divide extends NumberNode {
+		private final NumberNode a, b;
+		Divide(NumberNode a, NumberNode b) { this.a = a; this.b = b; }
+		double eval(Input in) { return a.eval(in) / b.eval(in); }
+	}
+
+	private static final class Remainder extends NumberNode {
+		private final NumberNode a, b;
+		Remainder(NumberNode a, NumberNode b) { this.a = a; this.b = b; }
+		double eval(Input in) { return a.eval(in) % b.eval(in); }
+	}
+
+	private static final class Power extends NumberNode {
+		private final NumberNode a, b;
+		Power(NumberNode a, NumberNode b) { this.a = a; this.b = b; }
+		double eval(Input in) { return Math.pow(a.eval(in), b.eval(in)); }
+	}
+
+	/** The functions of one number. */
+	private static enum UnaryFunction {
+		ABS { double apply(double v) { return Math.abs(v); } },
+		SQRT { double apply(double v) { return Math.sqrt(v); } },
+		EXP { double apply(double v) { return Math.exp(v); } },
+		LOG { double apply(double v) { return Math.log(v); } },
+		FLOOR { double apply(double v) { return Math.floor(v); } },
+		CEIL { double apply(double v) { return Math.ceil(v); } },
+		ROUND { double apply(double v) { return Math.rint(v); } };
+
+		abstract double apply(double v);
+	}
+
+	/** The functions of two numbers. */
+	private static enum BinaryFunction {
+		MIN { double apply(double v, double w) { return Math.min(v, w); } },
+		MAX { double apply(double v, double w) { return Math.max(v, w); } };
+
+		abstract double apply(double v, double w);
+	}
+
+	/** The functions of an array of numbers, other than its length, which combine its elements in turn. */
+	private static enum Aggregation {
+		SUM(0) { double combine(double total, double v) { return total + v; } },
+		MEAN(0) { double combine(double total, double v) { return total + v; } },
+		MIN(Double.POSITIVE_INFINITY) { double combine(double min, double v) { return Math.min(min, v); } },
+		MAX(Double.NEGATIVE_INFINITY) { double combine(double max, double v) { return Math.max(max, v); } };
+
+		/** The value of an empty array. */
+		final double initial;
+		Aggregation(double initial) { this.initial = initial; }
+
+		abstract double combine(double result, double v);
+	}
+
+	private static final class UnaryCall extends NumberNode {
+		private final UnaryFunction function;
+		private final NumberNode a;
+		UnaryCall(UnaryFunction function, NumberNode a) { this.function = function; this.a = a; }
+		double eval(Input in) { return function.apply(a.eval(in)); }
+	}
+
+	private static final class BinaryCall extends NumberNode {
+		private final BinaryFunction function;
+		private final NumberNode a, b;
+		BinaryCall(BinaryFunction function, NumberNode a, NumberNode b) { this.function = function; this.a = a; this.b = b; }
+		double eval(Input in) { return function.apply(a.eval(in), b.eval(in)); }
+	}
+
+	/** The number of elements of an array. */
+	private static final class Length extends NumberNode {
+		private final Path array;
+		Length(Path array) { this.array = array; }
+		double eval(Input in) { return array.select(in).getAsJsonArray().size(); }
+	}
+
+	/** A function of an array of numbers, combining them as they are read. */
+	private static final class Aggregate extends NumberNode {
+		private final Aggregation function;
+		private final Path array;
+		Aggregate(Aggregation function, Path array) { this.function = function; this.array = array; }
+		double eval(Input in) {
+			JsonArray values = array.select(in).getAsJsonArray();
+			final int n = values.size();
+			double result = function.initial;
+			for (int i = 0; i < n; i++) {
+				JsonElement el = values.get(i);
+				if (el.isJsonNull())
+					throw MissingValue.INSTANCE;
+				result = function.combine(result, el.getAsDouble());
+			}
+			return function == Aggregation.MEAN ? result / n : result;
+		}
+	}
+
+	private static final class NumberChoice extends NumberNode {
+		private final BooleanNode c;
+		private final NumberNode a, b;
+		NumberChoice(BooleanNode c, NumberNode a, NumberNode b) { this.c = c; this.a = a; this.b = b; }
+		double eval(Input in) { return c.eval(in) ? a.eval(in) : b.eval(in); }
+	}
+
+	private static final class BooleanChoice extends BooleanNode {
+		private final BooleanNode c, a, b;
+		BooleanChoice(BooleanNode c, BooleanNode a, BooleanNode b) { this.c = c; this.a = a; this.b = b; }
+		boolean eval(Input in) { return c.eval(in) ? a.eval(in) : b.eval(in); }
+	}
+
+	private static final class Not extends BooleanNode {
+		private final BooleanNode a;
+		Not(BooleanNode a) { this.a = a; }
+		boolean eval(Input in) { return ! a.eval(in); }
+	}
+
+	private static final class And extends BooleanNode {
+		private final BooleanNode a, b;
+		And(BooleanNode a, BooleanNode b) { this.a = a; this.b = b; }
+		boolean eval(Input in) { return a.eval(in) && b.eval(in); }
+	}
+
+	private static final class Or extends BooleanNode {
+		private final BooleanNode a, b;
+		Or(BooleanNode a, BooleanNode b) { this.a = a; this.b = b; }
+		boolean eval(Input in) { return a.eval(in) || b.eval(in); }
+	}
+
+	/** The comparisons of numbers, by their operators. */
+	private static enum Comparison {
+		LT("<") { boolean test(double x, double y) { return x < y; } },
+		LE("<=") { boolean test(double x, double y) { return x <= y; } },
+		GT(">") { boolean test(double x, double y) { return x > y; } },
+		GE(">=") { boolean test(double x, double y) { return x >= y; } },
+		EQ("==") { boolean test(double x, double y) { return x == y; } },
+		NE("!=") { boolean test(double x, double y) { return x != y; } };
+
+		final String operator;
+		Comparison(String operator) { this.operator = operator; }
+
+		abstract boolean test(double x, double y);
+
+		/** Returns the comparison written as the given token, or {@code null} if it is not a comparison operator. */
+		static Comparison of(String token) {
+			for (Comparison c : values())
+				if (c.operator.equals(token))
+					return c;
+			return null;
+		}
+	}
+
+	private static final class Compare extends BooleanNode {
+		private final Comparison op;
+		private final NumberNode a, b;
+		Compare(Comparison op, NumberNode a, NumberNode b) { this.op = op; this.a = a; this.b = b; }
+		boolean eval(Input in) { return op.test(a.eval(in), b.eval(in)); }
+	}
+
+	private static final class BooleanEquals extends BooleanNode {
+		private final boolean negate;
+		private final BooleanNode a, b;
+		BooleanEquals(boolean negate, BooleanNode a, BooleanNode b) { this.negate = negate; this.a = a; this.b = b; }
+		boolean eval(Input in) { return (a.eval(in) == b.eval(in)) != negate; }
+	}
+
+	/**
+	 * A field or element selected from the input, along with the (JSON)
+	 * schema describing it. Paths are only evaluated through one of the
+	 * atomic nodes returned by {@link #asAtomic()} or by an {@link Aggregate}.
+	 */
+	private static final class Path implements Node {
+		/** Field names (as Strings) and element indices (as Integers). */
+		private final Object[] steps;
+		final JsonObject schema;
+
+		Path(Object[] steps, JsonObject schema) { this.steps = steps; this.schema = schema; }
+
+		/** Returns the path extended by selecting the given field or element. */
+		Path select(Object step, String description) {
+			JsonObject stepSchema = null;
+			if (step instanceof String) {
+				if (! isType(schema, "object") || ! schema.has("properties") || ! schema.getAsJsonObject("properties").has((String) step))
+					throw new IllegalArgumentException("Accepted values do not have a field '" + step + "' to select in " + description);
+				stepSchema = schema.getAsJsonObject("properties").getAsJsonObject((String) step);
+			} else {
+				int index = (Integer) step;
+				JsonElement items = isType(schema, "array") ? schema.get("items") : null;
+				if (items != null && items.isJsonObject())
+					stepSchema = items.getAsJsonObject();
+				else if (items != null && items.isJsonArray() && index < items.getAsJsonArray().size())
+					stepSchema = items.getAsJsonArray().get(index).getAsJsonObject();
+				else
+					throw new IllegalArgumentException("Accepted values are not arrays with an element " + index + " to select in " + description);
+			}
+			Object[] extended = new Object[steps.length + 1];
+			System.arraycopy(steps, 0, extended, 0, steps.length);
+			extended[steps.length] = step;
+			return new Path(extended, stepSchema);
+		}
+
+		/** Returns the selected value, which must be present. */
+		JsonElement select(Input in) {
+			JsonElement value = in.value;
+			for (Object step : steps) {
+				if (step instanceof String) {
+					value = value.getAsJsonObject().get((String) step);
+				} else {
+					JsonArray array = value.getAsJsonArray();
+					int index = (Integer) step;
+					value = index < array.size() ? array.get(index) : null;
+				}
+				if (value == null || value.isJsonNull())
+					throw MissingValue.INSTANCE;
+			}
+			return value;
+		}
+
+		boolean isNumber() { return isType(schema, "number") || isType(schema, "integer"); }
+
+		boolean isBoolean() { return isType(schema, "boolean"); }
+
+		boolean isNumberArray() {
+			if (! isType(schema, "array") || ! schema.has("items"))
+				return false;
+			JsonElement items = schema.get("items");
+			if (items.isJsonObject())
+				return isType(items.getAsJsonObject(), "number") || isType(items.getAsJsonObject(), "integer");
+			for (JsonElement item : items.getAsJsonArray())
+				if (! isType(item.getAsJsonObject(), "number") && ! isType(item.getAsJsonObject(), "integer"))
+					return false;
+			return true;
+		}
+
+		/** Returns a node reading the selected number or boolean. */
+		Node asAtomic() {
+			if (isNumber())
+				return steps.length == 0 ? new NumericInput() : new SelectedNumber(this);
+			if (isBoolean())
+				return new SelectedBoolean(this);
+			throw new IllegalArgumentException(describe() + " is neither a number nor a boolean");
+		}
+
+		String describe() {
+			StringBuilder sb = new StringBuilder("x");
+			for (Object step : steps)
+				sb.append(step instanceof String ? "." + step : "[" + step + "]");
+			return sb.toString();
+		}
+	}
+
+	private static final class SelectedNumber extends NumberNode {
+		private final Path path;
+		SelectedNumber(Path path) { this.path = path; }
+		double eval(Input in) { return path.select(in).getAsDouble(); }
+	}
+
+	private static final class SelectedBoolean extends BooleanNode {
+		private final Path path;
+		SelectedBoolean(Path path) { this.path = path; }
+		boolean eval(Input in) { return path.select(in).getAsBoolean(); }
+	}
+
+	//--Parsing----------------------------------------------------------------
+
+	/** A recursive descent parser that type checks as it goes. */
+	private static final class Parser {
+		private final String text;
+		private final JsonObject inputSchema;
+		private final List<String> tokens = new ArrayList<>();
+		private int pos = 0;
+
+		Parser(String text, JsonObject inputSchema) {
+			this.text = text;
+			this.inputSchema = inputSchema;
+			tokenise();
+		}
+
+		Node parse() {
+			if (tokens.isEmpty())
+				throw new IllegalArgumentException("Empty expression");
+			Node node = conditional();
+			if (pos < tokens.size())
+				throw error("Unexpected '" + tokens.get(pos) + "'");
+			return node;
+		}
+
+		private void tokenise() {
+			int i = 0;
+			while (i < text.length()) {
+				char c = text.charAt(i);
+				if (Character.isWhitespace(c)) {
+					i++;
+				} else if (Character.isDigit(c) || c == '.' && i + 1 < text.length() && Character.isDigit(text.charAt(i + 1)) && ! lastTokenEndsPath()) {
+					int start = i;
+					while (i < text.length() && (Character.isDigit(text.charAt(i)) || text.charAt(i) == '.'))
+						i++;
+					if (i < text.length() && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+						i++;
+						if (i < text.length() && (text.charAt(i) == '+' || text.charAt(i) == '-'))
+							i++;
+						while (i < text.length() && Character.isDigit(text.charAt(i)))
+							i++;
+					}
+					tokens.add( text.substring(start, i) );
+				} else if (Character.isJavaIdentifierStart(c)) {
+					int start = i;
+					while (i < text.length() && Character.isJavaIdentifierPart(text.charAt(i)))
+						i++;
+					tokens.add( text.substring(start, i) );
+				} else if (i + 1 < text.length() && isTwoCharOperator( text.substring(i, i + 2) )) {
+					tokens.add( text.substring(i, i + 2) );
+					i += 2;
+				} else if ("+-*/%^()[].,?:<>!".indexOf(c) >= 0) {
+					tokens.add( String.valueOf(c) );
+					i++;
+				} else {
+					throw new IllegalArgumentException("Unexpected character '" + c + "' at position " + i + " in expression: " + text);
+				}
+			}
+		}
+
+		private boolean lastTokenEndsPath() {
+			if (tokens.isEmpty())
+				return false;
+			String last = tokens.get(tokens.size() - 1);
+			return last.equals("]") || last.equals(")") || Character.isJavaIdentifierPart(last.charAt(last.length() - 1));
+		}
+
+		private static boolean isTwoCharOperator(String s) {
+			return s.equals("<=") || s.equals(">=") || s.equals("==") || s.equals("!=") || s.equals("&&") || s.equals("||");
+		}
+
+		private String peek() { return pos < tokens.size() ? tokens.get(pos) : null; }
+
+		private boolean accept(String token) {
+			if (token.equals(peek())) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String token) {
+			if (! accept(token))
+				throw error("Expected '" + token + "'" + (peek() == null ? " but the expression ended" : " but found '" + peek() + "'"));
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " in expression: " + text);
+		}
+
+		private NumberNode number(Node node) {
+			if (node instanceof Path)
+				node = ((Path) node).asAtomic();
+			if (! (node instanceof NumberNode))
+				throw error("Expected a number but found a boolean");
+			return (NumberNode) node;
+		}
+
+		private BooleanNode bool(Node node) {
+			if (node instanceof Path)
+				node = ((Path) node).asAtomic();
+			if (! (node instanceof BooleanNode))
+				throw error("Expected a boolean but found a number");
+			return (BooleanNode) node;
+		}
+
+		private Node conditional() {
+			Node c = or();
+			if (! accept("?"))
+				return c;
+			Node a = conditional();
+			expect(":");
+			Node b = conditional();
+			if (a instanceof Path)
+				a = ((Path) a).asAtomic();
+			return a instanceof NumberNode ? new NumberChoice(bool(c), (NumberNode) a, number(b)) : new BooleanChoice(bool(c), (BooleanNode) a, bool(b));
+		}
+
+		private Node or() {
+			Node a = and();
+			while (accept("||"))
+				a = new Or(bool(a), bool(and()));
+			return a;
+		}
+
+		private Node and() {
+			Node a = comparison();
+			while (accept("&&"))
+				a = new And(bool(a), bool(comparison()));
+			return a;
+		}
+
+		private Node comparison() {
+			Node a = sum();
+			Comparison op = Comparison.of(peek());
+			if (op != null) {
+				pos++;
+				Node b = sum();
+				if (a instanceof Path)
+					a = ((Path) a).asAtomic();
+				if (a instanceof BooleanNode && (op == Comparison.EQ || op == Comparison.NE))
+					return new BooleanEquals(op == Comparison.NE, (BooleanNode) a, bool(b));
+				return new Compare(op, number(a), number(b));
+			}
+			return a;
+		}
+
+		private Node sum() {
+			Node a = product();
+			while (true) {
+				if (accept("+"))
+					a = new Add(number(a), number(product()));
+				else if (accept("-"))
+					a = new Subtract(number(a), number(product()));
+				else
+					return a;
+			}
+		}
+
+		private Node product() {
+			Node a = unary();
+			while (true) {
+				if (accept("*"))
+					a = new Multiply(number(a), number(unary()));
+				else if (accept("/"))
+					a = new Divide(number(a), number(unary()));
+				else if (accept("%"))
+					a = new Remainder(number(a), number(unary()));
+				else
+					return a;
+			}
+		}
+
+		private Node unary() {
+			if (accept("-"))
+				return new Negate(number(unary()));
+			if (accept("!"))
+				return new Not(bool(unary()));
+			return power();
+		}
+
+		private Node power() {
+			Node a = postfix();
+			if (accept("^"))
+				return new Power(number(a), number(unary()));
+			return a;
+		}
+
+		private Node postfix() {
+			Node a = primary();
+			while (peek() != null && (peek().equals(".") || peek().equals("["))) {
+				if (! (a instanceof Path))
+					throw error("Only x and the fields and elements selected from it have fields and elements");
+				if (accept(".")) {
+					String field = peek();
+					if (field == null || ! Character.isJavaIdentifierStart(field.charAt(0)))
+						throw error("Expected a field name after '.'");
+					pos++;
+					a = ((Path) a).select(field, text);
+				} else {
+					expect("[");
+					String index = peek();
+					if (index == null || ! index.matches("\\d+"))
+						throw error("Expected a literal element index after '['");
+					pos++;
+					expect("]");
+					a = ((Path) a).select(Integer.valueOf(index), text);
+				}
+			}
+			return a;
+		}
+
+		private Node primary() {
+			String token = peek();
+			if (token == null)
+				throw error("Unexpected end");
+			pos++;
+			if (token.equals("(")) {
+				Node a = conditional();
+				expect(")");
+				return a;
+			}
+			if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '.') {
+				try {
+					return new Constant( Double.parseDouble(token) );
+				} catch (NumberFormatException nfe) {
+					throw error("Malformed number '" + token + "'");
+				}
+			}
+			switch (token) {
+			case "true": return new BooleanConstant(true);
+			case "false": return new BooleanConstant(false);
+			case "x": return new Path(new Object[0], inputSchema);
+			default: break;
+			}
+			if (Character.isJavaIdentifierStart(token.charAt(0)) && "(".equals(peek()))
+				return call(token);
+			throw error("Unexpected '" + token + "'");
+		}
+
+		private Node call(String function) {
+			expect("(");
+			List<Node> args = new ArrayList<>();
+			if (! accept(")")) {
+				do {
+					args.add( conditional() );
+				} while (accept(","));
+				expect(")");
+			}
+			switch (function) {
+			case "abs": case "sqrt": case "exp": case "log": case "floor": case "ceil": case "round":
+				checkArgCount(function, args, 1);
+				return new UnaryCall(UnaryFunction.valueOf(function.toUpperCase(Locale.ROOT)), number(args.get(0)));
+			case "min": case "max":
+				if (args.size() == 1)
+					return aggregate(function, args.get(0));
+				checkArgCount(function, args, 2);
+				return new BinaryCall(BinaryFunction.valueOf(function.toUpperCase(Locale.ROOT)), number(args.get(0)), number(args.get(1)));
+			case "sum": case "mean": case "len":
+				checkArgCount(function, args, 1);
+				return aggregate(function, args.get(0));
+			default:
+				throw error("Unknown function '" + function + "'");
+			}
+		}
+
+		private Node aggregate(String function, Node arg) {
+			if (! (arg instanceof Path) || ! ((Path) arg).isNumberArray())
+				throw error(function + "() of one argument requires an array of numbers selected from x");
+			if (function.equals("len"))
+				return new Length((Path) arg);
+			return new Aggregate(Aggregation.valueOf(function.toUpperCase(Locale.ROOT)), (Path) arg);
+		}
+
+		private void checkArgCount(String function, List<Node> args, int count) {
+			if (args.size() != count)
+				throw error(function + "() takes " + count + " argument" + (count == 1 ? "" : "s") + " but was given " + args.size());
+		}
+	}
+
+}
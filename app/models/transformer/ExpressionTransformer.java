@@ -0,0 +1,112 @@
+package models.transformer;
+
+import java.util.Date;
+
+import javax.persistence.Entity;
+import javax.persistence.Lob;
+import javax.persistence.Transient;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import models.PSIMessage;
+import util.ExternalResourceException;
+import util.NameSequences;
+import util.Util;
+
+/**
+ * A transformer defined by an arithmetic or conditional {@link Expression}
+ * over its input, so that simple derived features can be computed within
+ * this service rather than by joining an external transformer. The
+ * expression is checked against the accepts schema when the transformer is
+ * created and compiled once when the transformer is first used.
+ */
+@Entity
+public class ExpressionTransformer extends Transformer {
+	private static final long serialVersionUID = 1L;
+
+	/** The expression's text. */
+	@Lob
+	public String expression;
+	/** The compiled expression. */
+	@Transient
+	private Expression compiled;
+
+	public ExpressionTransformer() { this(""); }
+
+	public ExpressionTransformer(String name) {
+		super(name);
+	}
+
+	/**
+	 * Creates and stores a transformer that evaluates {@code expression} for
+	 * values described by {@code accepts}.
+	 * @throws IllegalArgumentException if the expression is malformed or
+	 *  does not suit the accepted values.
+	 * @throws ExternalResourceException if {@code accepts} refers to a schema
+	 *  that cannot be retrieved.
+	 */
+	public static ExpressionTransformer create(String expression, JsonElement accepts, String description) throws ExternalResourceException {
+		Expression compiled = Expression.compile(expression, accepts);
+		String name = NameSequences.reserve("expression1", "expression%d", NAME_IN_USE);
+		try {
+			ExpressionTransformer t = new ExpressionTransformer(name);
+			t.expression = expression;
+			t.compiled = compiled;
+			t.accepts = accepts.toString();
+			t.emits = "\"$" + compiled.getType().toString().toLowerCase() + "\"";
+			t.description = description == null ? "Evaluates " + expression : description;
+			JsonObject provenance = new JsonObject();
+			provenance.addProperty("created", Util.UTC_DATETIME_FORMAT.format(new Date()));
+			provenance.addProperty("expression", expression);
+			t.provenance = provenance.toString();
+			t.save();
+			return t;
+		} finally {
+			NameSequences.release(name);
+		}
+	}
+
+	/** Discards any cached chains using this transformer; call when it is deleted. */
+	public void forgetPipeline() {
+		EncodedTransformerChain.invalidateStoredTransformer(name);
+	}
+
+	private synchronized Expression getCompiled() {
+		if (compiled == null) {
+			try {
+				compiled = Expression.compile(expression, Util.parseJSON(accepts));
+			} catch (ExternalResourceException ere) {
+				throw new RuntimeException("Expression transformer '" + name + "' could not be compiled: " + ere.getMessage(), ere);
+			}
+		}
+		return compiled;
+	}
+
+	//--Function interface-----------------------------------------------------
+
+	public JsonElement apply(JsonElement value) {
+		return getCompiled().apply(value);
+	}
+
+	public Column apply(Column values) {
+		return getCompiled().apply(values);
+	}
+
+	//--Requests---------------------------------------------------------------
+
+	/** A request to create an expression transformer. */
+	public static class Create extends PSIMessage {
+		/** The expression, over the input value {@code x}. */
+		public String expression;
+		/** Schema describing the values the transformer will accept. */
+		public JsonElement accepts;
+		/** [opt] Human-readable description of the new transformer. */
+		public String description;
+
+		public boolean isValid() {
+			return super.isValid() && validateAllNonNull(expression, accepts);
+		}
+	}
+
+}
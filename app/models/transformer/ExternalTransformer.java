@@ -3,20 +3,41 @@
  */
 package models.transformer;
 
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 
+import models.PSIResponse;
+import play.Play;
+import play.libs.F.Promise;
+import play.libs.Time;
+import play.libs.WS.HttpResponse;
+import util.ConfKeys;
 import util.ExternalResourceException;
 import util.HttpUtil;
+import util.RemoteResourceCache;
 import util.Util;
 
 /**
  * Wrapper for an external transformer that can interact with it to obtain
  * its metadata or apply it to a value.
  * <p>
- * A possible future improvement could be to override the
- * {@link #apply(java.util.Iterator)} operation to issue a number of external
- * requests simultaneously. But this would add substantial complication as the
- * responses would need to be ordered correctly. 
+ * When applied to many values, a number of requests are issued at once and
+ * their responses collected in the order of the values. The number of
+ * requests in progress to any one host, across all external transformers, is
+ * limited by {@link ConfKeys#EXTERNAL_MAX_REQUESTS_PER_HOST}, and each
+ * response must arrive within {@link ConfKeys#EXTERNAL_REQUEST_TIMEOUT}.
  *
  */
 public class ExternalTransformer extends Transformer {
@@ -26,6 +47,11 @@ public class ExternalTransformer extends Transformer {
 	private String uri;
 	/** Cached JSON representation of provenance. */
 	public JsonElement provenanceInJSON;
+	
+	private static final int maxRequestsPerHost = Integer.parseInt( Play.configuration.getProperty(ConfKeys.EXTERNAL_MAX_REQUESTS_PER_HOST, "8") );
+	private static final String requestTimeout = Play.configuration.getProperty(ConfKeys.EXTERNAL_REQUEST_TIMEOUT, "30s");
+	/** Permits for requests to each host (and port), shared by all external transformers. */
+	private static final ConcurrentMap<String,Semaphore> hostPermits = new ConcurrentHashMap<>();
 
 	public ExternalTransformer(String uri, boolean fetchProperties) throws ExternalResourceException {
 		this.uri = uri;
@@ -34,7 +60,7 @@ public class ExternalTransformer extends Transformer {
 	}
 	
 	public void fetchProperties() throws ExternalResourceException {
-		Description r = HttpUtil.getPSIResponse(uri);
+		Description r = (Description) PSIResponse.jsonToMessage( RemoteResourceCache.getJSON(uri) );
 		this.acceptsInJSON = r.accepts;
 		this.accepts = r.accepts.toString();
 		this.emitsInJSON = r.emits;
@@ -52,4 +78,78 @@ public class ExternalTransformer extends Transformer {
 			throw new RuntimeException(e); //Downgrade exception; will result in 500 status elsewhere, but that's the most appropriate since it's not the client's fault
 		}
 	}
+	
+	/**
+	 * Applies the external transformer to each value, keeping up to
+	 * {@link ConfKeys#EXTERNAL_MAX_REQUESTS_PER_HOST} requests in progress.
+	 * Responses are collected in order, so a slow response delays the
+	 * collection (but not the sending) of those behind it.
+	 */
+	@Override
+	public JsonArray apply(Iterator<JsonElement> values) throws BadValueException {
+		Semaphore permits;
+		try {
+			if (maxRequestsPerHost <= 1 || HttpUtil.isServedLocally(uri))
+				return super.apply(values);
+			permits = permitsFor(new URI(uri));
+		} catch (URISyntaxException urise) {
+			throw new RuntimeException(urise);
+		}
+		long timeoutMillis = Time.parseDuration(requestTimeout) * 1000L;
+		Deque<Promise<HttpResponse>> inProgress = new ArrayDeque<>();
+		JsonArray result = new JsonArray();
+		try {
+			while (values.hasNext()) {
+				if (inProgress.isEmpty()) {
+					if (! permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+						throw new ExternalResourceException("Timed out waiting for other requests to " + uri + " to complete");
+				} else if (! permits.tryAcquire()) { //make room by collecting the oldest response
+					result.add( collect(inProgress.removeFirst(), permits, timeoutMillis) );
+					continue;
+				}
+				try {
+					inProgress.addLast( HttpUtil.getAsync(uri, Util.makeMap(VALUE_ARG, values.next()), requestTimeout) );
+				} catch (RuntimeException e) {
+					permits.release();
+					throw e;
+				}
+			}
+			while (! inProgress.isEmpty())
+				result.add( collect(inProgress.removeFirst(), permits, timeoutMillis) );
+			return result;
+		} catch (ExternalResourceException e) {
+			throw new RuntimeException(e); //as for apply(JsonElement)
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ie);
+		} finally {
+			for (int i = 0; i < inProgress.size(); i++) //abandoned after a failure
+				permits.release();
+		}
+	}
+	
+	/** Waits for a response and extracts its value, releasing the request's permit. */
+	private JsonElement collect(Promise<HttpResponse> response, Semaphore permits, long timeoutMillis) throws ExternalResourceException, InterruptedException {
+		try {
+			return ((Value) PSIResponse.jsonToMessage( HttpUtil.responseToJSON(uri, response.get(timeoutMillis, TimeUnit.MILLISECONDS)) )).value;
+		} catch (TimeoutException te) {
+			throw new ExternalResourceException("No response from " + uri + " within " + requestTimeout);
+		} catch (ExecutionException ee) {
+			throw new ExternalResourceException("Request to " + uri + " failed: " + ee.getCause());
+		} finally {
+			permits.release();
+		}
+	}
+	
+	private static Semaphore permitsFor(URI uri) {
+		String host = uri.getHost() + ":" + uri.getPort();
+		Semaphore permits = hostPermits.get(host);
+		if (permits == null) {
+			Semaphore fresh = new Semaphore(maxRequestsPerHost);
+			permits = hostPermits.putIfAbsent(host, fresh);
+			if (permits == null)
+				permits = fresh;
+		}
+		return permits;
+	}
 }
@@ -3,35 +3,82 @@
  */
 package models.transformer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 
 
 /**
- * A {@link Function} whose output is transformed by another {@link Function}.
+ * A {@link Function} whose output is transformed by one or more further
+ * {@link Function}s. Nested joins are flattened into a single list of stages
+ * so that, when applied to many values, each chunk of values is pushed
+ * through every stage before the next chunk is read; only the final output
+ * is accumulated. Each stage uses its batch path (when it has one) on the
+ * chunk as a {@link Column}. Columns are likewise pushed through the stages
+ * a chunk at a time; both paths use chunks of {@link Column#CHUNK_SIZE}, so
+ * that the intermediate columns are bounded however many values there are.
  *
  */
-public class JoinedTransformer implements Function {
-	/** The underlying function. */
-	private Function f;
-	/** The function to be applied to that transformer's output. */
-	private Function g;
-	
+public class JoinedTransformer implements ColumnFunction {
+	/** The functions to apply, in order, each to the output of the last. */
+	private final Function[] stages;
+
 	public JoinedTransformer(Function f, Function g) {
-		this.f = f;
-		this.g = g;
+		this( Arrays.asList(f, g) );
+	}
+
+	/** Joins the given functions, which are applied in list order. */
+	public JoinedTransformer(List<Function> functions) {
+		List<Function> flattened = new ArrayList<>();
+		for (Function f : functions) {
+			if (f instanceof JoinedTransformer)
+				flattened.addAll( Arrays.asList( ((JoinedTransformer) f).stages ) );
+			else
+				flattened.add(f);
+		}
+		this.stages = flattened.toArray( new Function[flattened.size()] );
 	}
-	
+
 	@Override
 	public JsonElement apply(JsonElement value) throws BadValueException {
-		return g.apply( f.apply(value) );
+		for (Function stage : stages)
+			value = stage.apply(value);
+		return value;
 	}
-	
+
 	@Override
 	public JsonArray apply(Iterator<JsonElement> values) throws BadValueException {
-		return g.apply( f.apply(values).iterator() );
+		JsonArray result = new JsonArray();
+		List<JsonElement> chunk = new ArrayList<>(); //grown only as far as the values need
+		while (values.hasNext()) {
+			chunk.clear();
+			while (values.hasNext() && chunk.size() < Column.CHUNK_SIZE)
+				chunk.add( values.next() );
+			for (JsonElement value : apply( Column.of(chunk.iterator()) ))
+				result.add(value);
+		}
+		return result;
 	}
-	
+
+	@Override
+	public Column apply(Column values) throws BadValueException {
+		final int size = values.size();
+		if (size <= Column.CHUNK_SIZE)
+			return applyStages(values);
+		List<Column> parts = new ArrayList<>();
+		for (int from = 0; from < size; from += Column.CHUNK_SIZE)
+			parts.add( applyStages( values.slice(from, Math.min(size, from + Column.CHUNK_SIZE)) ) );
+		return Column.concat(parts);
+	}
+
+	private Column applyStages(Column values) throws BadValueException {
+		for (Function stage : stages)
+			values = Column.transform(stage, values);
+		return values;
+	}
+
 }
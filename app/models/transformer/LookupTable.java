@@ -0,0 +1,87 @@
+package models.transformer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+import util.JSONType;
+
+/**
+ * A pure {@link Function} over a finite, enumerated set of inputs, tabulated
+ * so that applying it is a single map lookup. Inputs outside the table
+ * (which the enumeration says should not occur, but missing values can) are
+ * passed to the function itself. Numeric inputs are looked up by value, so
+ * that 2, 2.0 and 2 parsed from a request all find the same entry.
+ */
+class LookupTable implements ColumnFunction {
+	private final Map<JsonElement,JsonElement> table;
+	private final Function f;
+	/** JSON type shared by all the tabulated outputs, or {@code null} if they differ. */
+	private final JSONType outputType;
+
+	/**
+	 * Tabulates {@code f} over the given inputs, where {@code outputs} holds
+	 * the result of applying {@code f} to them (in the same order).
+	 */
+	LookupTable(JsonArray inputs, JsonArray outputs, Function f) {
+		this.table = new HashMap<>(2 * inputs.size());
+		JSONType type = null;
+		boolean first = true;
+		for (int i = 0; i < inputs.size(); i++) {
+			JsonElement output = outputs.get(i);
+			table.put(key(inputs.get(i)), output);
+			JSONType outType = output.isJsonNull() ? null : JSONType.typeOfJsonElement(output);
+			if (first)
+				type = outType;
+			else if (type != outType)
+				type = null;
+			first = false;
+		}
+		this.f = f;
+		this.outputType = type;
+	}
+
+	/** Tabulates {@code f} over the given inputs. */
+	LookupTable(JsonArray inputs, Function f) throws BadValueException {
+		this(inputs, f.apply(inputs.iterator()), f);
+	}
+
+	@Override
+	public JsonElement apply(JsonElement value) throws BadValueException {
+		JsonElement output = table.get(key(value));
+		return output == null ? f.apply(value) : output;
+	}
+
+	@Override
+	public JsonArray apply(Iterator<JsonElement> values) throws BadValueException {
+		JsonArray result = new JsonArray();
+		while (values.hasNext())
+			result.add( apply( values.next() ) );
+		return result;
+	}
+
+	@Override
+	public Column apply(Column values) throws BadValueException {
+		JsonElement[] outputs = new JsonElement[values.size()];
+		for (int i = 0; i < outputs.length; i++)
+			outputs[i] = apply( values.get(i) );
+		return Column.of(outputs, outputType);
+	}
+
+	/**
+	 * Returns the table key for the given input: numbers are converted to
+	 * doubles, since Gson's numbers of different classes (such as an
+	 * {@code Integer} and a lazily parsed number) with the same value are
+	 * neither equal nor hash alike.
+	 */
+	private static JsonElement key(JsonElement value) {
+		if (value != null && value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber())
+			return new JsonPrimitive( value.getAsDouble() );
+		return value;
+	}
+
+}
@@ -2,6 +2,12 @@ package models.transformer;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.persistence.Lob;
@@ -13,7 +19,9 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 
+import play.db.jpa.JPA;
 import util.ExternalResourceException;
+import util.NameSequences;
 import util.Util;
 
 import models.predictor.Predictor;
@@ -50,6 +58,31 @@ public abstract class Transformer extends AbstractFunction {
 	/** The {@link #accepts} field in pure JSON Schema. */ 
 	@Transient
 	private JsonObject acceptsJSONSchema;
+	
+	/** Tests whether a name is already used by a built-in or stored transformer. */
+	static final NameSequences.InUse NAME_IN_USE = new NameSequences.InUse() {
+		public boolean test(String name) {
+			return BuiltinTransformer.load(name) != null || ExpressionTransformer.findById(name) != null || ChainedTransformer.findById(name) != null;
+		}
+		public Collection<String> withPrefix(String prefix) {
+			List<String> names = new ArrayList<>();
+			for (Class<?> stored : Arrays.asList(ExpressionTransformer.class, ChainedTransformer.class))
+				names.addAll( JPA.em().createQuery("select name from " + stored.getSimpleName() + " where name like :pattern escape '!'", String.class)
+						.setParameter("pattern", NameSequences.likePrefix(prefix))
+						.getResultList() );
+			return names;
+		}
+	};
+	
+	private static final int MAX_VALIDATORS = 256;
+	/** Validators for accepts schemas, keyed by the schemas' text, in access order. */
+	private static final Map<String,Schema.Validator> acceptsValidators = Collections.synchronizedMap(
+			new LinkedHashMap<String,Schema.Validator>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				protected boolean removeEldestEntry(Map.Entry<String,Schema.Validator> eldest) {
+					return size() > MAX_VALIDATORS;
+				}
+			});
 
 
 	public Transformer() { this(""); }
@@ -86,7 +119,22 @@ public abstract class Transformer extends AbstractFunction {
 	 * external resource referenced in the {@link #accepts} schema.
 	 */
 	public boolean isAcceptableValue(JsonElement value) throws ExternalResourceException {
-		return Schema.validateJSON(getAcceptsJSONSchema(), value).isEmpty();
+		return getAcceptsValidator().isValid(value);
+	}
+	
+	/**
+	 * Returns a validator for the accepts schema. Validators are shared by
+	 * all transformers with the same accepts schema, unless it refers to an
+	 * external schema (which may change).
+	 */
+	private Schema.Validator getAcceptsValidator() throws ExternalResourceException {
+		Schema.Validator validator = acceptsValidators.get(accepts);
+		if (validator == null) {
+			validator = Schema.validatorFor( getAcceptsJSONSchema() );
+			if (! accepts.contains("$http"))
+				acceptsValidators.put(accepts, validator);
+		}
+		return validator;
 	}
 	
 	/**
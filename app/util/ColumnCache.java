@@ -0,0 +1,356 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import models.data.Query;
+import models.predictor.Predictor;
+import models.transformer.Column;
+import models.transformer.EncodedTransformerChain;
+import play.Logger;
+import play.Play;
+
+/**
+ * Keeps the values produced by applying a transformed attribute to all the
+ * instances of its relation, so that repeated requests for the same
+ * engineered feature (such as when training and then scoring against it) do
+ * not recompute the whole chain. Relations are immutable and, apart from
+ * predictors, local transformers are pure, so an entry is only invalidated
+ * when its attribute is deleted or one of the predictors in its chain is
+ * updated or deleted. Entries are also keyed by the model versions of those
+ * predictors when the request began, so that a column computed from a model
+ * updated meanwhile is never taken for the new version's. Chains that use
+ * external transformers are never cached.
+ * <p>
+ * Columns are held in memory up to {@link ConfKeys#COLUMN_CACHE_MAX_MB},
+ * beyond which the least recently used are evicted. If
+ * {@link ConfKeys#COLUMN_CACHE_SPILL_DIR} is set then evicted columns are
+ * written to that directory (itself bounded by
+ * {@link ConfKeys#COLUMN_CACHE_SPILL_MAX_MB}) and read back when next
+ * requested. Columns are written and read outside the cache's lock: a
+ * column being spilled is kept in memory (and returned if requested) until
+ * it has been written, and one being read back is marked as loading, so
+ * that it can be invalidated meanwhile; a concurrent request for it finds
+ * nothing, and computes the column itself.
+ */
+public final class ColumnCache {
+	private ColumnCache() { }
+
+	private static final long MB = 1024 * 1024;
+	private static final long maxBytes = MB * Long.parseLong( Play.configuration.getProperty(ConfKeys.COLUMN_CACHE_MAX_MB, "64") );
+	private static final long maxSpillBytes = MB * Long.parseLong( Play.configuration.getProperty(ConfKeys.COLUMN_CACHE_SPILL_MAX_MB, "512") );
+	private static final File spillDir = spillDirectory( Play.configuration.getProperty(ConfKeys.COLUMN_CACHE_SPILL_DIR) );
+
+	/** Columns held in memory, in access order. */
+	private static final LinkedHashMap<String,Entry> inMemory = new LinkedHashMap<>(16, 0.75f, true);
+	/** Columns spilled to disk, in access order; the entries' columns are {@code null}. */
+	private static final LinkedHashMap<String,Entry> onDisk = new LinkedHashMap<>(16, 0.75f, true);
+	/** Columns evicted from memory that are being written to disk; not counted in either size. */
+	private static final Map<String,Entry> spilling = new HashMap<>();
+	/** Columns being read back from disk; not counted in either size. */
+	private static final Map<String,Entry> loading = new HashMap<>();
+	/** Distinguishes the spill files of successive entries with the same key. */
+	private static final AtomicLong spillSequence = new AtomicLong();
+	private static long bytesInMemory = 0;
+	private static long bytesOnDisk = 0;
+
+	/** Returns {@code true} if the given chain's output may be cached. */
+	public static boolean isCacheable(EncodedTransformerChain chain) {
+		return maxBytes > 0 && (chain == null || chain.isLocal());
+	}
+
+	/**
+	 * Returns the key for the given attribute, chain and query; obtain it
+	 * after constructing the chain's processing pipeline, so that all its
+	 * predictors are known, but before computing the column to be
+	 * {@linkplain #put stored}.
+	 */
+	public static Key key(String attribute, EncodedTransformerChain chain, Query query) {
+		Set<String> predictors = chain == null ? Collections.<String>emptySet() : chain.getPredictorIDs();
+		StringBuilder key = new StringBuilder();
+		key.append(attribute).append(' ').append(chain == null ? "" : chain.toBase64JSON()).append(' ').append(query == null ? "" : query.toQueryString());
+		for (String predictor : new TreeSet<>(predictors)) {
+			Long version = Predictor.latestModelVersion(predictor);
+			if (version != null)
+				key.append(' ').append(predictor).append('@').append(version);
+		}
+		return new Key(attribute, predictors, key.toString());
+	}
+
+	/**
+	 * Returns the column previously {@linkplain #put stored} under the given
+	 * key, or {@code null} if there is none.
+	 */
+	public static Column get(Key k) {
+		String key = k.text;
+		Entry entry;
+		Column column;
+		FileWork work = new FileWork();
+		synchronized (ColumnCache.class) {
+			entry = inMemory.get(key);
+			if (entry != null)
+				return entry.column;
+			entry = spilling.remove(key);
+			if (entry != null) { //not written yet, so kept in memory after all, as a new entry since its file is still being written
+				column = entry.column;
+				entry = new Entry(entry);
+				store(entry, work);
+			} else {
+				entry = onDisk.remove(key);
+				if (entry == null)
+					return null;
+				column = null;
+				bytesOnDisk -= entry.bytes;
+				loading.put(key, entry);
+			}
+		}
+		if (column != null) {
+			work.run();
+			return column;
+		}
+		column = readSpilled(entry);
+		synchronized (ColumnCache.class) {
+			boolean isCurrent = loading.remove(key) == entry; //unless invalidated or replaced meanwhile
+			if (column == null || ! isCurrent)
+				return column;
+			entry.column = column;
+			store(entry, work);
+		}
+		work.run();
+		return column;
+	}
+
+	/** Stores the column computed for the given key, which must have been obtained before computing it. */
+	public static void put(Key k, Column column) {
+		if (maxBytes <= 0)
+			return;
+		Entry entry = new Entry(k, column);
+		if (entry.bytes > maxBytes) {
+			Logger.debug("Not caching %d byte column for attribute '%s' as it exceeds the cache size", entry.bytes, k.attribute);
+			return;
+		}
+		FileWork work = new FileWork();
+		synchronized (ColumnCache.class) {
+			remove(entry.key, work);
+			store(entry, work);
+		}
+		work.run();
+	}
+
+	/** Removes any columns computed from the given attribute. */
+	public static void invalidateAttribute(String attribute) {
+		invalidate(attribute, null);
+	}
+
+	/** Removes any columns whose transformer chain uses the given predictor. */
+	public static void invalidatePredictor(String predictor) {
+		invalidate(null, predictor);
+	}
+
+	/** Empties the cache, including any spilled columns. */
+	public static void clear() {
+		FileWork work = new FileWork();
+		synchronized (ColumnCache.class) {
+			for (Entry entry : onDisk.values())
+				work.deletions.add(entry.file);
+			inMemory.clear();
+			onDisk.clear();
+			spilling.clear();
+			loading.clear();
+			bytesInMemory = 0;
+			bytesOnDisk = 0;
+		}
+		work.run();
+	}
+
+	//--Internals--------------------------------------------------------------
+
+	/**
+	 * Adds an entry to memory, evicting the least recently used to make
+	 * room; those that may be spilled are added to {@code work}.
+	 */
+	private static void store(Entry entry, FileWork work) {
+		inMemory.put(entry.key, entry);
+		bytesInMemory += entry.bytes;
+		Iterator<Entry> it = inMemory.values().iterator();
+		while (bytesInMemory > maxBytes && it.hasNext()) {
+			Entry eldest = it.next();
+			it.remove();
+			bytesInMemory -= eldest.bytes;
+			if (spillDir != null && eldest.bytes <= maxSpillBytes) {
+				spilling.put(eldest.key, eldest);
+				work.spills.add(eldest);
+			}
+		}
+	}
+
+	private static void remove(String key, FileWork work) {
+		Entry entry = inMemory.remove(key);
+		if (entry != null)
+			bytesInMemory -= entry.bytes;
+		entry = onDisk.remove(key);
+		if (entry != null) {
+			bytesOnDisk -= entry.bytes;
+			work.deletions.add(entry.file);
+		}
+		spilling.remove(key); //its file is deleted once written
+		loading.remove(key);
+	}
+
+	/** Discards the entries computed from {@code attribute} or using {@code predictor}. */
+	private static void invalidate(String attribute, String predictor) {
+		FileWork work = new FileWork();
+		synchronized (ColumnCache.class) {
+			for (Map<String,Entry> entries : Arrays.asList(inMemory, onDisk, spilling, loading)) {
+				Iterator<Entry> it = entries.values().iterator();
+				while (it.hasNext()) {
+					Entry entry = it.next();
+					if (! entry.attribute.equals(attribute) && ! entry.predictors.contains(predictor))
+						continue;
+					it.remove();
+					if (entries == inMemory)
+						bytesInMemory -= entry.bytes;
+					else if (entries == onDisk) {
+						bytesOnDisk -= entry.bytes;
+						work.deletions.add(entry.file);
+					}
+				}
+			}
+		}
+		work.run();
+	}
+
+	/**
+	 * Writes an evicted column to disk, then records it as spilled unless it
+	 * was requested, replaced or invalidated meanwhile.
+	 */
+	private static void spill(Entry entry, FileWork work) {
+		boolean isWritten = false;
+		try (ObjectOutputStream out = new ObjectOutputStream( new BufferedOutputStream( new FileOutputStream(entry.file) ) )) {
+			out.writeObject(entry.column);
+			isWritten = true;
+		} catch (IOException ioe) {
+			Logger.warn(ioe, "Unable to spill cached column for attribute '%s' to disk", entry.attribute);
+		}
+		synchronized (ColumnCache.class) {
+			if (spilling.get(entry.key) == entry) {
+				spilling.remove(entry.key);
+				if (isWritten) {
+					entry.column = null;
+					onDisk.put(entry.key, entry);
+					bytesOnDisk += entry.bytes;
+					Iterator<Entry> it = onDisk.values().iterator();
+					while (bytesOnDisk > maxSpillBytes && it.hasNext()) {
+						Entry eldest = it.next();
+						it.remove();
+						bytesOnDisk -= eldest.bytes;
+						work.deletions.add(eldest.file);
+					}
+					return;
+				}
+			}
+		}
+		work.deletions.add(entry.file);
+	}
+
+	/** Reads and deletes a spilled column, returning {@code null} if it could not be read. */
+	private static Column readSpilled(Entry entry) {
+		try (ObjectInputStream in = new ObjectInputStream( new BufferedInputStream( new FileInputStream(entry.file) ) )) {
+			return (Column) in.readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			Logger.warn(e, "Unable to read spilled column from %s", entry.file);
+			return null;
+		} finally {
+			entry.file.delete();
+		}
+	}
+
+	private static File spillDirectory(String path) {
+		if (path == null || path.trim().isEmpty())
+			return null;
+		File dir = Play.getFile(path.trim());
+		if (! dir.isDirectory() && ! dir.mkdirs()) {
+			Logger.warn("Column cache spill directory %s could not be created, so columns will not be spilled to disk", dir);
+			return null;
+		}
+		for (File stale : dir.listFiles()) //spilled columns do not survive a restart as there is no record of their keys
+			if (stale.getName().endsWith(".column"))
+				stale.delete();
+		return dir;
+	}
+
+	/** Identifies a cached column, including the versions of the models from which it is computed. */
+	public static class Key {
+		final String attribute;
+		final Set<String> predictors;
+		final String text;
+
+		Key(String attribute, Set<String> predictors, String text) {
+			this.attribute = attribute;
+			this.predictors = predictors;
+			this.text = text;
+		}
+	}
+
+	private static class Entry {
+		final String key;
+		final String attribute;
+		final Set<String> predictors;
+		final long bytes;
+		/** Where the column is spilled, if it is; unique to this entry, so that a replaced entry's file is never mistaken for its replacement's. */
+		final File file;
+		/** The cached values, or {@code null} when spilled to disk; guarded by the cache's lock. */
+		Column column;
+
+		Entry(Key k, Column column) {
+			this(k.text, k.attribute, k.predictors, column, column.estimateBytes());
+		}
+
+		/** Copies an entry being spilled, with a file of its own. */
+		Entry(Entry spilling) {
+			this(spilling.key, spilling.attribute, spilling.predictors, spilling.column, spilling.bytes);
+		}
+
+		private Entry(String key, String attribute, Set<String> predictors, Column column, long bytes) {
+			this.key = key;
+			this.attribute = attribute;
+			this.predictors = predictors;
+			this.column = column;
+			this.bytes = bytes;
+			this.file = spillDir == null ? null : new File(spillDir, DigestUtils.shaHex(key) + "-" + spillSequence.incrementAndGet() + ".column");
+		}
+	}
+
+	/** File operations to perform once the cache's lock has been released. */
+	private static class FileWork {
+		final List<Entry> spills = new ArrayList<>();
+		final List<File> deletions = new ArrayList<>();
+
+		void run() {
+			for (Entry entry : spills)
+				spill(entry, this);
+			for (File file : deletions)
+				file.delete();
+		}
+	}
+
+}
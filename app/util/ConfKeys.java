@@ -12,6 +12,34 @@ public final class ConfKeys {
 	/** Identifies the scikit learn micro web service root URI. */
 	public static final String SKLEARN_SERVICE_ROOT = "psi.sklearn_service.root";
 	
+	/**
+	 * Identifies the number of successive failed requests to the scikit learn
+	 * service after which requests fail immediately (see {@link SKLearnService}).
+	 */
+	public static final String SKLEARN_BREAKER_FAILURES = "psi.sklearn_service.breaker_failures";
+	
+	/**
+	 * Identifies how long (as a duration such as {@code 30s}) requests to the
+	 * scikit learn service fail immediately before one is tried again.
+	 */
+	public static final String SKLEARN_BREAKER_OPEN_FOR = "psi.sklearn_service.breaker_open_for";
+	
+	/**
+	 * Identifies whether numeric training data and batches are sent to the
+	 * scikit learn service as {@link MatrixPayload}s rather than JSON
+	 * ({@code false} by default, as the service must support them).
+	 */
+	public static final String SKLEARN_BINARY_PAYLOADS = "psi.sklearn_service.binary_payloads";
+	
+	/** Identifies the number of values (by default 1000) sent to the scikit learn service per inference request. */
+	public static final String SKLEARN_CHUNK_SIZE = "psi.sklearn_service.chunk_size";
+	
+	/**
+	 * Identifies the number of inference requests (by default 4) for one
+	 * batch of values that may be outstanding with the scikit learn service.
+	 */
+	public static final String SKLEARN_CHUNKS_IN_FLIGHT = "psi.sklearn_service.chunks_in_flight";
+	
 	/** Identifies the name of only user who can log in to admin pages. */
 	public static final String ADMIN_NAME = "psi.admin.name";
 	
@@ -20,5 +48,109 @@ public final class ConfKeys {
 
 	/** Identifies the salt used to augment the hashed password. */
 	public static final String ADMIN_SALT = "psi.admin.salt";
+	
+	/**
+	 * Identifies the memory (in MB) available for caching the values of
+	 * transformed attributes; 0 disables the cache.
+	 */
+	public static final String COLUMN_CACHE_MAX_MB = "psi.column_cache.max_mb";
+	
+	/** Identifies the directory to which evicted cached attribute values are written, if any. */
+	public static final String COLUMN_CACHE_SPILL_DIR = "psi.column_cache.spill_dir";
+	
+	/** Identifies the disk space (in MB) available for spilled attribute values. */
+	public static final String COLUMN_CACHE_SPILL_MAX_MB = "psi.column_cache.spill_max_mb";
+	
+	/**
+	 * Identifies the memory (in MB, measured by serialised size) available
+	 * for keeping deserialised predictor models between requests.
+	 */
+	public static final String MODEL_CACHE_MAX_MB = "psi.model_cache.max_mb";
+	
+	/**
+	 * Identifies the memory (in MB, estimated from their JSON text) available
+	 * for keeping predictors' results for single values; 0, the default,
+	 * disables the {@link ResultCache}.
+	 */
+	public static final String RESULT_CACHE_MAX_MB = "psi.result_cache.max_mb";
+	
+	/**
+	 * Identifies the predictors (a comma-separated list of names, or
+	 * {@code *} for all) whose results for single values are cached.
+	 */
+	public static final String RESULT_CACHE_PREDICTORS = "psi.result_cache.predictors";
+	
+	/**
+	 * Identifies the number of threads (defaulting to the number of
+	 * processors) that may classify one batch of instances with a Weka
+	 * predictor; 1 disables parallel prediction.
+	 */
+	public static final String WEKA_PREDICTION_THREADS = "psi.weka.prediction_threads";
+	
+	/**
+	 * Prefix of the keys (ending with a predictor type such as {@code weka}
+	 * or {@code sklearn}) identifying how long, in milliseconds, concurrent
+	 * single-value requests to predictors of that type are gathered into
+	 * one batch; 0, the default, disables batching.
+	 */
+	public static final String MICRO_BATCH_WINDOW_MS = "psi.micro_batch.window_ms";
+	
+	/**
+	 * Prefix of the keys (ending with a predictor type) identifying the
+	 * largest batch of single-value requests to gather (by default 64);
+	 * batches are never larger than the request pool ({@code play.pool}).
+	 */
+	public static final String MICRO_BATCH_MAX_SIZE = "psi.micro_batch.max_size";
+	
+	/** Identifies the directory in which the {@link FileModelStore} keeps serialised models. */
+	public static final String MODEL_STORE_DIR = "psi.model_store.dir";
+	
+	/** Identifies the {@link ModelStore} subclass to use, if not the {@link FileModelStore}. */
+	public static final String MODEL_STORE_CLASS = "psi.model_store.class";
+	
+	/**
+	 * Identifies how long (as a duration such as {@code 1h}) an object must
+	 * have been in the {@link ModelStore} before it can be deleted as unused.
+	 */
+	public static final String MODEL_STORE_GC_GRACE = "psi.model_store.gc_grace";
+	
+	/**
+	 * Identifies how the {@link ModelCodec} compresses stored models:
+	 * {@code deflate} (the default) or {@code none}.
+	 */
+	public static final String MODEL_CODEC_COMPRESSION = "psi.model_codec.compression";
+	
+	/**
+	 * Identifies the directory in which predictor updates are logged until
+	 * their models are saved; if empty, updated models are saved immediately.
+	 */
+	public static final String UPDATE_LOG_DIR = "psi.update_log.dir";
+	
+	/** Identifies the number of logged updates after which a predictor's model is saved. */
+	public static final String UPDATE_LOG_CHECKPOINT_UPDATES = "psi.update_log.checkpoint_updates";
+	
+	/** Identifies the longest time (such as {@code 30s}) that an update may remain only in the log. */
+	public static final String UPDATE_LOG_CHECKPOINT_INTERVAL = "psi.update_log.checkpoint_interval";
+	
+	/** Identifies the maximum number of decoded transformer chains to keep. */
+	public static final String CHAIN_CACHE_SIZE = "psi.chain_cache.size";
+	
+	/**
+	 * Identifies the maximum number of requests that may be in progress at
+	 * once to any one host when applying external transformers.
+	 */
+	public static final String EXTERNAL_MAX_REQUESTS_PER_HOST = "psi.external.max_requests_per_host";
+	
+	/** Identifies the time to wait for each response from an external service, such as {@code 30s}. */
+	public static final String EXTERNAL_REQUEST_TIMEOUT = "psi.external.request_timeout";
+	
+	/**
+	 * Identifies how long (such as {@code 5mn}) to use a cached description or
+	 * schema from an external service that does not give its own max-age.
+	 */
+	public static final String REMOTE_CACHE_TTL = "psi.remote_cache.ttl";
+	
+	/** Identifies the maximum number of external descriptions and schemas to cache; 0 disables the cache. */
+	public static final String REMOTE_CACHE_SIZE = "psi.remote_cache.size";
 
 }
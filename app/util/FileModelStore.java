@@ -0,0 +1,157 @@
+package util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import play.Play;
+
+/**
+ * A {@link ModelStore} that keeps each encoded object in a file named by
+ * the SHA-256 hash of its bytes, under {@link ConfKeys#MODEL_STORE_DIR}.
+ * Files are written to a temporary name and renamed once complete, so a
+ * reference never names a partly written file, and are read through a
+ * memory mapping, so loading a model does not copy its bytes onto the heap.
+ * A file's modification time records when its object was last put, so
+ * that an object put again is not collected as garbage meanwhile.
+ */
+public class FileModelStore extends ModelStore {
+	private final File dir;
+
+	public FileModelStore() {
+		dir = Play.getFile( Play.configuration.getProperty(ConfKeys.MODEL_STORE_DIR, "db/models").trim() );
+		if (! dir.isDirectory() && ! dir.mkdirs())
+			throw new IllegalStateException("Model store directory " + dir + " could not be created");
+	}
+
+	public String put(byte[] encoded) throws IOException {
+		String ref = DigestUtils.sha256Hex(encoded);
+		File file = file(ref);
+		if (touch(file))
+			return ref;
+		file.getParentFile().mkdirs();
+		File partial = File.createTempFile(ref, ".partial", file.getParentFile());
+		try (FileOutputStream out = new FileOutputStream(partial)) {
+			out.write(encoded);
+			out.getFD().sync();
+		}
+		synchronized (this) { //with respect to delete
+			if (! partial.renameTo(file) && ! touch(file)) { //another request may have stored the same bytes meanwhile
+				partial.delete();
+				throw new IOException("Unable to store model as " + file);
+			}
+		}
+		partial.delete();
+		return ref;
+	}
+
+	public InputStream open(String ref) throws IOException {
+		File file = file(ref);
+		if (! file.isFile())
+			throw new IOException("No stored model " + ref);
+		MappedByteBuffer mapped;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) { //the mapping remains valid once the file is closed
+			mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		return new CheckedInputStream(mapped, ref);
+	}
+
+	public long size(String ref) throws IOException {
+		File file = file(ref);
+		if (! file.isFile())
+			throw new IOException("No stored model " + ref);
+		return file.length();
+	}
+
+	public Collection<String> list(long putBefore) {
+		List<String> refs = new ArrayList<>();
+		File[] subdirs = dir.listFiles();
+		if (subdirs == null)
+			return refs;
+		for (File subdir : subdirs) {
+			File[] files = subdir.listFiles(); //null if not a directory, or if it was removed or cannot be read
+			if (files == null)
+				continue;
+			for (File file : files)
+				if (file.getName().matches("[0-9a-f]{64}") && file.lastModified() < putBefore)
+					refs.add(file.getName());
+		}
+		return refs;
+	}
+
+	public synchronized boolean delete(String ref, long putBefore) {
+		File file = file(ref);
+		return file.isFile() && file.lastModified() < putBefore && file.delete();
+	}
+
+	/** Marks the existing file as put now, returning {@code false} if there is no such file. */
+	private synchronized boolean touch(File file) {
+		return file.isFile() && file.setLastModified( System.currentTimeMillis() );
+	}
+
+	private File file(String ref) {
+		if (! ref.matches("[0-9a-f]{64}"))
+			throw new IllegalArgumentException("Not a model reference: " + ref);
+		return new File(new File(dir, ref.substring(0, 2)), ref);
+	}
+
+	/** Reads a mapped file, checking its hash against its reference on reaching the end. */
+	private static class CheckedInputStream extends InputStream {
+		private final MappedByteBuffer buffer;
+		private final String ref;
+		private final MessageDigest digest;
+		private boolean isChecked = false;
+
+		CheckedInputStream(MappedByteBuffer buffer, String ref) {
+			this.buffer = buffer;
+			this.ref = ref;
+			try {
+				this.digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (! buffer.hasRemaining()) {
+				check();
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			digest.update(b, off, len);
+			return len;
+		}
+
+		public int available() {
+			return buffer.remaining();
+		}
+
+		private void check() throws IOException {
+			if (isChecked)
+				return;
+			isChecked = true;
+			String actual = new String( Hex.encodeHex(digest.digest()) );
+			if (! actual.equals(ref))
+				throw new IOException("Stored model " + ref + " is corrupt (its hash is now " + actual + ")");
+		}
+	}
+
+}
@@ -15,6 +15,7 @@ import java.util.Map;
 
 import play.Logger;
 import play.Play;
+import play.libs.F.Promise;
 import play.libs.WS;
 import play.libs.WS.HttpResponse;
 import play.mvc.ActionInvoker;
@@ -100,32 +101,70 @@ public final class HttpUtil {
 	public static JsonObject getJSON(String uriString, Map<String,Object> args) throws ExternalResourceException {
 		try {
 			Logger.trace("Retrieving JSON response from %s, with given query arguments %s", uriString, args);
-			JsonElement jsonResponse;
-			String queryString = createQueryString(args);
-			URI uri = new URI(uriString + (queryString.isEmpty() ? "" : (uriString.contains("?") ? "&" : "?") + queryString));
+			URI uri = withQueryString(uriString, args);
 	
 			//In DEV mode only have a single thread, which appears to cause HTTP requests to self to fail
-			if ( Play.mode == Play.Mode.DEV && Util.hostIsLocal(new URI(uriString)) ) {
+			if ( isServedLocally(uriString) ) {
 				Logger.trace("Host believed to be local when retrieving JSON response from %s", uri);
-				jsonResponse = getLocal(uri);
-			} else {
-				HttpResponse response = WS.url(uri.toString()).get();
-				if (response.getStatus() < 200 || response.getStatus() > 299)
-					throw new ExternalResourceException("Unable to retrieve resource at " + uriString);
-				if (! HTTP.parseContentType( response.getContentType() ).contentType.equals("application/json"))
-					Logger.warn("Expected content type application/json for resource at %s, but reported content type is %s", uri, response.getContentType());
-				jsonResponse = response.getJson();
-				Logger.trace("Received this JSON reponse from %s:\n%s", uriString, jsonResponse.toString());
+				JsonElement jsonResponse = getLocal(uri);
+				if (! jsonResponse.isJsonObject())
+					throw new ExternalResourceException("Response from resource at '" + uriString + "' is valid JSON but is not a JSON object, which was expected. Response: " + jsonResponse);
+				return jsonResponse.getAsJsonObject();
 			}
-			
-			if (! jsonResponse.isJsonObject())
-				throw new ExternalResourceException("Response from resource at '" + uriString + "' is valid JSON but is not a JSON object, which was expected. Response: " + jsonResponse);
-			return jsonResponse.getAsJsonObject();
+			return responseToJSON(uriString, WS.url(uri.toString()).get());
 		} catch (URISyntaxException urise) {
 			throw new RuntimeException(urise);
 		}
 	}
 	
+	/**
+	 * Sends a GET request to the given URI without waiting for the response,
+	 * which can later be mapped into a {@code JsonObject} by
+	 * {@link #responseToJSON(String, HttpResponse)}. Connections to each host
+	 * are pooled and kept alive by the underlying client, so a series of
+	 * requests to the same service does not pay for a new connection each
+	 * time. Unlike {@link #getJSON(String, Map)}, requests to this server
+	 * are always genuine HTTP requests; see {@link #isServedLocally(String)}.
+	 * @param uri URI to send GET request to
+	 * @param args GET arguments, can be {@code null} if no arguments required
+	 * @param timeout time to wait for the response, such as {@code "30s"}
+	 */
+	public static Promise<HttpResponse> getAsync(String uriString, Map<String,Object> args, String timeout) {
+		try {
+			Logger.trace("Sending asynchronous request to %s, with given query arguments %s", uriString, args);
+			return WS.url( withQueryString(uriString, args).toString() ).timeout(timeout).getAsync();
+		} catch (URISyntaxException urise) {
+			throw new RuntimeException(urise);
+		}
+	}
+	
+	/**
+	 * Maps the response to a GET request for the given URI into a
+	 * {@code JsonObject}.
+	 * @throws ExternalResourceException If the response does not indicate
+	 *  success or is not a JSON object.
+	 */
+	public static JsonObject responseToJSON(String uriString, HttpResponse response) throws ExternalResourceException {
+		if (response.getStatus() < 200 || response.getStatus() > 299)
+			throw new ExternalResourceException("Unable to retrieve resource at " + uriString);
+		if (! HTTP.parseContentType( response.getContentType() ).contentType.equals("application/json"))
+			Logger.warn("Expected content type application/json for resource at %s, but reported content type is %s", uriString, response.getContentType());
+		JsonElement jsonResponse = response.getJson();
+		Logger.trace("Received this JSON reponse from %s:\n%s", uriString, jsonResponse.toString());
+		if (! jsonResponse.isJsonObject())
+			throw new ExternalResourceException("Response from resource at '" + uriString + "' is valid JSON but is not a JSON object, which was expected. Response: " + jsonResponse);
+		return jsonResponse.getAsJsonObject();
+	}
+	
+	/**
+	 * Returns {@code true} if GET requests for the given URI are dispatched
+	 * directly to this server's controllers rather than sent over HTTP, which
+	 * is necessary in DEV mode where there is only a single request thread.
+	 */
+	public static boolean isServedLocally(String uriString) throws URISyntaxException {
+		return Play.mode == Play.Mode.DEV && Util.hostIsLocal(new URI(uriString));
+	}
+	
 	/**
 	 * Sends a POST request to the given URI, retrieves the response and maps
 	 * it into a {@code JsonObject}. Makes no distinction between 'local' and
@@ -142,6 +181,45 @@ public final class HttpUtil {
 				.body( request == null ? "" : request.toString())
 				.mimeType("application/json")
 				.post();
+		 return toJsonObject(response);
+	}
+	
+	/**
+	 * As {@link #postJSON(String, JsonObject)}, but returns at once with the
+	 * promised response, which {@link #toJsonObject(HttpResponse)} maps.
+	 */
+	public static Promise<HttpResponse> postJSONAsync(String uri, JsonObject request) {
+		return WS.url(uri)
+				.body( request == null ? "" : request.toString())
+				.mimeType("application/json")
+				.postAsync();
+	}
+	
+	/**
+	 * As {@link #postJSON(String, JsonObject)}, but sends the given bytes as
+	 * the body of the request, with the given media type.
+	 */
+	public static JsonObject postBytes(String uri, byte[] body, String mimeType) {
+		HttpResponse response = WS.url(uri)
+				.body( new ByteArrayInputStream(body) )
+				.mimeType(mimeType)
+				.post();
+		return toJsonObject(response);
+	}
+	
+	/** As {@link #postBytes(String, byte[], String)}, but returns at once with the promised response. */
+	public static Promise<HttpResponse> postBytesAsync(String uri, byte[] body, String mimeType) {
+		return WS.url(uri)
+				.body( new ByteArrayInputStream(body) )
+				.mimeType(mimeType)
+				.postAsync();
+	}
+	
+	/**
+	 * Maps a response into a {@code JsonObject} as described for
+	 * {@link #postJSON(String, JsonObject)}.
+	 */
+	public static JsonObject toJsonObject(HttpResponse response) {
 		 JsonElement jsonResponse = response.getJson(); 
 		if (! jsonResponse.isJsonObject()) {
 			JsonObject jsonObj = new JsonObject();
@@ -152,6 +230,11 @@ public final class HttpUtil {
 		return jsonResponse.getAsJsonObject();
 	}
 	
+	private static URI withQueryString(String uriString, Map<String,Object> args) throws URISyntaxException {
+		String queryString = createQueryString(args);
+		return new URI(uriString + (queryString.isEmpty() ? "" : (uriString.contains("?") ? "&" : "?") + queryString));
+	}
+	
 	private static String createQueryString(Map<String,Object> args) {
 		try {
 			if (args != null) {
@@ -0,0 +1,113 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * A compact binary request body for sending numeric data to the scikit
+ * learn service, in place of a JSON array of arrays of numbers. The body
+ * holds a JSON object (the rest of the request) and a dense matrix of
+ * 64-bit floats:
+ * <pre>
+ * offset  size  content
+ * 0       4     magic bytes "PSIB"
+ * 4       1     format version (1)
+ * 5       3     reserved (0)
+ * 8       4     length n of the JSON object, in bytes
+ * 12      n     the JSON object, UTF-8 encoded, with property "binary"
+ *               naming the property that the matrix supplies (as a
+ *               dotted path, such as "resources.source", if nested)
+ *         p     zero padding, so that the matrix header starts at a multiple of 8
+ * m       4     number of rows r
+ * m+4     4     number of columns c, or 0 if the matrix is a vector of r values
+ * m+8     8rc   the values, by row
+ * </pre>
+ * All integers and floats are little-endian and the values are aligned, so
+ * the service can read the matrix with
+ * {@code numpy.frombuffer(body, '<f8', r * max(c, 1), m + 8)}.
+ * <p>
+ * Sending binary bodies is enabled by {@link ConfKeys#SKLEARN_BINARY_PAYLOADS},
+ * since the service must support them.
+ */
+public final class MatrixPayload {
+	private MatrixPayload() { }
+
+	/** Media type of the body. */
+	public static final String MIME_TYPE = "application/x-psi-matrix";
+	/** Property of the JSON object naming the property that the matrix supplies. */
+	public static final String BINARY_PROPERTY = "binary";
+
+	private static final byte[] MAGIC = { 'P', 'S', 'I', 'B' };
+	private static final byte FORMAT_VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Returns the body of a request holding {@code json} and, as its
+	 * {@code property}, the given {@code values}, which must be numbers or
+	 * arrays of numbers all of the same length; otherwise returns
+	 * {@code null}, and the request should be sent as JSON.
+	 */
+	public static byte[] encode(JsonObject json, String property, JsonArray values) {
+		int columns = columns(values);
+		if (columns < 0)
+			return null;
+		JsonObject header = new JsonObject();
+		for (Map.Entry<String,JsonElement> member : json.entrySet())
+			header.add(member.getKey(), member.getValue());
+		header.add(BINARY_PROPERTY, new JsonPrimitive(property));
+		byte[] jsonBytes = header.toString().getBytes(UTF8);
+		int matrixOffset = align(12 + jsonBytes.length);
+		ByteBuffer body = ByteBuffer.allocate(matrixOffset + 8 + 8 * values.size() * Math.max(columns, 1)).order(ByteOrder.LITTLE_ENDIAN);
+		body.put(MAGIC).put(FORMAT_VERSION).put(new byte[3]);
+		body.putInt(jsonBytes.length).put(jsonBytes);
+		body.position(matrixOffset);
+		body.putInt(values.size()).putInt(columns);
+		for (JsonElement row : values) {
+			if (columns == 0)
+				body.putDouble(row.getAsDouble());
+			else
+				for (JsonElement value : row.getAsJsonArray())
+					body.putDouble(value.getAsDouble());
+		}
+		return body.array();
+	}
+
+	/**
+	 * Returns the number of columns of the given values as a matrix, 0 if
+	 * they are all numbers, or -1 if they cannot be sent as a matrix.
+	 */
+	private static int columns(JsonArray values) {
+		if (values.size() == 0)
+			return -1;
+		int columns = values.get(0).isJsonArray() ? values.get(0).getAsJsonArray().size() : 0;
+		for (JsonElement row : values) {
+			if (columns == 0) {
+				if (! isNumber(row))
+					return -1;
+			} else {
+				if (! row.isJsonArray() || row.getAsJsonArray().size() != columns)
+					return -1;
+				for (JsonElement value : row.getAsJsonArray())
+					if (! isNumber(value))
+						return -1;
+			}
+		}
+		return columns;
+	}
+
+	private static boolean isNumber(JsonElement value) {
+		return value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber();
+	}
+
+	private static int align(int offset) {
+		return (offset + 7) & ~7;
+	}
+
+}
@@ -0,0 +1,138 @@
+package util;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import play.Logger;
+import play.Play;
+
+/**
+ * Keeps deserialised predictor models (and any other objects deserialised
+ * from a predictor's stored bytes) for all requests, since predictors are
+ * loaded afresh for every request and deserialising a trained model can
+ * take much longer than applying it. Objects read from the
+ * {@link ModelStore} are keyed by their content reference and part, so
+ * predictors with identical artefacts (such as the dataset headers of
+ * predictors trained on the same attributes) share one copy; others are
+ * keyed by predictor name, model version and part, so an updated model is
+ * never confused with its previous version. Entries are evicted in least recently used order once their
+ * serialised sizes (before compression, as recorded in the
+ * {@linkplain ModelCodec.Header header}) exceed {@link ConfKeys#MODEL_CACHE_MAX_MB}.
+ * <p>
+ * Cached objects are shared by concurrent requests, so callers must not
+ * modify them, and must synchronise on them while using them if their use
+ * is not thread safe.
+ */
+public final class ModelCache {
+	private ModelCache() { }
+
+	private static final long maxBytes = 1024L * 1024 * Long.parseLong( Play.configuration.getProperty(ConfKeys.MODEL_CACHE_MAX_MB, "256") );
+
+	/** Deserialised objects, in access order. */
+	private static final LinkedHashMap<String,Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private static long bytes = 0;
+
+	/**
+	 * Returns the object decoded from {@code encoded}, which is the
+	 * named {@code part} of version {@code version} of the named predictor,
+	 * decoding it only if it is not already cached.
+	 */
+	public static Object get(String predictor, long version, String part, byte[] encoded) {
+		String key = key(predictor, version, part);
+		synchronized (ModelCache.class) {
+			Entry entry = entries.get(key);
+			if (entry != null)
+				return entry.model;
+		}
+		Object model = ModelCodec.decode(encoded); //outside the lock, as this is the slow part; a concurrent miss merely does it twice
+		put(key, new Entry(predictor, model, size(ModelCodec.readHeader(encoded), encoded.length)));
+		return model;
+	}
+
+	/**
+	 * As {@link #get(String, long, String, byte[])}, but for an object that
+	 * is read from the {@link ModelStore} under the given reference, and
+	 * which is shared by every predictor that stores the same object.
+	 */
+	public static Object getStored(String predictor, long version, String part, String ref) {
+		String key = "@" + ref + " " + part;
+		synchronized (ModelCache.class) {
+			Entry entry = entries.get(key);
+			if (entry != null)
+				return entry.model;
+		}
+		try {
+			Object model = ModelStore.get().read(ref);
+			put(key, new Entry(predictor, model, size(ModelStore.get().readHeader(ref), ModelStore.get().size(ref))));
+			return model;
+		} catch (IOException ioe) {
+			throw new RuntimeException("Unable to load " + part + " of predictor '" + predictor + "'", ioe);
+		}
+	}
+
+	/** Returns the memory (by serialised size) available to the cache, in bytes. */
+	public static long capacity() {
+		return maxBytes;
+	}
+
+	/** Removes every version of the given predictor's objects; call when it is deleted. */
+	public static synchronized void invalidate(String predictor) {
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.predictor.equals(predictor)) {
+				it.remove();
+				bytes -= entry.bytes;
+			}
+		}
+	}
+
+	/** Empties the cache. */
+	public static synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	//--Internals--------------------------------------------------------------
+
+	private static String key(String predictor, long version, String part) {
+		return predictor + " " + version + " " + part;
+	}
+
+	/** Returns the uncompressed size given by the header, or the stored size if it was stored without one. */
+	private static long size(ModelCodec.Header header, long storedSize) {
+		return header.size >= 0 ? header.size : storedSize;
+	}
+
+	private static synchronized void put(String key, Entry entry) {
+		if (entry.bytes > maxBytes) {
+			Logger.debug("Not caching %d byte model for predictor '%s' as it exceeds the cache size", entry.bytes, entry.predictor);
+			return;
+		}
+		Entry previous = entries.put(key, entry);
+		if (previous != null)
+			bytes -= previous.bytes;
+		bytes += entry.bytes;
+		Iterator<Entry> it = entries.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().bytes;
+			it.remove();
+		}
+	}
+
+	private static class Entry {
+		final String predictor;
+		final Object model;
+		/** Serialised size, as a proxy for the memory the deserialised object occupies. */
+		final long bytes;
+
+		Entry(String predictor, Object model, long bytes) {
+			this.predictor = predictor;
+			this.model = model;
+			this.bytes = bytes;
+		}
+	}
+
+}
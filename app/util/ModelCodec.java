@@ -0,0 +1,218 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.gson.JsonObject;
+
+import play.Play;
+
+/**
+ * Encodes trained models (and the other objects that predictors keep) for
+ * storage. An encoded model is a small envelope followed by the Java
+ * serialised object, compressed as given by
+ * {@link ConfKeys#MODEL_CODEC_COMPRESSION}:
+ * <ul>
+ * <li>the magic bytes {@code PSIM} and a format version byte;</li>
+ * <li>the length of the header and the header itself, a JSON object giving
+ * the object's {@code class}, the {@code size} of its uncompressed
+ * serialised form and its {@code compression} ({@code deflate} or
+ * {@code none});</li>
+ * <li>the serialised object.</li>
+ * </ul>
+ * The header can be {@linkplain #readHeader(InputStream) read} without
+ * reading the object, and objects are encoded and decoded as streams rather
+ * than through intermediate arrays. Objects serialised without an envelope,
+ * as they were stored before it was introduced, are still decoded.
+ */
+public final class ModelCodec {
+	private ModelCodec() { }
+
+	private static final byte[] MAGIC = { 'P', 'S', 'I', 'M' };
+	private static final byte FORMAT_VERSION = 1;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final boolean isCompressed = ! "none".equals( Play.configuration.getProperty(ConfKeys.MODEL_CODEC_COMPRESSION, "deflate") );
+
+	/** Returns the encoded form of the given object. */
+	public static byte[] encode(Serializable object) {
+		return encode(object, isCompressed);
+	}
+
+	/**
+	 * Returns the encoded form of the given object, compressed only if
+	 * {@code compress} is set; an uncompressed encoding is quicker to make,
+	 * and can be {@linkplain #compress(byte[]) compressed} later.
+	 */
+	public static byte[] encode(Serializable object, boolean compress) {
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			CountingOutputStream counter = new CountingOutputStream( compress ? new DeflaterOutputStream(body) : body );
+			try (ObjectOutputStream out = new ObjectOutputStream( new BufferedOutputStream(counter, BUFFER_SIZE) )) {
+				out.writeObject(object);
+			}
+			return envelope(object.getClass().getName(), counter.count, compress, body);
+		} catch (IOException ioe) { //not expected when writing to memory
+			throw new RuntimeException("Unable to encode " + object.getClass().getName(), ioe);
+		}
+	}
+
+	/**
+	 * Returns the given encoded object compressed as configured, by
+	 * compressing its serialised form rather than decoding it; returns it as
+	 * it is if it is already compressed, has no envelope or compression is
+	 * disabled.
+	 */
+	public static byte[] compress(byte[] encoded) {
+		try {
+			ByteArrayInputStream in = new ByteArrayInputStream(encoded);
+			Header header = readHeader(in);
+			if (! isCompressed || header.isCompressed || header.className == null)
+				return encoded;
+			int offset = encoded.length - in.available();
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			try (DeflaterOutputStream out = new DeflaterOutputStream(body)) {
+				out.write(encoded, offset, encoded.length - offset);
+			}
+			return envelope(header.className, header.size, true, body);
+		} catch (IOException ioe) { //not expected when reading and writing memory
+			throw new RuntimeException("Unable to compress model", ioe);
+		}
+	}
+
+	/**
+	 * Decodes an object from the given stream. The stream is read through a
+	 * buffer, so may be read beyond the end of the object; it should not be
+	 * read further, but is not closed.
+	 */
+	public static Object decode(InputStream in) throws IOException {
+		in = new BufferedInputStream(in, BUFFER_SIZE);
+		Header header = readHeader(in);
+		Inflater inflater = header.isCompressed ? new Inflater() : null;
+		try {
+			if (inflater != null)
+				in = new BufferedInputStream( new InflaterInputStream(in, inflater), BUFFER_SIZE );
+			return new ObjectInputStream(in).readObject();
+		} catch (ClassNotFoundException cnfe) {
+			throw new IOException("Encoded object is of an unknown class", cnfe);
+		} finally {
+			if (inflater != null)
+				inflater.end(); //releases its native memory now, rather than when it is finalised
+		}
+	}
+
+	/** Decodes an object from its encoded form. */
+	public static Object decode(byte[] encoded) {
+		try {
+			return decode( new ByteArrayInputStream(encoded) );
+		} catch (IOException ioe) {
+			throw new RuntimeException("Unable to decode model", ioe);
+		}
+	}
+
+	/**
+	 * Reads the header from the given stream, which is left positioned at
+	 * the start of the object. For an object without an envelope (which the
+	 * stream must support {@linkplain InputStream#mark(int) marking} to
+	 * detect) the header's class is {@code null} and its size is unknown.
+	 */
+	public static Header readHeader(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		byte[] magic = new byte[MAGIC.length];
+		if (in.markSupported())
+			in.mark(MAGIC.length);
+		data.readFully(magic);
+		if (! Arrays.equals(magic, MAGIC)) {
+			if (! in.markSupported())
+				throw new IOException("Not an encoded model");
+			in.reset();
+			return new Header(null, -1, false);
+		}
+		byte version = data.readByte();
+		if (version != FORMAT_VERSION)
+			throw new IOException("Unsupported model format version " + version);
+		byte[] headerBytes = new byte[data.readInt()];
+		data.readFully(headerBytes);
+		JsonObject header = Util.parseJSON( new String(headerBytes, UTF8) ).getAsJsonObject();
+		return new Header(
+				header.get("class").getAsString(),
+				header.get("size").getAsLong(),
+				"deflate".equals( header.get("compression").getAsString() ));
+	}
+
+	/** Reads the header of an encoded object. */
+	public static Header readHeader(byte[] encoded) {
+		try {
+			return readHeader( new ByteArrayInputStream(encoded) );
+		} catch (IOException ioe) {
+			throw new RuntimeException("Unable to decode model header", ioe);
+		}
+	}
+
+	/** Returns the envelope for an object of the given class and serialised size, followed by its body. */
+	private static byte[] envelope(String className, long size, boolean isCompressed, ByteArrayOutputStream body) throws IOException {
+		JsonObject header = new JsonObject();
+		header.addProperty("class", className);
+		header.addProperty("size", size);
+		header.addProperty("compression", isCompressed ? "deflate" : "none");
+		byte[] headerBytes = header.toString().getBytes(UTF8);
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream(MAGIC.length + 5 + headerBytes.length + body.size());
+		DataOutputStream out = new DataOutputStream(encoded);
+		out.write(MAGIC);
+		out.writeByte(FORMAT_VERSION);
+		out.writeInt(headerBytes.length);
+		out.write(headerBytes);
+		body.writeTo(out);
+		return encoded.toByteArray();
+	}
+
+	/** The description of an encoded object. */
+	public static class Header {
+		/** Class of the encoded object, or {@code null} if not known. */
+		public final String className;
+		/** Size of the object's serialised form, before any compression, or -1 if not known. */
+		public final long size;
+		final boolean isCompressed;
+
+		Header(String className, long size, boolean isCompressed) {
+			this.className = className;
+			this.size = size;
+			this.isCompressed = isCompressed;
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Set;
+
+import play.Play;
+
+/**
+ * Keeps serialised models (and the other large objects that predictors
+ * deserialise) outside the database, which only stores the reference
+ * returned by {@link #put(byte[])}. Objects are stored as encoded by the
+ * {@link ModelCodec}. References are content-addressed, so
+ * storing the same bytes twice returns the same reference, and a store
+ * must check when reading that the content still matches its reference.
+ * <p>
+ * Since an object may be shared by several predictors, nothing is deleted
+ * when one stops using it; instead unused objects are
+ * {@linkplain #collectGarbage(Set, long) collected} periodically, once they
+ * have not been put for long enough that no transaction still in progress
+ * could be about to save a reference to them.
+ * <p>
+ * The store used is the {@link FileModelStore} unless another subclass is
+ * named by {@link ConfKeys#MODEL_STORE_CLASS}.
+ */
+public abstract class ModelStore {
+
+	private static ModelStore instance;
+
+	/** Returns the configured store. */
+	public static synchronized ModelStore get() {
+		if (instance == null) {
+			String className = Play.configuration.getProperty(ConfKeys.MODEL_STORE_CLASS, FileModelStore.class.getName());
+			try {
+				instance = (ModelStore) Play.classloader.loadClass(className).getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				throw new IllegalStateException("Unable to create model store " + className, e);
+			}
+		}
+		return instance;
+	}
+
+	/** Stores the given encoded object, if not already stored, and returns its reference. */
+	public abstract String put(byte[] encoded) throws IOException;
+
+	/**
+	 * Returns a stream of the stored bytes with the given reference, which
+	 * is checked against the content once the stream has been read to its
+	 * end; the caller must close it.
+	 */
+	public abstract InputStream open(String ref) throws IOException;
+
+	/** Returns the number of stored bytes with the given reference. */
+	public abstract long size(String ref) throws IOException;
+
+	/** Returns the references of the objects last put before the given time (in milliseconds). */
+	public abstract Collection<String> list(long putBefore) throws IOException;
+
+	/**
+	 * Deletes the object with the given reference unless it has been put
+	 * since the given time, returning {@code true} if it was deleted.
+	 */
+	public abstract boolean delete(String ref, long putBefore) throws IOException;
+
+	/**
+	 * Deletes the objects last put before the given time that are not among
+	 * the given references in use, returning the number deleted.
+	 */
+	public int collectGarbage(Set<String> inUse, long putBefore) throws IOException {
+		int deleted = 0;
+		for (String ref : list(putBefore))
+			if (! inUse.contains(ref) && delete(ref, putBefore))
+				deleted++;
+		return deleted;
+	}
+
+	/** Encodes and stores the given object, returning its reference. */
+	public String write(Serializable object) throws IOException {
+		return put( ModelCodec.encode(object) );
+	}
+
+	/**
+	 * Decodes the object with the given reference, streaming it from the
+	 * store rather than first reading all its bytes.
+	 */
+	public Object read(String ref) throws IOException {
+		try (InputStream in = open(ref)) {
+			Object object = ModelCodec.decode(in);
+			byte[] rest = new byte[4096];
+			while (in.read(rest) >= 0) //to the end, so that the content is checked
+				;
+			return object;
+		}
+	}
+
+	/**
+	 * Reads only the header of the object with the given reference, which
+	 * is not checked against the content.
+	 */
+	public ModelCodec.Header readHeader(String ref) throws IOException {
+		try (InputStream in = new BufferedInputStream(open(ref), 512)) {
+			return ModelCodec.readHeader(in);
+		}
+	}
+
+}
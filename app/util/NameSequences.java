@@ -0,0 +1,155 @@
+package util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates unique names for resources that are identified by name rather
+ * than by a database-generated key, without serialising all requests behind
+ * one lock. Each family of names (such as the numbered names of attributes in
+ * one relation, or the predictors trained by one learner on one relation) has
+ * its own in-memory counter, created when first used, so concurrent requests
+ * only interact when they want names from the same family and even then only
+ * through atomic operations.
+ * <p>
+ * Counters are not persisted; after a restart each starts after the
+ * highest number its caller's {@link InUse} finds in use, and skips over
+ * any names that its test finds in use, which are the only points at which
+ * the database is consulted.
+ */
+public final class NameSequences {
+	private NameSequences() { }
+
+	/** Tests whether a candidate name is already taken, typically by querying the database. */
+	public static abstract class InUse {
+		public abstract boolean test(String name);
+
+		/**
+		 * Returns the names in use that begin with {@code prefix}, from which
+		 * a numbered sequence's counter is started when first used; by
+		 * default none, so that the counter starts at 1.
+		 * @see NameSequences#likePrefix(String)
+		 */
+		public Collection<String> withPrefix(String prefix) {
+			return Collections.emptyList();
+		}
+	}
+
+	/** Names handed out but not yet {@linkplain #release(String) released} by their creator. */
+	private static final Set<String> reserved = Collections.newSetFromMap( new ConcurrentHashMap<String,Boolean>() );
+	/** Next number to try in each numbered name sequence, keyed by its format. */
+	private static final ConcurrentMap<String,AtomicInteger> counters = new ConcurrentHashMap<>();
+	/** Last timestamp used for each timestamp-based name prefix. */
+	private static final ConcurrentMap<String,AtomicLong> lastTimes = new ConcurrentHashMap<>();
+
+	/**
+	 * Reserves and returns {@code name} if it is neither reserved nor in use;
+	 * otherwise reserves and returns the next free name in the sequence
+	 * generated by {@code format} (which must contain a single {@code %d}).
+	 * When first used, the sequence starts after the highest number in use
+	 * and after {@code name}'s own number, if it is in the sequence. The name
+	 * must be {@linkplain #release(String) released} once the resource has
+	 * been persisted or its creation has failed.
+	 */
+	public static String reserve(String name, String format, InUse inUse) {
+		if (tryReserve(name, inUse))
+			return name;
+		AtomicInteger counter = counters.get(format);
+		if (counter == null) {
+			AtomicInteger fresh = new AtomicInteger( firstNumber(name, format, inUse) );
+			counter = counters.putIfAbsent(format, fresh);
+			if (counter == null)
+				counter = fresh;
+		}
+		while (true) {
+			String candidate = String.format(format, counter.getAndIncrement());
+			if (tryReserve(candidate, inUse))
+				return candidate;
+		}
+	}
+
+	/** Releases a name previously returned by {@link #reserve(String, String, InUse)}. */
+	public static void release(String name) {
+		reserved.remove(name);
+	}
+
+	/**
+	 * Returns a JPQL {@code like} pattern, with {@code !} as its escape
+	 * character, that matches the names beginning with {@code prefix}.
+	 */
+	public static String likePrefix(String prefix) {
+		return prefix.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%";
+	}
+
+	/**
+	 * Returns a name made up of {@code prefix} and a timestamp no earlier
+	 * than the current time that has not been returned before for that
+	 * prefix (the timestamp is advanced by a millisecond when necessary) and
+	 * that is not {@code inUse}.
+	 */
+	public static String timeStamped(String prefix, InUse inUse) {
+		AtomicLong last = lastTimes.get(prefix);
+		if (last == null) {
+			AtomicLong fresh = new AtomicLong(0);
+			last = lastTimes.putIfAbsent(prefix, fresh);
+			if (last == null)
+				last = fresh;
+		}
+		while (true) {
+			long previous = last.get();
+			long next = Math.max(System.currentTimeMillis(), previous + 1);
+			if (last.compareAndSet(previous, next)) {
+				String name = Util.generateTimeStampBasedName(prefix, new Date(next));
+				if (! inUse.test(name)) //only possible if the clock has gone backwards since an earlier run
+					return name;
+			}
+		}
+	}
+
+	//--Internals--------------------------------------------------------------
+
+	/** Returns the number following both the highest in use in the sequence and that of {@code name}. */
+	private static int firstNumber(String name, String format, InUse inUse) {
+		String[] affixes = affixes(format);
+		int highest = number(name, affixes);
+		for (String used : inUse.withPrefix(affixes[0]))
+			highest = Math.max(highest, number(used, affixes));
+		return highest + 1;
+	}
+
+	/** Splits the format at its {@code %d}, returning the text before and after it with any {@code %%} unescaped. */
+	private static String[] affixes(String format) {
+		for (int i = 0; i < format.length() - 1; i++) {
+			if (format.charAt(i) == '%') {
+				if (format.charAt(i + 1) == 'd')
+					return new String[] { String.format(format.substring(0, i)), String.format(format.substring(i + 2)) };
+				i++; //past the escaped character
+			}
+		}
+		throw new IllegalArgumentException("Name format has no %d: " + format);
+	}
+
+	/** Returns the number in a name made up of the prefix, a number and the suffix, or 0 if it is not of that form. */
+	private static int number(String name, String[] affixes) {
+		if (! name.startsWith(affixes[0]) || ! name.endsWith(affixes[1]))
+			return 0;
+		String digits = name.substring(affixes[0].length(), Math.max(affixes[0].length(), name.length() - affixes[1].length()));
+		return digits.matches("\\d{1,9}") ? Integer.parseInt(digits) : 0;
+	}
+
+	private static boolean tryReserve(String name, InUse inUse) {
+		if (! reserved.add(name))
+			return false;
+		if (! inUse.test(name))
+			return true;
+		reserved.remove(name);
+		return false;
+	}
+
+}
@@ -0,0 +1,177 @@
+package util;
+
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.JsonObject;
+
+import play.Logger;
+import play.Play;
+import play.libs.Time;
+import play.libs.WS;
+import play.libs.WS.HttpResponse;
+
+/**
+ * Keeps the JSON representations of external resources that are read
+ * repeatedly but rarely change, namely the descriptions of external
+ * transformers and schemas referenced by URI. A representation is served
+ * from memory until it expires, after {@code max-age} if the response gives
+ * one or otherwise after {@link ConfKeys#REMOTE_CACHE_TTL}; it is then
+ * revalidated with a conditional request using its {@code ETag} or
+ * {@code Last-Modified} header where it had one. Concurrent requests for
+ * the same URI share a single fetch.
+ * <p>
+ * Resources served by this server are not cached, since they can change
+ * (such as when a predictor is updated) without any notice to the cache.
+ */
+public final class RemoteResourceCache {
+	private RemoteResourceCache() { }
+
+	private static final long defaultTTLMillis = 1000L * Time.parseDuration( Play.configuration.getProperty(ConfKeys.REMOTE_CACHE_TTL, "5mn") );
+	private static final int maxEntries = Integer.parseInt( Play.configuration.getProperty(ConfKeys.REMOTE_CACHE_SIZE, "1000") );
+	private static final Pattern MAX_AGE = Pattern.compile("max-age\\s*=\\s*(\\d+)");
+
+	/** Cached representations, in access order. */
+	private static final Map<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+			return size() > maxEntries;
+		}
+	};
+	/** Fetches in progress, so that concurrent requests for the same URI wait for the same response. */
+	private static final ConcurrentMap<String,FutureTask<Entry>> fetches = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns the JSON object at the given URI, from memory if a fresh copy
+	 * is held. Each call returns a new object, which the caller may modify.
+	 * @throws ExternalResourceException If the resource could not be
+	 *  retrieved or is not a JSON object.
+	 */
+	public static JsonObject getJSON(final String uri) throws ExternalResourceException {
+		try {
+			if (maxEntries <= 0 || Util.hostIsLocal(uri))
+				return HttpUtil.getJSON(uri, null);
+		} catch (URISyntaxException urise) {
+			throw new RuntimeException(urise);
+		}
+		final Entry cached;
+		synchronized (entries) {
+			cached = entries.get(uri);
+		}
+		if (cached != null && cached.expires > System.currentTimeMillis())
+			return cached.toJSON();
+
+		FutureTask<Entry> fetch = new FutureTask<>(new Callable<Entry>() {
+			public Entry call() throws ExternalResourceException {
+				return fetch(uri, cached);
+			}
+		});
+		FutureTask<Entry> existing = fetches.putIfAbsent(uri, fetch);
+		if (existing == null) {
+			try {
+				fetch.run();
+			} finally {
+				fetches.remove(uri, fetch);
+			}
+		} else {
+			Logger.trace("Waiting for fetch of %s already in progress", uri);
+			fetch = existing;
+		}
+
+		try {
+			return fetch.get().toJSON();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ie);
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof ExternalResourceException)
+				throw (ExternalResourceException) ee.getCause();
+			if (ee.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ee.getCause();
+			throw new RuntimeException(ee.getCause());
+		}
+	}
+
+	/** Discards the cached representation of the given URI, if any. */
+	public static void invalidate(String uri) {
+		synchronized (entries) {
+			entries.remove(uri);
+		}
+	}
+
+	/** Empties the cache. */
+	public static void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	//--Internals--------------------------------------------------------------
+
+	/** Retrieves (or revalidates the {@code stale} copy of) the resource at {@code uri}, and caches it. */
+	private static Entry fetch(String uri, Entry stale) throws ExternalResourceException {
+		Map<String,String> headers = new HashMap<>();
+		headers.put("Accept", "application/json");
+		if (stale != null && stale.etag != null)
+			headers.put("If-None-Match", stale.etag);
+		if (stale != null && stale.lastModified != null)
+			headers.put("If-Modified-Since", stale.lastModified);
+		Logger.trace("Fetching %s for remote resource cache%s", uri, stale == null ? "" : " (revalidating)");
+
+		HttpResponse response = WS.url(uri).headers(headers).get();
+		Entry entry;
+		if (stale != null && response.getStatus() == 304)
+			entry = new Entry(stale.json, stale.etag, stale.lastModified, expiry(response));
+		else
+			entry = new Entry(HttpUtil.responseToJSON(uri, response).toString(), response.getHeader("ETag"), response.getHeader("Last-Modified"), expiry(response));
+		synchronized (entries) {
+			entries.put(uri, entry);
+		}
+		return entry;
+	}
+
+	private static long expiry(HttpResponse response) {
+		long ttl = defaultTTLMillis;
+		String cacheControl = response.getHeader("Cache-Control");
+		if (cacheControl != null) {
+			if (cacheControl.contains("no-cache") || cacheControl.contains("no-store"))
+				ttl = 0;
+			else {
+				Matcher maxAge = MAX_AGE.matcher(cacheControl);
+				if (maxAge.find())
+					ttl = 1000L * Long.parseLong(maxAge.group(1));
+			}
+		}
+		return System.currentTimeMillis() + ttl;
+	}
+
+	private static class Entry {
+		/** The representation as text, so that each caller gets its own copy. */
+		final String json;
+		final String etag;
+		final String lastModified;
+		final long expires;
+
+		Entry(String json, String etag, String lastModified, long expires) {
+			this.json = json;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.expires = expires;
+		}
+
+		JsonObject toJSON() {
+			return Util.parseJSON(json).getAsJsonObject();
+		}
+	}
+
+}
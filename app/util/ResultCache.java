@@ -0,0 +1,173 @@
+package util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import models.predictor.Predictor;
+import play.Play;
+
+/**
+ * Keeps the results of applying predictors to single values, for the
+ * predictors named in {@link ConfKeys#RESULT_CACHE_PREDICTORS}, so that the
+ * same value sent to the same predictor repeatedly is neither validated nor
+ * predicted again. Values are keyed by a hash of their canonical form (with
+ * the members of objects in order of name and without whitespace), so
+ * values differing only in those respects share an entry, and by the
+ * predictor's model version when the request began; a result is stored
+ * only if that is still the latest version once it has been computed, so
+ * that it cannot have come from another. A predictor's entries are also
+ * discarded when it is updated or deleted.
+ * <p>
+ * Results are held up to {@link ConfKeys#RESULT_CACHE_MAX_MB}, beyond which
+ * the least recently used are evicted; the cache is disabled unless that is
+ * set.
+ */
+public final class ResultCache {
+	private ResultCache() { }
+
+	private static final long maxBytes = 1024L * 1024 * Long.parseLong( Play.configuration.getProperty(ConfKeys.RESULT_CACHE_MAX_MB, "0") );
+	private static final Set<String> predictors = new HashSet<>( Arrays.asList(
+			Play.configuration.getProperty(ConfKeys.RESULT_CACHE_PREDICTORS, "").trim().split("\\s*,\\s*") ));
+	/** Rough size of an entry apart from its key and result text. */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	/** Results, in access order. */
+	private static final LinkedHashMap<String,Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private static long bytes = 0;
+	private static long hits = 0, misses = 0, evictions = 0;
+
+	/**
+	 * Returns the key for applying the given predictor to the value, or
+	 * {@code null} if its results are not cached; obtain it before applying
+	 * the predictor, whose result is then computed from the key's model
+	 * version or a later one, and only {@linkplain #put stored} if the former.
+	 */
+	public static String key(Predictor predictor, JsonElement value) {
+		if (maxBytes <= 0 || ! (predictors.contains(predictor.name) || predictors.contains("*")))
+			return null;
+		StringBuilder canonical = new StringBuilder();
+		canonicalise(value, canonical);
+		Long version = Predictor.latestModelVersion(predictor.name);
+		return predictor.name + '@' + (version == null ? "" : version) + ' ' + DigestUtils.sha256Hex(canonical.toString());
+	}
+
+	/** Returns the result stored under the given key, or {@code null} if there is none. */
+	public static synchronized JsonElement get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.result;
+	}
+
+	/**
+	 * Stores the result under the given key, unless the predictor's model
+	 * version has changed since the key was obtained, in which case the
+	 * result may have come from either version.
+	 */
+	public static synchronized void put(String key, JsonElement result) {
+		Entry entry = new Entry(key, result);
+		if (entry.bytes > maxBytes || ! isCurrent(key))
+			return;
+		Entry previous = entries.put(key, entry);
+		if (previous != null)
+			bytes -= previous.bytes;
+		bytes += entry.bytes;
+		Iterator<Entry> it = entries.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().bytes;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/** Removes every result of the given predictor; call when it is updated or deleted. */
+	public static synchronized void invalidate(String predictor) {
+		String prefix = predictor + '@';
+		Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String,Entry> entry = it.next();
+			if (entry.getKey().startsWith(prefix)) {
+				bytes -= entry.getValue().bytes;
+				it.remove();
+			}
+		}
+	}
+
+	/** Returns the cache's size and hit, miss and eviction counts. */
+	public static synchronized JsonObject status() {
+		JsonObject status = new JsonObject();
+		status.addProperty("enabled", maxBytes > 0);
+		status.addProperty("entries", entries.size());
+		status.addProperty("bytes", bytes);
+		status.addProperty("maxBytes", maxBytes);
+		status.addProperty("hits", hits);
+		status.addProperty("misses", misses);
+		status.addProperty("evictions", evictions);
+		return status;
+	}
+
+	//--Internals--------------------------------------------------------------
+
+	/** Tests whether the model version in the key is still the predictor's latest. */
+	private static boolean isCurrent(String key) {
+		int hashStart = key.lastIndexOf(' ');
+		int versionStart = key.lastIndexOf('@', hashStart);
+		Long version = Predictor.latestModelVersion( key.substring(0, versionStart) );
+		return key.substring(versionStart + 1, hashStart).equals(version == null ? "" : version.toString());
+	}
+
+	/** Appends the value without whitespace and with object members ordered by name; numbers are kept as written. */
+	private static void canonicalise(JsonElement value, StringBuilder canonical) {
+		if (value.isJsonObject()) {
+			Map<String,JsonElement> members = new TreeMap<>();
+			for (Map.Entry<String,JsonElement> member : value.getAsJsonObject().entrySet())
+				members.put(member.getKey(), member.getValue());
+			canonical.append('{');
+			boolean isFirst = true;
+			for (Map.Entry<String,JsonElement> member : members.entrySet()) {
+				if (! isFirst)
+					canonical.append(',');
+				isFirst = false;
+				canonical.append(Util.GSON.toJson(member.getKey())).append(':');
+				canonicalise(member.getValue(), canonical);
+			}
+			canonical.append('}');
+		} else if (value.isJsonArray()) {
+			canonical.append('[');
+			JsonArray array = value.getAsJsonArray();
+			for (int i = 0; i < array.size(); i++) {
+				if (i > 0)
+					canonical.append(',');
+				canonicalise(array.get(i), canonical);
+			}
+			canonical.append(']');
+		} else
+			canonical.append(value.toString());
+	}
+
+	private static class Entry {
+		final JsonElement result;
+		/** Estimated memory occupied, from the lengths of the key and of the result's text. */
+		final long bytes;
+
+		Entry(String key, JsonElement result) {
+			this.result = result;
+			this.bytes = ENTRY_OVERHEAD + 2L * (key.length() + result.toString().length());
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+package util;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonObject;
+
+import play.Logger;
+import play.Play;
+import play.jobs.Every;
+import play.jobs.Job;
+import play.libs.Time;
+
+/**
+ * Cached health of the scikit-learn service, so that requests to sklearn
+ * predictors need not first check that the service is running. A
+ * {@linkplain Heartbeat heartbeat} checks the service in the background,
+ * and a circuit breaker tracks the outcome of requests:
+ * <ul>
+ * <li><em>closed</em>: requests are sent to the service, until
+ * {@link ConfKeys#SKLEARN_BREAKER_FAILURES} fail in succession or the
+ * heartbeat finds the service down;</li>
+ * <li><em>open</em>: requests fail immediately, for
+ * {@link ConfKeys#SKLEARN_BREAKER_OPEN_FOR} or until the heartbeat finds
+ * the service up;</li>
+ * <li><em>half open</em>: one trial request is sent, and the breaker is
+ * closed if it succeeds or opened again if it fails.</li>
+ * </ul>
+ * Checking the breaker takes no locks and makes no requests.
+ */
+public final class SKLearnService {
+	private SKLearnService() { }
+
+	public static enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private static final int failureThreshold = Integer.parseInt( Play.configuration.getProperty(ConfKeys.SKLEARN_BREAKER_FAILURES, "5") );
+	private static final long openFor = 1000L * Time.parseDuration( Play.configuration.getProperty(ConfKeys.SKLEARN_BREAKER_OPEN_FOR, "30s") );
+
+	private static volatile State state = State.CLOSED; //until the first heartbeat, assume the service is up
+	/** When an open breaker becomes half open. */
+	private static volatile long openUntil = 0;
+	private static volatile int consecutiveFailures = 0;
+
+	private static final AtomicLong requests = new AtomicLong(), failures = new AtomicLong(), rejected = new AtomicLong(), opened = new AtomicLong();
+	private static volatile long lastHeartbeat = 0, lastFailure = 0;
+	private static volatile boolean lastHeartbeatUp = false;
+	private static volatile String lastFailureMessage = null;
+
+	/**
+	 * Returns {@code true} if a request may be sent to the service, in which
+	 * case the caller must report its outcome with {@link #succeeded()} or
+	 * {@link #failed(Throwable)}, or that it had none with
+	 * {@link #abandoned()}.
+	 */
+	public static boolean allowRequest() {
+		State current = state;
+		if (current == State.CLOSED || current == State.OPEN && System.currentTimeMillis() >= openUntil && trial()) {
+			requests.incrementAndGet();
+			return true;
+		}
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/** Records a request that the service handled, whatever its response. */
+	public static void succeeded() {
+		if (state == State.CLOSED && consecutiveFailures == 0) //the usual case, without locking
+			return;
+		close();
+	}
+
+	/**
+	 * Records that a request allowed by {@link #allowRequest()} ended without
+	 * an outcome, because it was never sent or was abandoned while waiting
+	 * for a response; if it was the trial request of a half open breaker,
+	 * the next request becomes the trial instead. Has no effect once an
+	 * outcome has been reported.
+	 */
+	public static synchronized void abandoned() {
+		if (state == State.HALF_OPEN)
+			state = State.OPEN; //with openUntil already passed
+	}
+
+	/** Records a request that the service failed to handle. */
+	public static synchronized void failed(Throwable cause) {
+		failures.incrementAndGet();
+		lastFailure = System.currentTimeMillis();
+		lastFailureMessage = String.valueOf(cause);
+		if (state == State.HALF_OPEN || ++consecutiveFailures >= failureThreshold)
+			open();
+	}
+
+	/** Returns the breaker's state and the service's failure statistics. */
+	public static JsonObject status() {
+		JsonObject status = new JsonObject();
+		status.addProperty("state", state.name().toLowerCase());
+		if (state == State.OPEN)
+			status.addProperty("retryAt", format(openUntil));
+		status.addProperty("requests", requests.get());
+		status.addProperty("failures", failures.get());
+		status.addProperty("rejected", rejected.get());
+		status.addProperty("timesOpened", opened.get());
+		if (lastHeartbeat > 0) {
+			status.addProperty("lastHeartbeat", format(lastHeartbeat));
+			status.addProperty("lastHeartbeatUp", lastHeartbeatUp);
+		}
+		if (lastFailure > 0) {
+			status.addProperty("lastFailure", format(lastFailure));
+			status.addProperty("lastFailureMessage", lastFailureMessage);
+		}
+		return status;
+	}
+
+	//--Internals--------------------------------------------------------------
+
+	private static String format(long time) {
+		synchronized (Util.UTC_DATETIME_FORMAT) {
+			return Util.UTC_DATETIME_FORMAT.format(new Date(time));
+		}
+	}
+
+	/** Moves an open breaker whose time is up to half open, returning {@code true} for the one caller that does so. */
+	private static synchronized boolean trial() {
+		if (state != State.OPEN || System.currentTimeMillis() < openUntil)
+			return false;
+		state = State.HALF_OPEN;
+		return true;
+	}
+
+	private static synchronized void close() {
+		consecutiveFailures = 0;
+		if (state != State.CLOSED)
+			Logger.info("Scikit-learn service is available again");
+		state = State.CLOSED;
+	}
+
+	private static synchronized void open() {
+		openUntil = System.currentTimeMillis() + openFor;
+		if (state != State.OPEN) {
+			opened.incrementAndGet();
+			Logger.warn("Scikit-learn service is unavailable; failing requests to it until %s", new Date(openUntil));
+		}
+		state = State.OPEN;
+	}
+
+	/**
+	 * Checks whether the service is running, opening or closing the breaker
+	 * accordingly, as often as {@code cron.sklearn_service.heartbeat}.
+	 */
+	@Every("cron.sklearn_service.heartbeat")
+	public static class Heartbeat extends Job<Object> {
+		public void doJob() {
+			boolean isUp;
+			try {
+				isUp = SKLearnTrainer.serviceIsUp();
+			} catch (RuntimeException e) {
+				isUp = false;
+				lastFailure = System.currentTimeMillis();
+				lastFailureMessage = String.valueOf(e);
+			}
+			lastHeartbeat = System.currentTimeMillis();
+			lastHeartbeatUp = isUp;
+			if (isUp)
+				close();
+			else
+				open();
+		}
+	}
+
+}
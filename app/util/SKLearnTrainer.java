@@ -44,6 +44,7 @@ import play.mvc.Http;
 public final class SKLearnTrainer extends Trainer {
 	
 	private static String SKLEAN_SERVICE_URI = Play.configuration.getProperty(ConfKeys.SKLEARN_SERVICE_ROOT);
+	private static final boolean sendsBinaryPayloads = Boolean.parseBoolean( Play.configuration.getProperty(ConfKeys.SKLEARN_BINARY_PAYLOADS, "false") );
 
 	private static SKLearnTrainer instance;
 	
@@ -102,13 +103,21 @@ public final class SKLearnTrainer extends Trainer {
 			}
 			JsonObject newResources = new JsonObject();
 			for (Map.Entry<CommonResource,JsonArray> values : allValues.entrySet()) {
-				newResources.add(values.getKey().name(), values.getValue());
+				if (values.getKey() != CommonResource.source)
+					newResources.add(values.getKey().name(), values.getValue());
 			}
 			if (labelSchema != null)
 				newResources.add( "targetLabels", Schema.compileToJSONSchema( labelSchema ).getAsJsonObject().get("enum") );
 			newTask.add("resources", newResources);
 
-			JsonObject status = HttpUtil.postJSON( ((SKLearnLearner)learner).getLearnerURI(), newTask);
+			//Send the source values as a binary matrix if possible and enabled, otherwise as JSON along with the rest
+			JsonArray sourceValues = allValues.get(CommonResource.source);
+			byte[] binary = sendsBinaryPayloads && sourceValues != null ? MatrixPayload.encode(newTask, "resources.source", sourceValues) : null;
+			if (binary == null && sourceValues != null)
+				newResources.add(CommonResource.source.name(), sourceValues);
+			JsonObject status = binary != null ?
+					HttpUtil.postBytes( ((SKLearnLearner)learner).getLearnerURI(), binary, MatrixPayload.MIME_TYPE) :
+					HttpUtil.postJSON( ((SKLearnLearner)learner).getLearnerURI(), newTask);
 
 			if (! status.has("predictor"))
 				throw new TrainingException(status.has("status") ? status.get("status").getAsString() : "Unknown error occurred is scikit-learn");
@@ -1,6 +1,7 @@
 package util;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -24,6 +25,9 @@ import com.github.fge.jsonschema.report.ProcessingReport;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -53,6 +57,7 @@ import play.Play;
 public class Schema {
 	public static final SchemaVersion SCHEMA_VERSION;
 	private static final ObjectMapper JACKSON_OBJ_MAPPER = new ObjectMapper();
+	private static final JsonNodeFactory JACKSON_NODES = JsonNodeFactory.instance;
 	private static final JsonSchemaFactory SCHEMA_FACTORY;
 	static {
 		SCHEMA_VERSION = SchemaVersion.valueOf( Play.configuration.getProperty( "psi.schema-version" ) );
@@ -175,6 +180,27 @@ public class Schema {
 		return messages;
 	}
 	
+	/**
+	 * Returns a {@link Validator} for the given JSON (not PSI) schema, which
+	 * avoids preparing the schema again for each value validated.
+	 */
+	public static Validator validatorFor(JsonObject schema) {
+		return new Validator( schemaForValidation(schema) );
+	}
+	
+	/** A JSON schema prepared for validating any number of values. */
+	public static class Validator {
+		private final JsonSchema schema;
+		
+		private Validator(JsonSchema schema) { this.schema = schema; }
+		
+		/** Returns the validation error messages for the given value; empty if it is valid. */
+		public List<String> validate(JsonElement value) { return Schema.validate(schema, value); }
+		
+		/** Returns {@code true} if the given value is valid. */
+		public boolean isValid(JsonElement value) { return validate(value).isEmpty(); }
+	}
+	
 	/**
 	 * Returns the given JSON schema as {@code json-schema-validator}'s
 	 * {@link JsonSchema} type.
@@ -199,7 +225,7 @@ public class Schema {
 	@SuppressWarnings("unchecked") //Except that there exists only one empty list for every type
 	private static List<String> validate(JsonSchema schema, JsonElement value) {
 		try {
-			ProcessingReport report = schema.validate( JACKSON_OBJ_MAPPER.readTree( value.toString() ) );
+			ProcessingReport report = schema.validate( toJackson(value) );
 			if (report.isSuccess())
 				return Collections.EMPTY_LIST;
 			List<String> messages = new Vector<>();
@@ -208,13 +234,48 @@ public class Schema {
 				messages.add( message.getMessage() );
 			}
 			return messages;
-		} catch (IOException e) { //note that the one I care about (JsonProcessingException) is a subclass of IOException
-			throw new RuntimeException("Error encountered while parsing JSON for validation", e);			
 		} catch (ProcessingException pe) {
 			throw new RuntimeException("Error encountered while validating JSON", pe);
 		}
 	}
 	
+	/**
+	 * Converts a Gson value directly into the equivalent Jackson value,
+	 * rather than writing and re-parsing its text. As when parsing, numbers
+	 * without a fraction or exponent become integral nodes.
+	 */
+	private static JsonNode toJackson(JsonElement value) {
+		if (value.isJsonNull())
+			return JACKSON_NODES.nullNode();
+		if (value.isJsonObject()) {
+			ObjectNode object = JACKSON_NODES.objectNode();
+			for (Entry<String,JsonElement> property : value.getAsJsonObject().entrySet())
+				object.put( property.getKey(), toJackson(property.getValue()) );
+			return object;
+		}
+		if (value.isJsonArray()) {
+			ArrayNode array = JACKSON_NODES.arrayNode();
+			for (JsonElement element : value.getAsJsonArray())
+				array.add( toJackson(element) );
+			return array;
+		}
+		JsonPrimitive primitive = value.getAsJsonPrimitive();
+		if (primitive.isBoolean())
+			return JACKSON_NODES.booleanNode( primitive.getAsBoolean() );
+		if (primitive.isString())
+			return JACKSON_NODES.textNode( primitive.getAsString() );
+		String number = primitive.getAsString();
+		if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+			BigInteger integer = new BigInteger(number);
+			if (integer.bitLength() < 32)
+				return JACKSON_NODES.numberNode( integer.intValue() );
+			if (integer.bitLength() < 64)
+				return JACKSON_NODES.numberNode( integer.longValue() );
+			return JACKSON_NODES.numberNode(integer);
+		}
+		return JACKSON_NODES.numberNode( Double.parseDouble(number) );
+	}
+	
 	/**
 	 * Performs basic compatibility checking between the given {@code emits}
 	 * and {@code accepts} schema, returning {@code true} if they are
@@ -452,7 +513,7 @@ public class Schema {
 
 		Logger.trace("Entering resolve(id=%s, args=%s, context=%s)", id, args, context);
 		if (id.startsWith("http://"))
-			return HttpUtil.getJSON(id, null);
+			return RemoteResourceCache.getJSON(id);
 		if (! context.contains(id))
 			throw new NoSuchElementException("Schema with id \"" + id + "\" not found in current context");
 
@@ -0,0 +1,284 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import play.Logger;
+import play.Play;
+
+/**
+ * A durable, append-only record of the updates made to one predictor's model
+ * since it was last written to the database, so that updates can be
+ * acknowledged once logged and the model saved (checkpointed) later. Each
+ * record holds the values of one update request and the model version that
+ * it produced; after a crash, the records with versions beyond the one in
+ * the database are replayed.
+ * <p>
+ * A record is a line of JSON. An append that fails part way is cut off
+ * again, and a partial line left at the end of the file by a crash is cut
+ * off before appending resumes, so that a later record is never written on
+ * the same line as a partial one; records after an unreadable one are
+ * never read.
+ * <p>
+ * Appending and making the record durable are separate steps, so that
+ * concurrent updates can share one {@code fsync} (a group commit): each
+ * appender waits until some sync has covered its record, and a sync covers
+ * every record appended before it began.
+ * <p>
+ * Logs are kept in {@link ConfKeys#UPDATE_LOG_DIR}, one file per predictor;
+ * if that is set to an empty value then there are no logs and updates are
+ * saved to the database immediately.
+ */
+public final class UpdateLog {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SUFFIX = ".log";
+	private static final File dir = logDirectory( Play.configuration.getProperty(ConfKeys.UPDATE_LOG_DIR, "db/update-log") );
+
+	/** Open logs, keyed by predictor name. */
+	private static final ConcurrentMap<String,UpdateLog> logs = new ConcurrentHashMap<>();
+
+	private final File file;
+	private FileChannel channel;
+	/** Number of records appended, and the number known to be durable. */
+	private long appended = 0, synced = 0;
+	/** Held while syncing, so that appenders can carry on meanwhile. */
+	private final Object syncLock = new Object();
+
+	private UpdateLog(File file) {
+		this.file = file;
+	}
+
+	/** Returns {@code true} if updates are to be logged rather than saved immediately. */
+	public static boolean isEnabled() {
+		return dir != null;
+	}
+
+	/** Returns the log of the named predictor, which need not exist yet. */
+	public static UpdateLog forPredictor(String predictor) {
+		UpdateLog log = logs.get(predictor);
+		if (log == null) {
+			UpdateLog fresh = new UpdateLog( new File(dir, predictor + SUFFIX) );
+			log = logs.putIfAbsent(predictor, fresh);
+			if (log == null)
+				log = fresh;
+		}
+		return log;
+	}
+
+	/** Returns the names of the predictors that have logs on disk. */
+	public static List<String> loggedPredictors() {
+		List<String> names = new ArrayList<>();
+		if (dir != null)
+			for (String fileName : dir.list())
+				if (fileName.endsWith(SUFFIX))
+					names.add( fileName.substring(0, fileName.length() - SUFFIX.length()) );
+		return names;
+	}
+
+	/**
+	 * Appends a record of an update that produced model {@code version};
+	 * returns a sequence number to pass to {@link #awaitDurable(long)}, as
+	 * the record may not yet be on disk.
+	 */
+	public synchronized long append(long version, JsonArray values) throws IOException {
+		JsonObject record = new JsonObject();
+		record.addProperty("version", version);
+		record.add("values", values);
+		ByteBuffer bytes = ByteBuffer.wrap( (record.toString() + "\n").getBytes(UTF8) );
+		FileChannel channel = channel();
+		long start = channel.size();
+		try {
+			while (bytes.hasRemaining())
+				channel.write(bytes);
+		} catch (IOException ioe) {
+			try {
+				channel.truncate(start); //so that the next record does not follow a partial one
+			} catch (IOException truncateFailure) {
+				close(); //the partial record is cut off when the log is next opened
+			}
+			throw ioe;
+		}
+		return ++appended;
+	}
+
+	/** Returns once the record with the given sequence number has been forced to disk. */
+	public void awaitDurable(long sequence) throws IOException {
+		synchronized (syncLock) {
+			if (synced >= sequence) //covered by another appender's sync
+				return;
+			long upTo;
+			FileChannel channel;
+			synchronized (this) {
+				upTo = appended;
+				channel = channel();
+			}
+			channel.force(false);
+			synced = upTo;
+		}
+	}
+
+	/**
+	 * Returns the logged updates in order, up to the first that cannot be
+	 * read, such as a partially written final record left by a crash.
+	 */
+	public synchronized List<Record> read() throws IOException {
+		List<Record> records = new ArrayList<>();
+		if (! file.exists())
+			return records;
+		try (BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream(file), UTF8 ) )) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				try {
+					JsonObject record = Util.parseJSON(line).getAsJsonObject();
+					records.add( new Record(record.get("version").getAsLong(), record.get("values").getAsJsonArray()) );
+				} catch (JsonParseException | IllegalStateException | NullPointerException e) {
+					Logger.warn("Ignoring unreadable record in update log %s, and any after it: %s", file, line);
+					break;
+				}
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Discards the records of updates up to and including {@code version},
+	 * which must already have been saved to the database; the log file is
+	 * deleted if none remain.
+	 */
+	public void truncate(long version) throws IOException {
+		synchronized (syncLock) {
+			synchronized (this) {
+				List<Record> remaining = new ArrayList<>();
+				for (Record record : read())
+					if (record.version > version)
+						remaining.add(record);
+				close();
+				if (remaining.isEmpty()) {
+					file.delete();
+					return;
+				}
+				File rewritten = new File(dir, file.getName() + ".new");
+				try (FileOutputStream out = new FileOutputStream(rewritten)) {
+					Writer writer = new OutputStreamWriter(out, UTF8);
+					for (Record record : remaining) {
+						JsonObject json = new JsonObject();
+						json.addProperty("version", record.version);
+						json.add("values", record.values);
+						writer.write(json.toString() + "\n");
+					}
+					writer.flush();
+					out.getFD().sync();
+				}
+				if (! rewritten.renameTo(file))
+					throw new IOException("Unable to replace update log " + file);
+			}
+		}
+	}
+
+	/** Deletes the log; call when its predictor is deleted. */
+	public void delete() {
+		synchronized (syncLock) {
+			synchronized (this) {
+				close();
+				file.delete();
+			}
+		}
+	}
+
+	//--Internals--------------------------------------------------------------
+
+	private FileChannel channel() throws IOException {
+		if (channel == null) {
+			channel = new FileOutputStream(file, true).getChannel();
+			cutPartialRecord(channel);
+		}
+		return channel;
+	}
+
+	/** Truncates the file after its last complete line, in case a crash or failed append left a partial one. */
+	private void cutPartialRecord(FileChannel channel) throws IOException {
+		long end = channel.size();
+		if (end == 0)
+			return;
+		try (FileChannel reader = new FileInputStream(file).getChannel()) {
+			ByteBuffer buffer = ByteBuffer.allocate(4096);
+			long lineEnd = end;
+			while (lineEnd > 0) {
+				long from = Math.max(0, lineEnd - buffer.capacity());
+				buffer.clear();
+				buffer.limit((int) (lineEnd - from));
+				while (buffer.hasRemaining() && reader.read(buffer, from + buffer.position()) >= 0)
+					;
+				for (int i = buffer.position() - 1; i >= 0; i--) {
+					if (buffer.get(i) == '\n') {
+						lineEnd = from + i + 1;
+						if (lineEnd < end) {
+							Logger.warn("Discarding partial record at the end of update log %s", file);
+							channel.truncate(lineEnd);
+						}
+						return;
+					}
+				}
+				lineEnd = from;
+			}
+			Logger.warn("Discarding partial record at the end of update log %s", file);
+			channel.truncate(0);
+		}
+	}
+
+	/** Forces the file to disk and closes it. */
+	private void close() {
+		if (channel != null) {
+			try {
+				channel.force(false);
+				channel.close();
+			} catch (IOException ioe) {
+				Logger.warn(ioe, "Unable to close update log %s", file);
+			}
+			channel = null;
+		}
+		synced = appended;
+	}
+
+	private static File logDirectory(String path) {
+		if (path == null || path.trim().isEmpty())
+			return null;
+		File dir = Play.getFile(path.trim());
+		if (! dir.isDirectory() && ! dir.mkdirs()) {
+			Logger.warn("Update log directory %s could not be created, so predictor updates will be saved immediately", dir);
+			return null;
+		}
+		return dir;
+	}
+
+	/** One logged update. */
+	public static class Record {
+		/** The model version produced by the update. */
+		public final long version;
+		/** The update values, as given to {@code Predictor.update}. */
+		public final JsonArray values;
+
+		Record(long version, JsonArray values) {
+			this.version = version;
+			this.values = values;
+		}
+	}
+
+}
@@ -66,8 +66,13 @@ public final class Util {
 	public static final DateFormat HTTP_DATE_FORMAT = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'");
 	/** A date-time format that creates valid ISO8601 strings for UTC time. */
 	public static final DateFormat UTC_DATETIME_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
-	/** A date format suitable for including the date only as a compact string in a name. */
-	public static final DateFormat TIME_BASED_NAME_FORMAT = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+	/**
+	 * A date format suitable for including the date only as a compact string
+	 * in a name; one per thread, since names are generated concurrently.
+	 */
+	public static final ThreadLocal<DateFormat> TIME_BASED_NAME_FORMAT = new ThreadLocal<DateFormat>() {
+		protected DateFormat initialValue() { return new SimpleDateFormat("yyyyMMddHHmmssSSS"); }
+	};
 	/** Base URL for the app; cached at start. */
 	private static String BASE_URL = Play.configuration.getProperty( "application.baseUrl" );
 	private static String BASE_URL_NO_SLASH;
@@ -85,7 +90,7 @@ public final class Util {
 	private Util() { }
 	
 	public static String generateTimeStampBasedName(String prefix, Date date) {
-		return prefix + "_" + TIME_BASED_NAME_FORMAT.format(date);
+		return prefix + "_" + TIME_BASED_NAME_FORMAT.get().format(date);
 	}
 	
 	public static String generateUUIDBasedName(String prefix) {
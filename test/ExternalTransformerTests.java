@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import models.transformer.ExternalTransformer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import play.Play;
+import play.test.UnitTest;
+import util.ConfKeys;
+import util.ExternalResourceException;
+import util.Util;
+
+/**
+ * Tests the application of an {@link ExternalTransformer} to many values
+ * against a stub PSI transformer that doubles numbers, taking longer for some
+ * values than others so that responses arrive out of order.
+ */
+public class ExternalTransformerTests extends UnitTest {
+	private HttpServer stub;
+	private String stubURI;
+	private final AtomicInteger inProgress = new AtomicInteger(), maxInProgress = new AtomicInteger();
+
+	@Before public void startStub() throws IOException {
+		stub = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		stub.setExecutor( Executors.newFixedThreadPool(32) );
+		stub.createContext("/double", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				int now = inProgress.incrementAndGet();
+				while (maxInProgress.get() < now)
+					maxInProgress.compareAndSet(maxInProgress.get(), now);
+				try {
+					String query = URLDecoder.decode(exchange.getRequestURI().getRawQuery(), "UTF-8");
+					JsonElement value = Util.parseJSON( query.substring(query.indexOf('=') + 1) );
+					if (! value.isJsonPrimitive() || ! value.getAsJsonPrimitive().isNumber()) {
+						respond(exchange, 400, "{\"psiType\":\"service\",\"message\":\"Not a number\"}");
+						return;
+					}
+					Thread.sleep( 5 * (value.getAsInt() % 4) );
+					JsonObject response = new JsonObject();
+					response.addProperty("psiType", "value");
+					response.addProperty("value", 2 * value.getAsInt());
+					respond(exchange, 200, response.toString());
+				} catch (InterruptedException ie) {
+					respond(exchange, 503, "");
+				} finally {
+					inProgress.decrementAndGet();
+				}
+			}
+		});
+		stub.start();
+		stubURI = "http://127.0.0.1:" + stub.getAddress().getPort() + "/double";
+	}
+
+	@After public void stopStub() {
+		stub.stop(0);
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	@Test public void manyValuesAreReturnedInOrder() throws Exception {
+		List<JsonElement> values = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+			values.add( new JsonPrimitive(i) );
+		JsonArray result = new ExternalTransformer(stubURI, false).apply( values.iterator() );
+		assertEquals(values.size(), result.size());
+		for (int i = 0; i < values.size(); i++)
+			assertEquals("Value " + i, 2 * i, result.get(i).getAsInt());
+		int maxPerHost = Integer.parseInt( Play.configuration.getProperty(ConfKeys.EXTERNAL_MAX_REQUESTS_PER_HOST, "8") );
+		assertTrue("At most " + maxPerHost + " requests should be in progress at once, but saw " + maxInProgress.get(), maxInProgress.get() <= maxPerHost);
+		if (maxPerHost > 1)
+			assertTrue("Requests should have been issued concurrently", maxInProgress.get() > 1);
+	}
+
+	@Test public void failedRequestIsReported() throws Exception {
+		List<JsonElement> values = new ArrayList<>();
+		for (int i = 0; i < 20; i++)
+			values.add( i == 10 ? new JsonPrimitive("ten") : new JsonPrimitive(i) );
+		try {
+			new ExternalTransformer(stubURI, false).apply( values.iterator() );
+			fail("Expected failure of one request to be reported");
+		} catch (RuntimeException e) {
+			assertTrue( e.getCause() instanceof ExternalResourceException );
+		}
+	}
+
+}
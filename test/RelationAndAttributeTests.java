@@ -185,6 +185,37 @@ public class RelationAndAttributeTests extends BaseEmitterTester {
 		DELETE_OK( location );
 	}
 	
+	/**
+	 * Creates two attributes sharing a sub-attribute in one request and
+	 * checks that both are listed by the relation.
+	 */
+	@Assumes("attributeCreation")
+	@Test public void batchAttributeCreation() throws ExternalResourceException {
+		JsonObject relation = relations.get(0);
+		List<String> attrURIs = jsonArrayToStringList( relation.get("attributes") );
+		String shared = makeFull( attrURIs.get(0) );
+		Attribute.CreateList body = new Attribute.CreateList();
+		body.attributes = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			Attribute.Create def = new Attribute.Create();
+			JsonArray array = new JsonArray();
+			array.add( new JsonPrimitive(shared) );
+			array.add( new JsonPrimitive(makeFull( attrURIs.get((i + 1) % attrURIs.size()) )) );
+			def.attribute = array;
+			body.attributes.add(def);
+		}
+		Response response = POST_JSON(getProp(relation,"uri"), body);
+		assertStatus(Http.StatusCode.CREATED, response);
+		List<String> created = jsonArrayToStringList( asJsonObject(response).get("resources") );
+		assertEquals("Number of URIs returned for created attributes", 2, created.size());
+		
+		List<String> newAttrURIs = jsonArrayToStringList( GET_JSON( getProp(relation,"uri") ).get("attributes") );
+		for (String location : created) {
+			assertTrue("Batch-created attribute is not in latest list of attributes returned by relation: " + location, newAttrURIs.contains(location));
+			DELETE_OK( location );
+		}
+	}
+	
 	public static void testApplyAttribute(JsonObject attr, JsonObject relation) throws ExternalResourceException {
 		testApplyAttribute(attr, relation.get("size").getAsInt());
 	}
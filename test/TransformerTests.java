@@ -7,6 +7,7 @@ import org.junit.contrib.assumes.Assumes;
 import org.junit.contrib.assumes.Corollaries;
 import org.junit.runner.RunWith;
 
+import play.mvc.Http.Response;
 import util.ExternalResourceException;
 import util.JSONValueGenerator;
 import util.Schema;
@@ -56,6 +57,54 @@ public class TransformerTests extends BaseEmitterTester {
 		logJoinTestDetails(viableCombinations, "transformerTransformerJoin", "transformer", "transformer");
 	}
 	
+	/**
+	 * Stores the first viable transformer-transformer join under a short ID
+	 * and checks that it behaves as the joined transformer did.
+	 */
+	@Assumes("transformerTransformerJoin")
+	@Test public void storedJoinedTransformer() throws ExternalResourceException {
+		for (JsonObject t : transformers) {
+			for (JsonObject s : transformers) {
+				if (! Schema.isIncompatible(t.get("emits"), s.get("accepts"))) {
+					JsonObject ts = doJoin(t, s);
+					Response response = PUT(makeRelative(getProp(ts,"uri")), "application/json", "");
+					assertStatus(201, response);
+					String location = response.getHeader("location");
+					assertNotNull(location);
+					JsonObject stored = GET_JSON(location);
+					testTransformer(stored);
+					assertEquals("Stored joined transformer's emits", ts.get("emits"), stored.get("emits"));
+					assertTrue("Stored joined transformer should be listed", getResourceList("transformers", true).contains(makeFull(location)));
+					DELETE_OK(location);
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Creates an expression transformer, checks its representation and
+	 * values, then deletes it, which must be refused while a stored joined
+	 * transformer uses it; a malformed expression must be rejected.
+	 */
+	@Test public void expressionTransformer() throws ExternalResourceException {
+		String collection = makeRelative(getProp(GET_JSON("/"), "transformers"));
+		Response response = POST_JSON(collection, "{'psiType':'expression-definition', 'expression':'x < 0 ? -x : x ^ 2', 'accepts':'$number'}");
+		assertStatus(201, response);
+		String location = response.getHeader("location");
+		JsonObject t = GET_JSON(location);
+		testTransformer(t);
+		assertEquals("$number", getProp(t, "emits"));
+		assertEquals(3.0, GET_JSON(location + "?value=-3").get("value").getAsDouble(), 0);
+		assertEquals(4.0, GET_JSON(location + "?value=2").get("value").getAsDouble(), 0);
+		Response stored = PUT(makeRelative(getProp(doJoin(t, t),"uri")), "application/json", "");
+		assertStatus(201, stored);
+		assertStatus(403, DELETE(makeRelative(location)));
+		DELETE_OK(stored.getHeader("location"));
+		DELETE_OK(location);
+		assertStatus(400, POST_JSON(collection, "{'psiType':'expression-definition', 'expression':'x.y + 1', 'accepts':'$number'}"));
+	}
+	
 	/** Tests joins of {@code t} with all other transformers that appear compatible. */
 	private int testJoinsTo(JsonObject t, Collection<JsonObject> transformers) throws ExternalResourceException {
 		int viableCombinations = 0;
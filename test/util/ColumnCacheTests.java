@@ -0,0 +1,89 @@
+package util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.*;
+
+import models.transformer.Column;
+import play.Play;
+import play.test.*;
+
+/**
+ * Tests the {@link ColumnCache}: that the least recently used columns are
+ * evicted once the cached columns exceed its memory, that evicted columns
+ * are spilled to disk and read back, and that invalidating a predictor
+ * removes every column computed with it. Needs the spill directory to be
+ * configured, as it is in test mode.
+ */
+public class ColumnCacheTests extends UnitTest {
+
+	private static final long MAX_BYTES = 1024L * 1024 * Long.parseLong( Play.configuration.getProperty(ConfKeys.COLUMN_CACHE_MAX_MB, "64") );
+	private static final String SPILL_DIR = Play.configuration.getProperty(ConfKeys.COLUMN_CACHE_SPILL_DIR);
+
+	@Before
+	@After
+	public void clearCache() {
+		ColumnCache.clear();
+	}
+
+	@Test public void leastRecentlyUsedColumnIsEvicted() {
+		Column.Doubles a = column(1), b = column(2), c = column(3);
+		ColumnCache.put(key("a"), a);
+		ColumnCache.put(key("b"), b);
+		assertSame(a, ColumnCache.get(key("a"))); //so that b is now the least recently used
+		ColumnCache.put(key("c"), c); //with room for only two
+		assertTrue(isSpilled(key("b")));
+		assertFalse(isSpilled(key("a")));
+		assertSame(a, ColumnCache.get(key("a")));
+		assertSame(c, ColumnCache.get(key("c")));
+	}
+
+	@Test public void spilledColumnIsReadBack() {
+		Column.Doubles a = column(1);
+		ColumnCache.put(key("a"), a);
+		ColumnCache.put(key("b"), column(2));
+		ColumnCache.put(key("c"), column(3));
+		assertTrue(isSpilled(key("a")));
+		Column read = ColumnCache.get(key("a"));
+		assertNotSame(a, read);
+		assertArrayEquals(a.values, ((Column.Doubles) read).values, 0);
+		assertFalse(isSpilled(key("a")));
+		assertSame(read, ColumnCache.get(key("a"))); //kept in memory once read back
+	}
+
+	@Test public void invalidatingPredictorRemovesItsColumns() {
+		ColumnCache.put(key("a", "p1"), column(1));
+		ColumnCache.put(key("b", "p1", "p2"), column(2));
+		ColumnCache.put(key("c", "p2"), column(3));
+		assertTrue(isSpilled(key("a", "p1")));
+		ColumnCache.invalidatePredictor("p1");
+		assertFalse(isSpilled(key("a", "p1")));
+		assertNull(ColumnCache.get(key("a", "p1")));
+		assertNull(ColumnCache.get(key("b", "p1", "p2")));
+		assertNotNull(ColumnCache.get(key("c", "p2")));
+	}
+
+	/** Returns a column taking up two fifths of the cache's memory, so that it holds two. */
+	private static Column.Doubles column(double value) {
+		Column.Doubles column = new Column.Doubles( (int) (MAX_BYTES * 2 / 5 / 8) );
+		Arrays.fill(column.values, value);
+		return column;
+	}
+
+	private static ColumnCache.Key key(String attribute, String... predictors) {
+		return new ColumnCache.Key(attribute, new HashSet<>( Arrays.asList(predictors) ), attribute + " " + Arrays.toString(predictors));
+	}
+
+	private static boolean isSpilled(ColumnCache.Key key) {
+		assertNotNull("Column cache spill directory must be configured", SPILL_DIR);
+		String prefix = DigestUtils.shaHex(key.text) + "-";
+		for (File file : Play.getFile( SPILL_DIR.trim() ).listFiles())
+			if (file.getName().startsWith(prefix) && file.getName().endsWith(".column"))
+				return true;
+		return false;
+	}
+
+}
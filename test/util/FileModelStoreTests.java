@@ -0,0 +1,97 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.*;
+
+import play.Play;
+import play.test.*;
+
+/**
+ * Tests the {@link FileModelStore}: that objects are stored under the hash
+ * of their bytes and read back unchanged, and that a stored file whose
+ * content no longer matches its hash is detected when read.
+ */
+public class FileModelStoreTests extends UnitTest {
+
+	private final FileModelStore store = new FileModelStore();
+	/** References stored by the test, which are deleted after it. */
+	private final List<String> stored = new ArrayList<>();
+
+	@After
+	public void deleteStored() throws IOException {
+		for (String ref : stored)
+			store.delete(ref, Long.MAX_VALUE);
+	}
+
+	@Test public void storedBytesAreRead() throws IOException {
+		byte[] bytes = uniqueBytes();
+		String ref = put(bytes);
+		assertEquals(DigestUtils.sha256Hex(bytes), ref);
+		assertEquals(bytes.length, store.size(ref));
+		try (InputStream in = store.open(ref)) {
+			assertArrayEquals(bytes, readAll(in));
+		}
+		assertEquals(ref, store.put(bytes));
+	}
+
+	@Test public void encodedObjectIsDecoded() throws IOException {
+		ArrayList<String> object = new ArrayList<>( Arrays.asList("a", "b", String.valueOf(System.nanoTime())) );
+		String ref = store.write(object);
+		stored.add(ref);
+		assertEquals(object, store.read(ref));
+		assertEquals(ArrayList.class.getName(), store.readHeader(ref).className);
+	}
+
+	@Test(expected = IOException.class)
+	public void corruptedContentIsDetected() throws IOException {
+		byte[] bytes = uniqueBytes();
+		String ref = put(bytes);
+		try (RandomAccessFile file = new RandomAccessFile(storedFile(ref), "rw")) {
+			file.seek(0);
+			file.write(bytes[0] ^ 1);
+		}
+		try (InputStream in = store.open(ref)) {
+			readAll(in);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void missingObjectIsNotOpened() throws IOException {
+		store.open(DigestUtils.sha256Hex( uniqueBytes() ));
+	}
+
+	private String put(byte[] bytes) throws IOException {
+		String ref = store.put(bytes);
+		stored.add(ref);
+		return ref;
+	}
+
+	/** Returns bytes that no other test run stores, so that each test starts without them. */
+	private static byte[] uniqueBytes() {
+		return ("model " + System.nanoTime() + " " + Math.random()).getBytes();
+	}
+
+	private static File storedFile(String ref) {
+		File dir = Play.getFile( Play.configuration.getProperty(ConfKeys.MODEL_STORE_DIR, "db/models").trim() );
+		return new File(new File(dir, ref.substring(0, 2)), ref);
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) >= 0)
+			bytes.write(buffer, 0, read);
+		return bytes.toByteArray();
+	}
+
+}
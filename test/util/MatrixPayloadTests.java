@@ -0,0 +1,145 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.*;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import play.test.*;
+
+/**
+ * Tests {@link MatrixPayload}s by sending them to a local stand-in for the
+ * scikit learn service, which reads them as the service would (with
+ * {@code numpy.frombuffer}) and returns the sum of each row.
+ */
+public class MatrixPayloadTests extends UnitTest {
+
+	private static final JsonParser JSON_PARSER = new JsonParser();
+	private static HttpServer service;
+	private static String serviceURI;
+
+	@BeforeClass
+	public static void startService() throws IOException {
+		service = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		service.createContext("/predictor/test", new RowSums());
+		service.start();
+		serviceURI = "http://localhost:" + service.getAddress().getPort() + "/predictor/test";
+	}
+
+	@AfterClass
+	public static void stopService() {
+		service.stop(0);
+	}
+
+	@Test public void matrixIsReadByService() {
+		JsonObject request = new JsonObject();
+		request.add("multiple", new JsonPrimitive(true));
+		JsonArray values = array("[[1, 2], [3, 4.5], [-1e300, 0]]");
+		byte[] body = MatrixPayload.encode(request, "value", values);
+		assertNotNull(body);
+		JsonObject response = HttpUtil.postBytes(serviceURI, body, MatrixPayload.MIME_TYPE);
+		assertEquals(array("[3.0, 7.5, -1e300]"), response.get("value"));
+		assertEquals("value", response.get("binary").getAsString());
+		assertTrue(response.get("multiple").getAsBoolean());
+	}
+
+	@Test public void vectorHasNoColumns() {
+		byte[] body = MatrixPayload.encode(new JsonObject(), "resources.source", array("[1, 2.5, 3]"));
+		JsonObject response = HttpUtil.postBytes(serviceURI, body, MatrixPayload.MIME_TYPE);
+		assertEquals(0, response.get("columns").getAsInt());
+		assertEquals(array("[1.0, 2.5, 3.0]"), response.get("value"));
+	}
+
+	@Test public void nonNumericValuesAreLeftToJSON() {
+		assertNull(MatrixPayload.encode(new JsonObject(), "value", array("[[1, 2], [3, \"a\"]]")));
+		assertNull(MatrixPayload.encode(new JsonObject(), "value", array("[[1, 2], [3]]")));
+		assertNull(MatrixPayload.encode(new JsonObject(), "value", array("[1, [2]]")));
+		assertNull(MatrixPayload.encode(new JsonObject(), "value", array("[1, null]")));
+		assertNull(MatrixPayload.encode(new JsonObject(), "value", array("[]")));
+	}
+
+	@Test public void matrixIsSmallerThanJSON() {
+		Random random = new Random(1);
+		JsonArray values = new JsonArray();
+		for (int i = 0; i < 1000; i++) {
+			JsonArray row = new JsonArray();
+			for (int j = 0; j < 10; j++)
+				row.add(new JsonPrimitive(random.nextDouble()));
+			values.add(row);
+		}
+		JsonObject request = new JsonObject();
+		request.add("value", values);
+		byte[] body = MatrixPayload.encode(new JsonObject(), "value", values);
+		assertTrue(body.length * 2 < request.toString().length());
+	}
+
+	private static JsonArray array(String json) {
+		return JSON_PARSER.parse(json).getAsJsonArray();
+	}
+
+	/** Stands in for the scikit learn service, reading the matrix independently of {@link MatrixPayload}. */
+	private static class RowSums implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			ByteBuffer body = ByteBuffer.wrap(readAll(exchange.getRequestBody())).order(ByteOrder.LITTLE_ENDIAN);
+			JsonObject response;
+			int status = 200;
+			try {
+				assertEquals(MatrixPayload.MIME_TYPE, exchange.getRequestHeaders().getFirst("Content-Type").replaceAll(";.*", ""));
+				byte[] magic = new byte[4];
+				body.get(magic);
+				assertEquals("PSIB", new String(magic, "US-ASCII"));
+				assertEquals(1, body.get(4));
+				int jsonLength = body.getInt(8);
+				response = JSON_PARSER.parse( new String(body.array(), 12, jsonLength, "UTF-8") ).getAsJsonObject();
+				int offset = (12 + jsonLength + 7) / 8 * 8;
+				int rows = body.getInt(offset), columns = body.getInt(offset + 4);
+				assertEquals(0, (offset + 8) % 8);
+				assertEquals(offset + 8 + 8 * rows * Math.max(columns, 1), body.capacity());
+				JsonArray sums = new JsonArray();
+				body.position(offset + 8);
+				for (int i = 0; i < rows; i++) {
+					double sum = 0;
+					for (int j = 0; j < Math.max(columns, 1); j++)
+						sum += body.getDouble();
+					sums.add(new JsonPrimitive(sum));
+				}
+				response.add("value", sums);
+				response.add("columns", new JsonPrimitive(columns));
+			} catch (AssertionError | RuntimeException e) {
+				status = 400;
+				response = new JsonObject();
+				response.add("error", new JsonPrimitive(String.valueOf(e)));
+			}
+			byte[] bytes = response.toString().getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(status, bytes.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+		}
+
+		private static byte[] readAll(InputStream in) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) >= 0)
+				bytes.write(buffer, 0, read);
+			return bytes.toByteArray();
+		}
+	}
+
+}
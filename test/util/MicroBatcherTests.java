@@ -0,0 +1,137 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+import models.predictor.MicroBatcher;
+import models.predictor.Predictor;
+import models.transformer.BadValueException;
+import play.Play;
+import play.test.*;
+
+/**
+ * Tests the {@link MicroBatcher}: that concurrent requests arriving within
+ * the window are applied as one batch, that a batch as large as the request
+ * pool is applied without waiting for the rest of its window, and that the
+ * requests of a failed batch are each applied alone. Relies on the windows
+ * configured in test mode for the predictor types defined here, and on a
+ * request pool of more than one thread.
+ */
+public class MicroBatcherTests extends UnitTest {
+
+	private static final int POOL_SIZE = Integer.parseInt( Play.configuration.getProperty("play.pool", "1") );
+
+	@Test public void requestsWithinWindowAreBatched() throws Exception {
+		DoublingPredictor predictor = new WindowedPredictor("micro_batcher_test_windowed");
+		List<Object> results = applyConcurrently(predictor, number(1), number(2));
+		assertEquals(Arrays.<Object>asList(number(2), number(4)), results);
+		assertEquals(Arrays.asList(2), predictor.batchSizes);
+	}
+
+	@Test public void fullBatchIsAppliedBeforeWindowEnds() throws Exception {
+		assertTrue("Request pool must have more than one thread for batching", POOL_SIZE > 1);
+		DoublingPredictor predictor = new CappedPredictor("micro_batcher_test_capped");
+		JsonElement[] values = new JsonElement[POOL_SIZE];
+		for (int i = 0; i < POOL_SIZE; i++)
+			values[i] = number(i);
+		List<Object> results = applyConcurrently(predictor, values); //fails if waiting for the minute-long window
+		for (int i = 0; i < POOL_SIZE; i++)
+			assertEquals(number(2 * i), results.get(i));
+		assertEquals(Arrays.asList(POOL_SIZE), predictor.batchSizes); //capped by the pool, not the larger maximum size
+	}
+
+	@Test public void failedBatchIsAppliedValueByValue() throws Exception {
+		DoublingPredictor predictor = new WindowedPredictor("micro_batcher_test_failed");
+		List<Object> results = applyConcurrently(predictor, number(3), new JsonPrimitive("three"));
+		assertEquals(number(6), results.get(0));
+		assertTrue(results.get(1) instanceof BadValueException);
+		assertTrue(predictor.batchSizes.isEmpty());
+	}
+
+	/**
+	 * Applies the predictor to each value on its own thread, all started
+	 * together, returning each result or the exception thrown for it.
+	 */
+	private static List<Object> applyConcurrently(final Predictor predictor, JsonElement... values) throws Exception {
+		ExecutorService threads = Executors.newFixedThreadPool(values.length);
+		try {
+			List<Future<JsonElement>> futures = new ArrayList<>();
+			for (final JsonElement value : values) {
+				futures.add( threads.submit(new Callable<JsonElement>() {
+					public JsonElement call() throws BadValueException { return MicroBatcher.apply(predictor, value); }
+				}) );
+			}
+			List<Object> results = new ArrayList<>();
+			for (Future<JsonElement> future : futures) {
+				try {
+					results.add( future.get(10, TimeUnit.SECONDS) );
+				} catch (ExecutionException ee) {
+					results.add( ee.getCause() );
+				}
+			}
+			return results;
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	private static JsonElement number(double value) {
+		return new JsonPrimitive(value);
+	}
+
+	/**
+	 * Doubles numbers, recording the size of each batch it is applied to;
+	 * applying it to a batch fails if any value is not a number.
+	 */
+	private static class DoublingPredictor extends Predictor {
+		final List<Integer> batchSizes = Collections.synchronizedList( new ArrayList<Integer>() );
+
+		DoublingPredictor(String name) {
+			super(name, null, null, null);
+		}
+
+		public JsonElement apply(JsonElement value) throws BadValueException {
+			if (! value.isJsonPrimitive() || ! value.getAsJsonPrimitive().isNumber())
+				throw new BadValueException("Not a number: " + value);
+			return number(2 * value.getAsDouble());
+		}
+
+		public JsonArray apply(Iterator<JsonElement> values) throws BadValueException {
+			JsonArray results = new JsonArray();
+			while (values.hasNext())
+				results.add( apply(values.next()) );
+			batchSizes.add(results.size());
+			return results;
+		}
+
+		public void update(JsonArray updateValues) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/** Of type {@code windowed}, whose batches wait briefly for requests. */
+	private static class WindowedPredictor extends DoublingPredictor {
+		WindowedPredictor(String name) { super(name); }
+	}
+
+	/** Of type {@code capped}, whose batches would wait a minute were they not filled. */
+	private static class CappedPredictor extends DoublingPredictor {
+		CappedPredictor(String name) { super(name); }
+	}
+
+}
@@ -0,0 +1,88 @@
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+
+import org.junit.*;
+
+import play.test.*;
+
+/**
+ * Tests the {@link ModelCodec}: that objects survive encoding and decoding
+ * with and without compression, that their headers describe them, and that
+ * objects serialised without an envelope, as they were stored before it,
+ * are still decoded.
+ */
+public class ModelCodecTests extends UnitTest {
+
+	@Test public void compressedObjectRoundTrips() {
+		ArrayList<Integer> object = repetitive();
+		byte[] encoded = ModelCodec.encode(object, true);
+		assertEquals(object, ModelCodec.decode(encoded));
+		ModelCodec.Header header = ModelCodec.readHeader(encoded);
+		assertEquals(ArrayList.class.getName(), header.className);
+		assertTrue(header.isCompressed);
+		assertEquals(serialise(object).length, header.size);
+		assertTrue(encoded.length < header.size);
+	}
+
+	@Test public void uncompressedObjectRoundTrips() {
+		ArrayList<Integer> object = repetitive();
+		byte[] encoded = ModelCodec.encode(object, false);
+		assertEquals(object, ModelCodec.decode(encoded));
+		ModelCodec.Header header = ModelCodec.readHeader(encoded);
+		assertFalse(header.isCompressed);
+		assertEquals(serialise(object).length, header.size);
+		assertTrue(encoded.length > header.size);
+	}
+
+	@Test public void compressingKeepsObject() {
+		ArrayList<Integer> object = repetitive();
+		byte[] uncompressed = ModelCodec.encode(object, false);
+		byte[] compressed = ModelCodec.compress(uncompressed);
+		assertEquals(object, ModelCodec.decode(compressed));
+		assertEquals(ModelCodec.readHeader(uncompressed).size, ModelCodec.readHeader(compressed).size);
+	}
+
+	@Test public void objectWithoutEnvelopeIsDecoded() {
+		ArrayList<Integer> object = repetitive();
+		byte[] serialised = serialise(object);
+		assertEquals(object, ModelCodec.decode(serialised));
+		ModelCodec.Header header = ModelCodec.readHeader(serialised);
+		assertNull(header.className);
+		assertEquals(-1, header.size);
+		assertSame(serialised, ModelCodec.compress(serialised));
+	}
+
+	@Test(expected = IOException.class)
+	public void unknownFormatVersionIsRejected() throws IOException {
+		byte[] encoded = ModelCodec.encode(repetitive(), true);
+		encoded[4]++;
+		ModelCodec.decode( new ByteArrayInputStream(encoded) );
+	}
+
+	/** Returns an object whose serialised form compresses well. */
+	private static ArrayList<Integer> repetitive() {
+		ArrayList<Integer> object = new ArrayList<>();
+		for (int i = 0; i < 10000; i++)
+			object.add(i % 7);
+		return object;
+	}
+
+	/** Returns the plain Java serialised form of the object. */
+	private static byte[] serialise(Object object) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+				out.writeObject(object);
+			}
+			return bytes.toByteArray();
+		} catch (IOException ioe) {
+			throw new AssertionError(ioe);
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+import play.test.*;
+
+/**
+ * Tests {@link NameSequences}: that concurrent reservations in one sequence
+ * are all distinct, that a sequence starts after the highest number in use
+ * without probing its initial name again, and that timestamped names stay
+ * unique when requested concurrently or when the names for the current
+ * time are already in use. Names are "taken" by a set standing in for the
+ * database.
+ */
+public class NameSequencesTests extends UnitTest {
+
+	private static final int THREADS = 8, NAMES_PER_THREAD = 50;
+
+	/** Names taken, as though persisted. */
+	private final Set<String> taken = Collections.newSetFromMap( new ConcurrentHashMap<String,Boolean>() );
+	/** Names tested by {@link #inUse}, in order. */
+	private final List<String> probes = Collections.synchronizedList( new ArrayList<String>() );
+	private final NameSequences.InUse inUse = new NameSequences.InUse() {
+		public boolean test(String name) {
+			probes.add(name);
+			return taken.contains(name);
+		}
+		public Collection<String> withPrefix(String prefix) {
+			List<String> names = new ArrayList<>();
+			for (String name : taken)
+				if (name.startsWith(prefix))
+					names.add(name);
+			return names;
+		}
+	};
+
+	@Test public void concurrentReservationsAreDistinct() throws Exception {
+		final String prefix = uniquePrefix();
+		List<String> names = concurrently(new Callable<String>() {
+			public String call() {
+				String name = NameSequences.reserve(prefix + "1", prefix + "%d", inUse);
+				taken.add(name);
+				NameSequences.release(name);
+				return name;
+			}
+		});
+		assertEquals(THREADS * NAMES_PER_THREAD, new HashSet<>(names).size());
+	}
+
+	@Test public void sequenceStartsAfterHighestInUse() {
+		String prefix = uniquePrefix();
+		taken.add(prefix + "1");
+		taken.add(prefix + "7");
+		taken.add(prefix + "x9"); //not in the sequence
+		assertEquals(prefix + "8", NameSequences.reserve(prefix + "1", prefix + "%d", inUse));
+		assertEquals(prefix + "9", NameSequences.reserve(prefix + "1", prefix + "%d", inUse)); //while the first is still reserved
+		assertEquals(2, Collections.frequency(probes, prefix + "1")); //once by each call, but never by the counter
+	}
+
+	@Test public void sequenceStartsAfterInitialName() {
+		String prefix = uniquePrefix();
+		taken.add(prefix + "5");
+		assertEquals(prefix + "6", NameSequences.reserve(prefix + "5", prefix + "%d", inUse));
+	}
+
+	@Test public void concurrentTimeStampedNamesAreDistinct() throws Exception {
+		final String prefix = uniquePrefix();
+		List<String> names = concurrently(new Callable<String>() {
+			public String call() { return NameSequences.timeStamped(prefix, inUse); }
+		});
+		assertEquals(THREADS * NAMES_PER_THREAD, new HashSet<>(names).size());
+	}
+
+	@Test public void timeStampedNameSkipsNamesInUse() {
+		String prefix = uniquePrefix();
+		long now = System.currentTimeMillis();
+		for (int ms = 0; ms < 200; ms++) //as though left by an earlier run whose clock was ahead
+			taken.add( Util.generateTimeStampBasedName(prefix, new Date(now + ms)) );
+		String name = NameSequences.timeStamped(prefix, inUse);
+		assertFalse(taken.contains(name));
+		assertFalse(name.equals( NameSequences.timeStamped(prefix, inUse) ));
+	}
+
+	/** Returns a prefix that no other test run uses, so that each test starts with fresh sequences. */
+	private static String uniquePrefix() {
+		return "name_sequences_test_" + System.nanoTime() + "_";
+	}
+
+	/** Runs the task {@link #NAMES_PER_THREAD} times on each of {@link #THREADS} threads, returning all the names. */
+	private static List<String> concurrently(final Callable<String> task) throws Exception {
+		ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<List<String>>> futures = new ArrayList<>();
+			for (int t = 0; t < THREADS; t++) {
+				futures.add( threads.submit(new Callable<List<String>>() {
+					public List<String> call() throws Exception {
+						List<String> names = new ArrayList<>();
+						for (int i = 0; i < NAMES_PER_THREAD; i++)
+							names.add( task.call() );
+						return names;
+					}
+				}) );
+			}
+			List<String> names = new ArrayList<>();
+			for (Future<List<String>> future : futures)
+				names.addAll( future.get(30, TimeUnit.SECONDS) );
+			return names;
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+}
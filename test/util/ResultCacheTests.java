@@ -0,0 +1,115 @@
+package util;
+
+import java.util.Arrays;
+
+import org.junit.*;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import models.predictor.Predictor;
+import play.Play;
+import play.test.*;
+
+/**
+ * Tests the {@link ResultCache}: that values differing only in whitespace or
+ * the order of object members share a key, that the least recently used
+ * results are evicted once the results exceed its memory, that invalidating
+ * a predictor removes only its results, and that a result is not stored if
+ * the model changed while it was computed. Relies on the cache being
+ * enabled in test mode for the predictors named here.
+ */
+public class ResultCacheTests extends UnitTest {
+
+	private static final JsonParser JSON_PARSER = new JsonParser();
+	private static final long MAX_BYTES = 1024L * 1024 * Long.parseLong( Play.configuration.getProperty(ConfKeys.RESULT_CACHE_MAX_MB, "0") );
+	/** Names of the predictors whose results the tests cache, which are discarded before and after each. */
+	private static final String PREDICTOR = "result_cache_test", OTHER_PREDICTOR = "result_cache_test_other";
+
+	private final StubPredictor predictor = new StubPredictor(PREDICTOR), other = new StubPredictor(OTHER_PREDICTOR);
+
+	@Before
+	@After
+	public void discardResults() {
+		ResultCache.invalidate(PREDICTOR);
+		ResultCache.invalidate(OTHER_PREDICTOR);
+	}
+
+	@Test public void equivalentValuesShareKey() {
+		String key = ResultCache.key(predictor, json("{\"b\": 1, \"a\": [true, {\"d\": \"x\", \"c\": null}]}"));
+		assertNotNull("Result cache must be enabled for " + PREDICTOR, key);
+		assertEquals(key, ResultCache.key(predictor, json("{\"a\":[true,{\"c\":null,\"d\":\"x\"}],\"b\":1}")));
+		assertFalse(key.equals( ResultCache.key(predictor, json("{\"a\":[true,{\"c\":null,\"d\":\"y\"}],\"b\":1}")) ));
+		assertFalse(key.equals( ResultCache.key(predictor, json("{\"a\":[{\"c\":null,\"d\":\"x\"},true],\"b\":1}")) )); //array order matters
+		assertFalse(key.equals( ResultCache.key(other, json("{\"a\":[true,{\"c\":null,\"d\":\"x\"}],\"b\":1}")) ));
+	}
+
+	@Test public void leastRecentlyUsedResultIsEvicted() {
+		String a = ResultCache.key(predictor, new JsonPrimitive("a")), b = ResultCache.key(predictor, new JsonPrimitive("b")),
+				c = ResultCache.key(predictor, new JsonPrimitive("c"));
+		JsonElement resultA = result('a');
+		ResultCache.put(a, resultA);
+		ResultCache.put(b, result('b'));
+		assertSame(resultA, ResultCache.get(a)); //so that b is now the least recently used
+		ResultCache.put(c, result('c')); //with room for only two
+		assertNull(ResultCache.get(b));
+		assertSame(resultA, ResultCache.get(a));
+		assertNotNull(ResultCache.get(c));
+		assertTrue(ResultCache.status().get("bytes").getAsLong() <= MAX_BYTES);
+	}
+
+	@Test public void invalidatingPredictorRemovesOnlyItsResults() {
+		String key = ResultCache.key(predictor, new JsonPrimitive(1)), otherKey = ResultCache.key(other, new JsonPrimitive(1));
+		ResultCache.put(key, new JsonPrimitive(2));
+		ResultCache.put(otherKey, new JsonPrimitive(3));
+		ResultCache.invalidate(PREDICTOR);
+		assertNull(ResultCache.get(key));
+		assertEquals(new JsonPrimitive(3), ResultCache.get(otherKey));
+	}
+
+	@Test public void resultIsNotStoredIfModelChanged() {
+		String key = ResultCache.key(predictor, new JsonPrimitive(1));
+		predictor.changeModel(); //while the result was being computed
+		ResultCache.put(key, new JsonPrimitive(2));
+		assertNull(ResultCache.get(key));
+		String newKey = ResultCache.key(predictor, new JsonPrimitive(1));
+		assertFalse(key.equals(newKey));
+		ResultCache.put(newKey, new JsonPrimitive(4));
+		assertEquals(new JsonPrimitive(4), ResultCache.get(newKey));
+	}
+
+	private static JsonElement json(String text) {
+		return JSON_PARSER.parse(text);
+	}
+
+	/** Returns a result taking up about two fifths of the cache's memory, so that it holds two. */
+	private static JsonElement result(char fill) {
+		char[] text = new char[(int) (MAX_BYTES / 5)]; //as the cache counts two bytes a character
+		Arrays.fill(text, fill);
+		JsonArray result = new JsonArray();
+		result.add( new JsonPrimitive( new String(text) ) );
+		return result;
+	}
+
+	/** A predictor that is never applied, whose model can be marked as changed. */
+	private static class StubPredictor extends Predictor {
+		StubPredictor(String name) {
+			super(name, null, null, null);
+		}
+
+		void changeModel() {
+			modelChanged();
+		}
+
+		public JsonElement apply(JsonElement value) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void update(JsonArray updateValues) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+}
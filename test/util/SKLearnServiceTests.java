@@ -0,0 +1,95 @@
+package util;
+
+import org.junit.*;
+
+import play.Play;
+import play.libs.Time;
+import play.test.*;
+
+/**
+ * Tests the {@link SKLearnService}'s circuit breaker: that it opens after
+ * the configured number of successive failures, becomes half open once it
+ * has been open for the configured time, letting one trial request
+ * through, and then closes or opens again according to the trial's
+ * outcome. Relies on the heartbeat being disabled in test mode.
+ */
+public class SKLearnServiceTests extends UnitTest {
+
+	private static final int FAILURE_THRESHOLD = Integer.parseInt( Play.configuration.getProperty(ConfKeys.SKLEARN_BREAKER_FAILURES, "5") );
+	private static final long OPEN_FOR = 1000L * Time.parseDuration( Play.configuration.getProperty(ConfKeys.SKLEARN_BREAKER_OPEN_FOR, "30s") );
+
+	@Before
+	@After
+	public void closeBreaker() {
+		SKLearnService.succeeded();
+	}
+
+	@Test public void opensAfterSuccessiveFailures() {
+		for (int i = 1; i < FAILURE_THRESHOLD; i++)
+			failRequest();
+		assertState("closed");
+		assertTrue(SKLearnService.allowRequest());
+		SKLearnService.succeeded(); //so that the failures are no longer successive
+		failRequest();
+		assertState("closed");
+		for (int i = 1; i < FAILURE_THRESHOLD; i++)
+			failRequest();
+		assertState("open");
+		assertFalse(SKLearnService.allowRequest());
+	}
+
+	@Test public void becomesHalfOpenForOneTrial() throws InterruptedException {
+		open();
+		Thread.sleep(OPEN_FOR / 2);
+		assertFalse(SKLearnService.allowRequest());
+		Thread.sleep(OPEN_FOR / 2 + 100);
+		assertTrue(SKLearnService.allowRequest());
+		assertState("half_open");
+		assertFalse("Only one trial request should be allowed", SKLearnService.allowRequest());
+	}
+
+	@Test public void closesWhenTrialSucceeds() throws InterruptedException {
+		startTrial();
+		SKLearnService.succeeded();
+		assertState("closed");
+		assertTrue(SKLearnService.allowRequest());
+	}
+
+	@Test public void opensAgainWhenTrialFails() throws InterruptedException {
+		startTrial();
+		SKLearnService.failed( new RuntimeException("Trial failed") );
+		assertState("open");
+		assertFalse(SKLearnService.allowRequest());
+	}
+
+	@Test public void abandonedTrialPassesToNextRequest() throws InterruptedException {
+		startTrial();
+		SKLearnService.abandoned();
+		assertTrue(SKLearnService.allowRequest());
+		assertState("half_open");
+	}
+
+	private static void failRequest() {
+		assertTrue(SKLearnService.allowRequest());
+		SKLearnService.failed( new RuntimeException("Request failed") );
+	}
+
+	private static void open() {
+		for (int i = 0; i < FAILURE_THRESHOLD; i++)
+			failRequest();
+		assertState("open");
+	}
+
+	/** Opens the breaker and waits for it to let a trial request through. */
+	private static void startTrial() throws InterruptedException {
+		open();
+		Thread.sleep(OPEN_FOR + 100);
+		assertTrue(SKLearnService.allowRequest());
+		assertState("half_open");
+	}
+
+	private static void assertState(String state) {
+		assertEquals(state, SKLearnService.status().get("state").getAsString());
+	}
+
+}
@@ -0,0 +1,90 @@
+package util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.*;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+import play.Play;
+import play.test.*;
+
+/**
+ * Tests {@link UpdateLog}s: reading appended records, discarding those
+ * already saved, and recovering from a partial record left at the end of a
+ * log by a crash.
+ */
+public class UpdateLogTests extends UnitTest {
+
+	private static final JsonParser JSON_PARSER = new JsonParser();
+	/** Name of the predictor whose log the tests use, which is deleted before and after each. */
+	private static final String PREDICTOR = "update_log_test";
+
+	@Before
+	@After
+	public void deleteLog() {
+		UpdateLog.forPredictor(PREDICTOR).delete();
+	}
+
+	@Test public void appendedRecordsAreRead() throws IOException {
+		UpdateLog log = UpdateLog.forPredictor(PREDICTOR);
+		log.append(1, array("[{\"a\": 1}]"));
+		log.awaitDurable( log.append(2, array("[{\"a\": 2}, {\"a\": 3}]")) );
+		List<UpdateLog.Record> records = log.read();
+		assertEquals(2, records.size());
+		assertEquals(1, records.get(0).version);
+		assertEquals(array("[{\"a\": 1}]"), records.get(0).values);
+		assertEquals(2, records.get(1).version);
+		assertEquals(array("[{\"a\": 2}, {\"a\": 3}]"), records.get(1).values);
+		assertTrue(UpdateLog.loggedPredictors().contains(PREDICTOR));
+	}
+
+	@Test public void truncateDiscardsSavedRecords() throws IOException {
+		UpdateLog log = UpdateLog.forPredictor(PREDICTOR);
+		for (int version = 1; version <= 3; version++)
+			log.append(version, array("[" + version + "]"));
+		log.truncate(2);
+		List<UpdateLog.Record> records = log.read();
+		assertEquals(1, records.size());
+		assertEquals(3, records.get(0).version);
+
+		log.append(4, array("[4]")); //to the rewritten log
+		records = log.read();
+		assertEquals(2, records.size());
+		assertEquals(4, records.get(1).version);
+
+		log.truncate(4);
+		assertTrue(log.read().isEmpty());
+		assertFalse(UpdateLog.loggedPredictors().contains(PREDICTOR));
+	}
+
+	@Test public void partialLastRecordIsIgnoredAndCutOff() throws IOException {
+		try (FileOutputStream out = new FileOutputStream(logFile())) {
+			out.write("{\"version\":1,\"values\":[1]}\n{\"version\":2,\"val".getBytes("UTF-8"));
+		}
+		UpdateLog log = UpdateLog.forPredictor(PREDICTOR);
+		List<UpdateLog.Record> records = log.read();
+		assertEquals(1, records.size());
+		assertEquals(1, records.get(0).version);
+
+		log.awaitDurable( log.append(2, array("[2]")) ); //replacing the partial record rather than following it on its line
+		records = log.read();
+		assertEquals(2, records.size());
+		assertEquals(2, records.get(1).version);
+		assertEquals(array("[2]"), records.get(1).values);
+	}
+
+	private static File logFile() {
+		File dir = Play.getFile( Play.configuration.getProperty(ConfKeys.UPDATE_LOG_DIR, "db/update-log").trim() );
+		return new File(dir, PREDICTOR + ".log");
+	}
+
+	private static JsonArray array(String json) {
+		return JSON_PARSER.parse(json).getAsJsonArray();
+	}
+
+}